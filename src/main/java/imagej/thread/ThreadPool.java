@@ -34,6 +34,7 @@ POSSIBILITY OF SUCH DAMAGE.
 
 package imagej.thread;
 
+import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Callable;
@@ -41,18 +42,34 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Manages a FixedThreadPool to parallelize Callable tasks.  The type parameter
+ * Manages a pool of threads to parallelize Callable tasks.  The type parameter
  * T represents the type of the task result.
  * 
+ * How the tasks are executed depends on the strategy:
+ * <ul>
+ * <li>FIXED - a fixed number of platform threads, resized without discarding
+ * the threads that are already running</li>
+ * <li>VIRTUAL - a new virtual thread per task, for I/O-bound work; falls back
+ * to a cached pool of platform threads where virtual threads are not
+ * available</li>
+ * <li>CALLER_RUNS - tasks run on the calling thread</li>
+ * </ul>
+ * 
  * @author Aivar Grislis grislis at wisc dot edu
  */
 public class ThreadPool<T> {
+    public enum Strategy { FIXED, VIRTUAL, CALLER_RUNS };
     private static int _threadPoolCounter = 0;
     private static int THREADS = 4;  
     private int _threads = THREADS;
+    private Strategy _strategy = Strategy.FIXED;
     private ExecutorService _executorService = null;
     private ThreadPoolThreadFactory _threadFactory
             = new ThreadPoolThreadFactory();
@@ -72,16 +89,54 @@ public class ThreadPool<T> {
     }
     
     /**
-     * Sets number of threads to use.
+     * Sets number of threads to use.  A running fixed thread pool is resized
+     * in place.
      * 
      * @param threads 
      */
     public synchronized void setThreads(int threads) {
         if (threads != _threads) {
-            shutdownExecutorService();
+            if (_executorService instanceof ThreadPoolExecutor) {
+                ThreadPoolExecutor executor = (ThreadPoolExecutor) _executorService;
+                // core size may never exceed maximum size
+                if (threads > _threads) {
+                    executor.setMaximumPoolSize(threads);
+                    executor.setCorePoolSize(threads);
+                }
+                else {
+                    executor.setCorePoolSize(threads);
+                    executor.setMaximumPoolSize(threads);
+                }
+            }
             _threads = threads;
         }
     }
+    
+    /**
+     * Gets the execution strategy.
+     * 
+     * @return 
+     */
+    public synchronized Strategy getStrategy() {
+        return _strategy;
+    }
+    
+    /**
+     * Sets the execution strategy.  If the strategy changes, tasks already
+     * submitted finish in the existing thread pool, which is then shut down;
+     * new tasks go to a new pool.
+     * 
+     * @param strategy 
+     */
+    public synchronized void setStrategy(Strategy strategy) {
+        if (strategy != _strategy) {
+            if (null != _executorService) {
+                _executorService.shutdown();
+                _executorService = null;
+            }
+            _strategy = strategy;
+        }
+    }
 
     /**
      * Given a List of Callables defining tasks, execute them in parallel
@@ -96,7 +151,9 @@ public class ThreadPool<T> {
         List<T> returnList = new ArrayList<T>();
         
         // how many threads needed?
-        if (1 == _threads || 1 == callableList.size()) {
+        if (Strategy.CALLER_RUNS == _strategy
+                || (Strategy.FIXED == _strategy && 1 == _threads)
+                || 1 == callableList.size()) {
             // if single thread sufficient just use current thread
             for (Callable<T> callable : callableList) {
                 T result = null;
@@ -112,21 +169,16 @@ public class ThreadPool<T> {
         else {
             // multiple threads needed
             
-            // lazily instantiate ExecutorService
-            if (null == _executorService) {
-                _executorService
-                        = Executors.newFixedThreadPool(_threads, _threadFactory);
-            }
-           
             // execute given tasks: apportion among threads, wait for completion
             List<Future<T>> futureList = null;
             try {
                 
-                futureList = _executorService.invokeAll(callableList);
+                futureList = getExecutorService().invokeAll(callableList);
             }
             catch (InterruptedException e) {
                 System.out.println("ExecutorService.invokeAll was interrupted " + e.getMessage());
                 //TODO just IJ.log it
+                return returnList;
             }
             
              // get results
@@ -148,6 +200,57 @@ public class ThreadPool<T> {
         return returnList;
     }
  
+    /**
+     * Submits a Callable task for asynchronous execution by the thread pool.
+     * 
+     * @param callable task
+     * @return future result
+     */
+    public synchronized Future<T> submit(final Callable<T> callable) {
+        if (Strategy.CALLER_RUNS == _strategy) {
+            FutureTask<T> futureTask = new FutureTask<T>(callable);
+            futureTask.run();
+            return futureTask;
+        }
+        return getExecutorService().submit(callable);
+    }
+    
+    /**
+     * Gets the ExecutorService for the current strategy, lazily instantiated.
+     */
+    private ExecutorService getExecutorService() {
+        if (null == _executorService) {
+            switch (_strategy) {
+                case FIXED:
+                case CALLER_RUNS:
+                    _executorService = new ThreadPoolExecutor(
+                            _threads, _threads, 0L, TimeUnit.MILLISECONDS,
+                            new LinkedBlockingQueue<Runnable>(), _threadFactory);
+                    break;
+                case VIRTUAL:
+                    _executorService = newVirtualThreadExecutorService();
+                    break;
+            }
+        }
+        return _executorService;
+    }
+    
+    /**
+     * Creates an ExecutorService that starts a virtual thread per task.
+     * 
+     * Looked up reflectively so this still builds and runs on JVMs that
+     * predate virtual threads; those get a cached pool of platform threads.
+     */
+    private ExecutorService newVirtualThreadExecutorService() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        }
+        catch (Exception e) {
+            return Executors.newCachedThreadPool(_threadFactory);
+        }
+    }
+ 
     /**
      * Shuts down an existing ExecutorService.
      */
@@ -167,7 +270,6 @@ public class ThreadPool<T> {
                     "ImageJ-" /* + getContext().getID() */
                     + "ThreadPool-" + _threadPoolNumber
                     + "-Thread-" + _threadNumber++;
-            System.out.println("NEW THREAD");
             return new Thread(r, threadName);
         }
     }
@@ -0,0 +1,154 @@
+//
+// AdaptiveBatcher.java
+//
+
+
+/*
+SLIMPlugin for combined spectral-lifetime image analysis.
+
+Copyright (c) 2010, UW-Madison LOCI
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the names of the ImageJDev.org developers nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package loci.slim;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import loci.slim.fitting.engine.IFitResultsListener;
+import loci.slim.fitting.params.IFitResults;
+
+/**
+ * Chooses how many pixels to send to the fitting engine at once, based on
+ * measurements taken while the fit runs.
+ * 
+ * Batches should be large enough that the cost of dispatching a batch is small
+ * compared to fitting it, but small enough that each batch completes quickly
+ * so that the progress bar and colorized images stay responsive.  Fit
+ * throughput is measured from fitted pixels and dispatch cost, both as
+ * reported by the caller.
+ * 
+ * @author Aivar Grislis
+ */
+public class AdaptiveBatcher implements IFitResultsListener {
+    private static final int MIN_BATCH_SIZE = 16;
+    private static final int MAX_BATCH_SIZE = 8192;
+    // a batch should take about this long to fit, for display updates
+    private static final long TARGET_BATCH_NANOS = 100000000L;
+    // dispatch should be at most this fraction of the fit time
+    private static final double MAX_OVERHEAD = 0.05;
+    // minimum pixels per worker thread in a batch
+    private static final int MIN_PIXELS_PER_THREAD = 4;
+    // weight given to newest measurement
+    private static final double SMOOTHING = 0.25;
+    private final int _threads;
+    private final AtomicLong _fittedPixels;
+    private int _batchSize;
+    private double _dispatchNanos;
+    private double _pixelsPerNano;
+    private long _sampleTime;
+    private long _samplePixels;
+
+    /**
+     * Creates a batcher.
+     * 
+     * @param threads number of fitting threads
+     * @param batchSize initial batch size
+     */
+    public AdaptiveBatcher(int threads, int batchSize) {
+        _threads = Math.max(threads, 1);
+        _fittedPixels = new AtomicLong();
+        _batchSize = batchSize;
+        _dispatchNanos = 0.0;
+        _pixelsPerNano = 0.0;
+        _sampleTime = System.nanoTime();
+        _samplePixels = 0;
+    }
+
+    /**
+     * Called from the fitting threads as each pixel is fitted.
+     * 
+     * @param results 
+     */
+    @Override
+    public void fitted(IFitResults results) {
+        _fittedPixels.incrementAndGet();
+    }
+
+    /**
+     * Called as a batch of pixels is fitted.
+     * 
+     * @param pixels 
+     */
+    public void fitted(int pixels) {
+        _fittedPixels.addAndGet(pixels);
+    }
+
+    /**
+     * Reports the time taken to hand a batch to the fitting engine.
+     * 
+     * @param nanos 
+     */
+    public synchronized void dispatched(long nanos) {
+        _dispatchNanos = smooth(_dispatchNanos, nanos);
+    }
+
+    /**
+     * Gets the size for the next batch.
+     * 
+     * @return number of pixels
+     */
+    public synchronized int getBatchSize() {
+        long time = System.nanoTime();
+        long pixels = _fittedPixels.get();
+        long elapsed = time - _sampleTime;
+        
+        // wait for a meaningful sample of fit throughput
+        if (pixels > _samplePixels && elapsed >= TARGET_BATCH_NANOS / 2) {
+            double pixelsPerNano = (double) (pixels - _samplePixels) / elapsed;
+            _pixelsPerNano = smooth(_pixelsPerNano, pixelsPerNano);
+            _sampleTime = time;
+            _samplePixels = pixels;
+            
+            // big enough to amortize dispatch, small enough to stay responsive
+            double responsiveSize = TARGET_BATCH_NANOS * _pixelsPerNano;
+            double amortizedSize = _dispatchNanos * _pixelsPerNano / MAX_OVERHEAD;
+            double size = Math.max(responsiveSize, amortizedSize);
+            size = Math.max(size, _threads * MIN_PIXELS_PER_THREAD);
+            _batchSize = (int) Math.max(MIN_BATCH_SIZE, Math.min(size, MAX_BATCH_SIZE));
+        }
+        return _batchSize;
+    }
+
+    /*
+     * Exponential moving average, seeded by the first value.
+     */
+    private static double smooth(double average, double value) {
+        if (0.0 == average) {
+            return value;
+        }
+        return SMOOTHING * value + (1.0 - SMOOTHING) * average;
+    }
+}
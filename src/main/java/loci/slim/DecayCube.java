@@ -0,0 +1,308 @@
+//
+// DecayCube.java
+//
+
+
+/*
+SLIMPlugin for combined spectral-lifetime image analysis.
+
+Copyright (c) 2010, UW-Madison LOCI
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the names of the ImageJDev.org developers nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package loci.slim;
+
+import java.io.IOException;
+
+import loci.formats.FormatException;
+import loci.slim.fitting.IDecayImage;
+import loci.slim.preprocess.DecayBlock;
+import loci.slim.preprocess.IBlockProcessor;
+import loci.slim.preprocess.IIntensityProcessor;
+import loci.slim.preprocess.IProcessor;
+
+import mpicbg.imglib.cursor.LocalizableByDimCursor;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.type.numeric.RealType;
+
+/**
+ * This class holds a copy of an image that has a decay curve for each pixel,
+ * loaded once into primitive arrays.
+ * <p>
+ * Each channel and row of the image is a float array with the bins of each
+ * pixel contiguous, increment already applied.  Getting a pixel is then a
+ * single array copy rather than a cursor move and conversion per bin.  Unlike
+ * DecayImageWrapper, getPixel is safe to call from several threads at once.
+ * 
+ * @author Aivar Grislis
+ */
+public class DecayCube<T extends RealType<T>> implements IDecayImage, IBlockProcessor, IIntensityProcessor {
+    private static final int MEMORY_FRACTION = 4;
+    private static final int BAND_PIXELS = 1 << 20;
+    private Image<T> _image;
+    private int _width;
+    private int _height;
+    private int _channels;
+    private int _bins;
+    private float[][] _rows;
+
+    public DecayCube(Image<T> image, int width, int height,
+            int channels, int bins, int binIndex, int increment) {
+        _image    = image;
+        _width    = width;
+        _height   = height;
+        _channels = channels;
+        _bins     = bins;
+        _rows     = load(image, width, height, channels, bins, binIndex, increment);
+    }
+
+    /**
+     * Constructor, reads straight from Bio-Formats, without an imglib image.
+     * 
+     * @param planes source of the data
+     * @param increment each value is divided by this
+     * @throws FormatException
+     * @throws IOException 
+     */
+    public DecayCube(DecayPlanes planes, int increment)
+            throws FormatException, IOException {
+        _image    = null;
+        _width    = planes.getWidth();
+        _height   = planes.getHeight();
+        _channels = planes.getChannels();
+        _bins     = planes.getBins();
+        _rows     = load(planes, increment);
+    }
+
+    /**
+     * Whether a copy of an image of a given size can reasonably be held in
+     * memory, alongside the image itself.
+     * 
+     * @param width
+     * @param height
+     * @param channels
+     * @param bins
+     * @return 
+     */
+    public static boolean fitsInMemory(int width, int height, int channels, int bins) {
+        long bytes = 4L * width * height * channels * bins;
+        return bytes < Runtime.getRuntime().maxMemory() / MEMORY_FRACTION;
+    }
+
+    /**
+     * Gets width of image.
+     * 
+     * @return 
+     */
+    @Override
+    public int getWidth() {
+        return _width;
+    }
+
+    /**
+     * Gets height of image.
+     * @return 
+     */
+    @Override
+    public int getHeight() {
+        return _height;
+    }
+
+    /**
+     * Gets number of channels of image.
+     * 
+     * @return 
+     */
+    @Override
+    public int getChannels() {
+        return _channels;
+    }
+
+    /**
+     * Gets number of bins in decay curve of image.
+     * 
+     * @return 
+     */
+    @Override
+    public int getBins() {
+        return _bins;
+    }
+
+    /**
+     * Specifies a source IProcessor to be chained to this one.
+     * 
+     * @param processor 
+     */
+    @Override
+    public void chain(IProcessor processor) {
+        throw new UnsupportedOperationException("Can't chain to DecayCube");
+    }
+
+    /**
+     * Gets input pixel decay curve.
+     * 
+     * @param location
+     * @return 
+     */
+    @Override
+    public double[] getPixel(int[] location) {
+        double[] decay = new double[_bins];
+        float[] row = _rows[location[2] * _height + location[1]];
+        int offset = location[0] * _bins;
+        for (int i = 0; i < _bins; ++i) {
+            decay[i] = row[offset + i];
+        }
+        return decay;
+    }
+
+    /**
+     * Gets a block of input pixel decay curves.
+     * 
+     * @param block 
+     */
+    @Override
+    public void getBlock(DecayBlock block) {
+        double[] decays = block.getDecays();
+        for (int j = 0; j < block.getHeight(); ++j) {
+            // pixels of a row are contiguous
+            float[] row = _rows[block.getChannel() * _height + block.getY() + j];
+            int offset = block.getX() * _bins;
+            int blockOffset = block.getOffset(0, j);
+            for (int i = 0; i < block.getWidth(); ++i) {
+                boolean wanted = block.isWanted(i, j);
+                if (wanted) {
+                    for (int b = 0; b < _bins; ++b) {
+                        decays[blockOffset + b] = row[offset + b];
+                    }
+                }
+                block.setValid(i, j, wanted);
+                offset += _bins;
+                blockOffset += _bins;
+            }
+        }
+    }
+
+    /**
+     * Gets input pixel photon count, without building the decay curve.
+     * 
+     * @param location
+     * @param start first bin to count
+     * @param stop last bin to count
+     * @return 
+     */
+    @Override
+    public double getIntensity(int[] location, int start, int stop) {
+        float[] row = _rows[location[2] * _height + location[1]];
+        int offset = location[0] * _bins;
+        double sum = 0.0;
+        for (int i = Math.max(start, 0); i <= Math.min(stop, _bins - 1); ++i) {
+            sum += row[offset + i];
+        }
+        return sum;
+    }
+
+    /**
+     * Gets underlying image.
+     */
+    @Override
+    public Image<T> getImage() {
+        return _image;
+    }
+
+    /*
+     * Reads the planes, one array per channel and row.
+     */
+    private float[][] load(DecayPlanes planes, int increment)
+            throws FormatException, IOException {
+        float[][] rows = new float[_channels * _height][];
+        for (int i = 0; i < rows.length; ++i) {
+            rows[i] = new float[_width * _bins];
+        }
+        
+        // read in bands of rows, to bound the extra memory used
+        int bandRows = Math.max(1, Math.min(_height, BAND_PIXELS / _width));
+        float[] values = new float[bandRows * _width];
+        for (int plane = 0; plane < planes.getPlanes(); ++plane) {
+            int channel = planes.getChannel(plane);
+            if (channel >= 0) {
+                int bin = planes.getBin(plane);
+                for (int band = 0; band < _height; band += bandRows) {
+                    int bandHeight = Math.min(bandRows, _height - band);
+                    planes.read(plane, 0, band, _width, bandHeight, values, increment);
+                    for (int y = 0; y < bandHeight; ++y) {
+                        float[] row = rows[channel * _height + band + y];
+                        int offset = y * _width;
+                        for (int x = 0; x < _width; ++x) {
+                            row[x * _bins + bin] = values[offset + x];
+                        }
+                    }
+                }
+            }
+        }
+        return rows;
+    }
+
+    /*
+     * Copies the image, one array per channel and row.
+     */
+    private static <T extends RealType<T>> float[][] load(Image<T> image,
+            int width, int height, int channels, int bins, int binIndex,
+            int increment) {
+        float[][] rows = new float[channels * height][];
+        LocalizableByDimCursor<T> cursor = image.createLocalizableByDimCursor();
+        
+        // x, y and channel with bins inserted, as in DecayImageWrapper
+        int[] location = new int[3];
+        int[] innerLocation = new int[4];
+        
+        for (int c = 0; c < channels; ++c) {
+            location[2] = c;
+            for (int y = 0; y < height; ++y) {
+                location[1] = y;
+                float[] row = new float[width * bins];
+                int offset = 0;
+                for (int x = 0; x < width; ++x) {
+                    location[0] = x;
+                    for (int i = 0; i < binIndex; ++i) {
+                        innerLocation[i] = location[i];
+                    }
+                    for (int i = binIndex; i < location.length; ++i) {
+                        innerLocation[i + 1] = location[i];
+                    }
+                    innerLocation[binIndex] = 0;
+                    cursor.setPosition(innerLocation);
+                    for (int b = 0; b < bins; ++b) {
+                        cursor.setPosition(b, binIndex);
+                        row[offset++] = cursor.getType().getRealFloat() / increment;
+                    }
+                }
+                rows[c * height + y] = row;
+            }
+        }
+        cursor.close();
+        return rows;
+    }
+}
@@ -5,6 +5,9 @@
 package loci.slim;
 
 import loci.slim.fitting.IDecayImage;
+import loci.slim.preprocess.DecayBlock;
+import loci.slim.preprocess.IBlockProcessor;
+import loci.slim.preprocess.IIntensityProcessor;
 import loci.slim.preprocess.IProcessor;
 
 import mpicbg.imglib.cursor.LocalizableByDimCursor;
@@ -16,7 +19,7 @@ import mpicbg.imglib.type.numeric.RealType;
  * 
  * @author Aivar Grislis
  */
-public class DecayImageWrapper<T extends RealType<T>> implements IDecayImage {
+public class DecayImageWrapper<T extends RealType<T>> implements IDecayImage, IBlockProcessor, IIntensityProcessor {
     private Image<T> _image;
     private int _width;
     private int _height;
@@ -115,6 +118,72 @@ public class DecayImageWrapper<T extends RealType<T>> implements IDecayImage {
         return decay;
     }
 
+    /**
+     * Gets a block of input pixel decay curves.
+     * 
+     * @param block 
+     */
+    @Override
+    public void getBlock(DecayBlock block) {
+        double[] decays = block.getDecays();
+        
+        // x, y, channel and bin, in image order
+        int[] location = new int[] { 0, 0, block.getChannel() };
+        int[] innerLocation = new int[location.length + 1];
+        for (int j = 0; j < block.getHeight(); ++j) {
+            location[1] = block.getY() + j;
+            for (int i = 0; i < block.getWidth(); ++i) {
+                if (!block.isWanted(i, j)) {
+                    block.setValid(i, j, false);
+                    continue;
+                }
+                location[0] = block.getX() + i;
+                for (int k = 0; k < _binIndex; ++k) {
+                    innerLocation[k] = location[k];
+                }
+                for (int k = _binIndex; k < location.length; ++k) {
+                    innerLocation[k + 1] = location[k];
+                }
+                int offset = block.getOffset(i, j);
+                for (int b = 0; b < _bins; ++b) {
+                    innerLocation[_binIndex] = b;
+                    _cursor.moveTo(innerLocation);
+                    decays[offset + b] = _cursor.getType().getRealFloat() / _increment;
+                }
+                block.setValid(i, j, true);
+            }
+        }
+    }
+
+    /**
+     * Gets input pixel photon count, without building the decay curve.
+     * 
+     * @param location
+     * @param start first bin to count
+     * @param stop last bin to count
+     * @return 
+     */
+    @Override
+    public double getIntensity(int[] location, int start, int stop) {
+        // add bins to location
+        int[] innerLocation = new int[location.length + 1];
+        for (int i = 0; i < _binIndex; ++i) {
+            innerLocation[i] = location[i];
+        }
+        for (int i = _binIndex; i < location.length; ++i) {
+            innerLocation[i + 1] = location[i];
+        }
+
+        // only read the bins counted
+        double sum = 0.0;
+        for (int i = Math.max(start, 0); i <= Math.min(stop, _bins - 1); ++i) {
+            innerLocation[_binIndex] = i;
+            _cursor.moveTo(innerLocation);
+            sum += _cursor.getType().getRealFloat() / _increment;
+        }
+        return sum;
+    }
+
     /**
      * Gets underlying image.
      */
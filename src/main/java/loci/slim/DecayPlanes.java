@@ -0,0 +1,283 @@
+//
+// DecayPlanes.java
+//
+
+
+/*
+SLIMPlugin for combined spectral-lifetime image analysis.
+
+Copyright (c) 2010, UW-Madison LOCI
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the names of the ImageJDev.org developers nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package loci.slim;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Hashtable;
+
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.IFormatReader;
+import loci.formats.ImageReader;
+
+/**
+ * This class reads decay data straight from a Bio-Formats reader, without
+ * building an imglib image.
+ * <p>
+ * Lifetime data comes as a series of planes, one per time bin per channel.
+ * The lifetime bins are a sub-dimension of the Bio-Formats channels.  This
+ * class works out which channel and bin each plane holds and reads planes, or
+ * rectangles of them, as floats.  Only the first Z and T are used.
+ * 
+ * @author Aivar Grislis
+ */
+public class DecayPlanes {
+    private final IFormatReader _reader;
+    private final int _width;
+    private final int _height;
+    private final int _channels;
+    private final int _bins;
+    private final int[] _planeChannel;
+    private final int[] _planeBin;
+    private final int _pixelType;
+    private final boolean _littleEndian;
+
+    /**
+     * Opens a lifetime file.
+     * 
+     * @param fileName
+     * @return
+     * @throws FormatException
+     * @throws IOException 
+     */
+    public static DecayPlanes open(String fileName) throws FormatException, IOException {
+        ImageReader reader = new ImageReader();
+        DecayPlanes planes = null;
+        try {
+            reader.setId(fileName);
+            planes = new DecayPlanes(reader);
+            return planes;
+        }
+        finally {
+            // don't leak the reader, e.g. if there is no lifetime dimension
+            if (null == planes) {
+                try {
+                    reader.close();
+                }
+                catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Constructor, reader already opened.
+     * 
+     * @param reader
+     * @throws FormatException if there is no lifetime dimension
+     */
+    public DecayPlanes(IFormatReader reader) throws FormatException {
+        _reader = reader;
+        _width = reader.getSizeX();
+        _height = reader.getSizeY();
+        _pixelType = reader.getPixelType();
+        _littleEndian = reader.isLittleEndian();
+
+        // find the lifetime sub-dimension of channels
+        int[] lengths = reader.getChannelDimLengths();
+        String[] types = reader.getChannelDimTypes();
+        int lifetimeIndex = -1;
+        for (int i = 0; i < types.length; ++i) {
+            if (FormatTools.LIFETIME.equals(types[i])) {
+                lifetimeIndex = i;
+            }
+        }
+        if (lifetimeIndex < 0) {
+            throw new FormatException("No lifetime dimension");
+        }
+        _bins = lengths[lifetimeIndex];
+        _channels = reader.getEffectiveSizeC() / _bins;
+
+        // map each plane to a channel and bin
+        int planes = reader.getImageCount();
+        _planeChannel = new int[planes];
+        _planeBin = new int[planes];
+        for (int plane = 0; plane < planes; ++plane) {
+            int[] zct = reader.getZCTCoords(plane);
+            _planeChannel[plane] = -1;
+            if (0 == zct[0] && 0 == zct[2]) {
+                int[] position = FormatTools.rasterToPosition(lengths, zct[1]);
+                int channel = 0;
+                int stride = 1;
+                for (int i = 0; i < lengths.length; ++i) {
+                    if (i != lifetimeIndex) {
+                        channel += position[i] * stride;
+                        stride *= lengths[i];
+                    }
+                }
+                _planeChannel[plane] = channel;
+                _planeBin[plane] = position[lifetimeIndex];
+            }
+        }
+    }
+
+    public int getWidth() {
+        return _width;
+    }
+
+    public int getHeight() {
+        return _height;
+    }
+
+    public int getChannels() {
+        return _channels;
+    }
+
+    public int getBins() {
+        return _bins;
+    }
+
+    /**
+     * Gets the file metadata, read through the same reader.
+     * 
+     * @return 
+     */
+    public Hashtable<String, Object> getGlobalMetadata() {
+        return _reader.getGlobalMetadata();
+    }
+
+    /**
+     * Gets number of planes.
+     * 
+     * @return 
+     */
+    public int getPlanes() {
+        return _planeChannel.length;
+    }
+
+    /**
+     * Gets the channel of a plane.
+     * 
+     * @param plane
+     * @return channel or -1 if plane is not used
+     */
+    public int getChannel(int plane) {
+        return _planeChannel[plane];
+    }
+
+    /**
+     * Gets the time bin of a plane.
+     * 
+     * @param plane
+     * @return 
+     */
+    public int getBin(int plane) {
+        return _planeBin[plane];
+    }
+
+    /**
+     * Reads a rectangle of a plane.
+     * 
+     * @param plane
+     * @param x
+     * @param y
+     * @param width
+     * @param height
+     * @param values gets width * height values, row by row
+     * @param divisor each value is divided by this
+     * @throws FormatException
+     * @throws IOException 
+     */
+    public void read(int plane, int x, int y, int width, int height,
+            float[] values, float divisor) throws FormatException, IOException {
+        byte[] bytes;
+        // readers are not thread-safe
+        synchronized (_reader) {
+            bytes = _reader.openBytes(plane, x, y, width, height);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.order(_littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        int count = width * height;
+        switch (_pixelType) {
+            case FormatTools.INT8:
+                for (int i = 0; i < count; ++i) {
+                    values[i] = buffer.get(i) / divisor;
+                }
+                break;
+            case FormatTools.UINT8:
+                for (int i = 0; i < count; ++i) {
+                    values[i] = (buffer.get(i) & 0xff) / divisor;
+                }
+                break;
+            case FormatTools.INT16:
+                for (int i = 0; i < count; ++i) {
+                    values[i] = buffer.getShort(2 * i) / divisor;
+                }
+                break;
+            case FormatTools.UINT16:
+                for (int i = 0; i < count; ++i) {
+                    values[i] = (buffer.getShort(2 * i) & 0xffff) / divisor;
+                }
+                break;
+            case FormatTools.INT32:
+                for (int i = 0; i < count; ++i) {
+                    values[i] = buffer.getInt(4 * i) / divisor;
+                }
+                break;
+            case FormatTools.UINT32:
+                for (int i = 0; i < count; ++i) {
+                    values[i] = (buffer.getInt(4 * i) & 0xffffffffL) / divisor;
+                }
+                break;
+            case FormatTools.FLOAT:
+                for (int i = 0; i < count; ++i) {
+                    values[i] = buffer.getFloat(4 * i) / divisor;
+                }
+                break;
+            case FormatTools.DOUBLE:
+                for (int i = 0; i < count; ++i) {
+                    values[i] = (float) (buffer.getDouble(8 * i) / divisor);
+                }
+                break;
+            default:
+                throw new FormatException("Unsupported pixel type " + _pixelType);
+        }
+    }
+
+    /**
+     * Closes the reader.
+     */
+    public void close() {
+        try {
+            _reader.close();
+        }
+        catch (IOException e) {
+            System.out.println("Error closing reader " + e.getMessage()); //TODO IJ.log it!
+        }
+    }
+}
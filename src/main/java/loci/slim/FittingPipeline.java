@@ -0,0 +1,367 @@
+//
+// FittingPipeline.java
+//
+
+
+/*
+SLIMPlugin for combined spectral-lifetime image analysis.
+
+Copyright (c) 2010, UW-Madison LOCI
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the names of the ImageJDev.org developers nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package loci.slim;
+
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import loci.slim.fitting.IFittedImage;
+import loci.slim.fitting.engine.IFittingEngine;
+import loci.slim.fitting.images.FittedImageFitter;
+import loci.slim.fitting.metrics.FittingMetrics;
+import loci.slim.fitting.params.IGlobalFitParams;
+import loci.slim.fitting.params.PrimitiveFitBatch;
+import loci.slim.fitting.params.PrimitiveFitBatchPool;
+
+/**
+ * Runs an image fit as a pipeline of stages connected by bounded queues.
+ * 
+ * The calling thread extracts and preprocesses batches of pixels and hands
+ * them to the pipeline.  A fitting thread submits each batch to the fitting
+ * engine asynchronously, without waiting for the previous batch to finish,
+ * and a rendering thread stores the results and updates the colorized images
+ * and histogram.  Since the queues are bounded, extraction blocks whenever it
+ * gets too far ahead of the fit.
+ * 
+ * Batches are PrimitiveFitBatches that are fitted in place and returned to
+ * the pool once drawn.
+ * 
+ * Cancelling abandons queued batches, cancels batches that are in flight in
+ * the fitting engine and interrupts the stages.  Batches already rendered
+ * remain in the fitted image.
+ * 
+ * @author Aivar Grislis
+ */
+public class FittingPipeline {
+    private static final int QUEUE_DEPTH = 4;
+    private static final long POLL_MILLISECONDS = 100;
+    private static final PixelBatch END = new PixelBatch(null);
+    private static int _pipelineCounter = 0;
+    private final IFittingEngine _fittingEngine;
+    private final IGlobalFitParams _globalFitParams;
+    private final FittedImageFitter _imageColorizer;
+    private final IFittedImage _fittedImage;
+    private final AdaptiveBatcher _batcher;
+    private final PrimitiveFitBatchPool _batchPool;
+    private final FittingMetrics _metrics;
+    private final BlockingQueue<PixelBatch> _fitQueue;
+    private final BlockingQueue<PixelBatch> _renderQueue;
+    private final Queue<Future<PrimitiveFitBatch>> _inFlight;
+    private final int _pipelineNumber;
+    private Thread _fitThread;
+    private Thread _renderThread;
+    private volatile boolean _cancel;
+
+    /**
+     * Creates a pipeline for a single image fit.
+     * 
+     * @param fittingEngine
+     * @param globalFitParams
+     * @param imageColorizer null if not producing colorized images
+     * @param fittedImage receives the results
+     * @param batcher measures fit and dispatch times, may be null
+     * @param batchPool gets batches back once drawn
+     */
+    public FittingPipeline(
+            IFittingEngine fittingEngine,
+            IGlobalFitParams globalFitParams,
+            FittedImageFitter imageColorizer,
+            IFittedImage fittedImage,
+            AdaptiveBatcher batcher,
+            PrimitiveFitBatchPool batchPool) {
+        _fittingEngine = fittingEngine;
+        _globalFitParams = globalFitParams;
+        _imageColorizer = imageColorizer;
+        _fittedImage = fittedImage;
+        _batcher = batcher;
+        _batchPool = batchPool;
+        _metrics = fittingEngine.getMetrics();
+        _fitQueue = new ArrayBlockingQueue<PixelBatch>(QUEUE_DEPTH);
+        _renderQueue = new ArrayBlockingQueue<PixelBatch>(QUEUE_DEPTH);
+        _inFlight = new ConcurrentLinkedQueue<Future<PrimitiveFitBatch>>();
+        _pipelineNumber = _pipelineCounter++;
+        _cancel = false;
+    }
+
+    /**
+     * Starts the fitting and rendering stages.
+     */
+    public void start() {
+        _fitThread = new Thread(new FitStage(),
+                "FittingPipeline-" + _pipelineNumber + "-Fit");
+        _renderThread = new Thread(new RenderStage(),
+                "FittingPipeline-" + _pipelineNumber + "-Render");
+        _fitThread.setDaemon(true);
+        _renderThread.setDaemon(true);
+        _fitThread.start();
+        _renderThread.start();
+    }
+
+    /**
+     * Queues a batch of pixels to be fitted.  Blocks while the fitting stage
+     * is backed up.
+     * 
+     * @param batch acquired from the batch pool
+     */
+    public void put(PrimitiveFitBatch batch) {
+        long waitTime = System.nanoTime();
+        offer(_fitQueue, new PixelBatch(batch));
+        _metrics.recordBatchWait(System.nanoTime() - waitTime);
+    }
+
+    /**
+     * Waits for all queued batches to be fitted and rendered.
+     */
+    public void finish() {
+        offer(_fitQueue, END);
+        join();
+    }
+
+    /**
+     * Gets whether the pipeline was cancelled or failed.
+     * 
+     * @return 
+     */
+    public boolean isCancelled() {
+        return _cancel;
+    }
+
+    /**
+     * Abandons any queued batches and cancels batches being fitted.  Does not
+     * wait; may be called from any thread.
+     */
+    public void cancel() {
+        _cancel = true;
+        _fitQueue.clear();
+        _renderQueue.clear();
+        Future<PrimitiveFitBatch> future;
+        while (null != (future = _inFlight.poll())) {
+            future.cancel(true);
+        }
+        interrupt(_fitThread);
+        interrupt(_renderThread);
+    }
+
+    /**
+     * Waits for the stages to stop, after finishing or cancelling.
+     */
+    public void join() {
+        try {
+            if (null != _fitThread) {
+                _fitThread.join();
+            }
+            if (null != _renderThread) {
+                _renderThread.join();
+            }
+        }
+        catch (InterruptedException e) {
+            System.out.println("FittingPipeline interrupted " + e.getMessage());
+            cancel();
+        }
+    }
+
+    /*
+     * Interrupts a stage thread, if it is not the current thread.
+     */
+    private void interrupt(Thread thread) {
+        if (null != thread && Thread.currentThread() != thread) {
+            thread.interrupt();
+        }
+    }
+
+    /*
+     * Puts a batch on a queue, giving up if the pipeline is cancelled.
+     */
+    private void offer(BlockingQueue<PixelBatch> queue, PixelBatch batch) {
+        try {
+            while (!_cancel
+                    && !queue.offer(batch, POLL_MILLISECONDS, TimeUnit.MILLISECONDS)) {
+            }
+        }
+        catch (InterruptedException e) {
+            System.out.println("FittingPipeline interrupted " + e.getMessage());
+            cancel();
+        }
+    }
+
+    /*
+     * Takes a batch from a queue; returns END if the pipeline is cancelled.
+     */
+    private PixelBatch take(BlockingQueue<PixelBatch> queue) {
+        PixelBatch batch = null;
+        try {
+            while (!_cancel && null == batch) {
+                batch = queue.poll(POLL_MILLISECONDS, TimeUnit.MILLISECONDS);
+            }
+        }
+        catch (InterruptedException e) {
+            System.out.println("FittingPipeline interrupted " + e.getMessage());
+            cancel();
+        }
+        return null == batch ? END : batch;
+    }
+
+    /**
+     * Stage that fits batches of pixels.
+     */
+    private class FitStage implements Runnable {
+        public void run() {
+            try {
+                PixelBatch batch;
+                while (END != (batch = take(_fitQueue))) {
+                    // batches in the render queue are in flight concurrently
+                    long dispatchTime = System.nanoTime();
+                    batch._future = _fittingEngine.fitAsync
+                            (_globalFitParams, batch._batch);
+                    dispatchTime = System.nanoTime() - dispatchTime;
+                    _metrics.recordDispatch(dispatchTime);
+                    if (null != _batcher) {
+                        _batcher.dispatched(dispatchTime);
+                    }
+                    _inFlight.add(batch._future);
+                    if (_cancel) {
+                        // missed by cancel()
+                        batch._future.cancel(true);
+                        break;
+                    }
+                    offer(_renderQueue, batch);
+                }
+            }
+            catch (RuntimeException e) {
+                System.out.println("Exception fitting " + e.getMessage()); //TODO IJ.log it!
+                cancel();
+            }
+            offer(_renderQueue, END);
+        }
+    }
+
+    /**
+     * Stage that stores fitted pixels and updates the colorized images.
+     */
+    private class RenderStage implements Runnable {
+        public void run() {
+            // reused for every pixel
+            int[] location = new int[3];
+            try {
+                PixelBatch batch;
+                while (END != (batch = take(_renderQueue))) {
+                    long time = System.nanoTime();
+                    PrimitiveFitBatch fitBatch = getResults(batch);
+                    if (null == fitBatch) {
+                        break;
+                    }
+                    _metrics.recordResultWait(System.nanoTime() - time);
+                    if (null != _batcher) {
+                        _batcher.fitted(fitBatch.getSize());
+                    }
+                    
+                    time = System.nanoTime();
+                    for (int i = 0; i < fitBatch.getSize(); ++i) {
+                        if (!fitBatch.isFitted(i)) {
+                            // fit failed
+                            continue;
+                        }
+                        double[] results = fitBatch.getParams(i);
+                        location[0] = fitBatch.getX(i);
+                        location[1] = fitBatch.getY(i);
+                        location[2] = fitBatch.getChannel(i);
+
+                        // if producing colorized images, feed this pixel to colorizer
+                        if (null != _imageColorizer) {
+                            _imageColorizer.updatePixel(location, results);
+                        }
+                        _fittedImage.setPixel(location, results);
+                    }
+                    _metrics.recordColorize(System.nanoTime() - time);
+                    _batchPool.release(fitBatch);
+
+                    if (null != _imageColorizer) {
+                        time = System.nanoTime();
+                        _imageColorizer.recalcHistogram();
+                        _metrics.recordHistogram(System.nanoTime() - time);
+                    }
+                }
+            }
+            catch (RuntimeException e) {
+                System.out.println("Exception rendering " + e.getMessage()); //TODO IJ.log it!
+                cancel();
+            }
+        }
+        
+        /*
+         * Waits for a batch to be fitted; returns null if cancelled.
+         */
+        private PrimitiveFitBatch getResults(PixelBatch batch) {
+            PrimitiveFitBatch fitBatch = null;
+            try {
+                fitBatch = batch._future.get();
+                _inFlight.remove(batch._future);
+            }
+            catch (CancellationException e) {
+                // the engine may cancel fits itself, e.g. when shut down
+                cancel();
+            }
+            catch (ExecutionException e) {
+                System.out.println("ExecutionException " + e.getMessage()); //TODO IJ.log it!
+                cancel();
+            }
+            catch (InterruptedException e) {
+                System.out.println("FittingPipeline interrupted " + e.getMessage());
+                cancel();
+            }
+            return fitBatch;
+        }
+    }
+
+    /**
+     * A batch of pixels flowing through the pipeline.
+     */
+    private static class PixelBatch {
+        final PrimitiveFitBatch _batch;
+        Future<PrimitiveFitBatch> _future;
+
+        PixelBatch(PrimitiveFitBatch batch) {
+            _batch = batch;
+            _future = null;
+        }
+    }
+}
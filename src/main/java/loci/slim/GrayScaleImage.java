@@ -41,11 +41,6 @@ import ij.gui.ImageCanvas;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 
-import mpicbg.imglib.cursor.LocalizableByDimCursor;
-import mpicbg.imglib.image.Image;
-import mpicbg.imglib.type.numeric.ComplexType;
-import mpicbg.imglib.type.numeric.RealType;
-
 /**
  * The GrayScaleImage shows a grayscale representation of the input data.  It
  * also allows the user to look at all the channels and pick a channel for the
@@ -57,7 +52,7 @@ import mpicbg.imglib.type.numeric.RealType;
  *
  * @author Aivar Grislis grislis at wisc dot edu
  */
-public class GrayScaleImage<T extends RealType<T>> implements IGrayScaleImage {
+public class GrayScaleImage implements IGrayScaleImage {
     private int _width;
     private int _height;
     private ImageStack _imageStack;
@@ -67,71 +62,31 @@ public class GrayScaleImage<T extends RealType<T>> implements IGrayScaleImage {
     private double _minNonZeroPhotonCount;
     private int[] _brightestPoint;
 
-    public GrayScaleImage(Image<T> image) {
-        String title = image.getName();
-        int spaceIndex = title.indexOf(" ");
-        if (0 < spaceIndex) {
-            title = title.substring(0, spaceIndex);
-        }
-        int dimensions[] = image.getDimensions();
-        //for (int i = 0; i < dimensions.length; ++i) {
-        //    System.out.println("dim[" + i + "] " + dimensions[i]);
-        //}
-        _width = dimensions[0];
-        _height = dimensions[1];
-        int bins = dimensions[2];
-        int channels = 1;
-        if (dimensions.length > 3) {
-            channels = dimensions[3];
-        }
+    /**
+     * Constructor, shows the summed photon counts of each channel.
+     * 
+     * @param title
+     * @param intensityImage 
+     */
+    public GrayScaleImage(String title, IntensityImage intensityImage) {
+        _width = intensityImage.getWidth();
+        _height = intensityImage.getHeight();
+        int channels = intensityImage.getChannels();
+        _minNonZeroPhotonCount = intensityImage.getMinNonZeroPhotonCount();
+        _brightestPoint = intensityImage.getBrightestPoint();
 
         // building an image stack
         _imageStack = new ImageStack(_width, _height);
         _saveOutPixels = new byte[channels][];
 
-        LocalizableByDimCursor cursor = image.createLocalizableByDimCursor();
-        double[][] pixels = new double[_width][_height];
-        int[] position = (channels > 1) ? new int[4] : new int[3];
-
-        _minNonZeroPhotonCount = Double.MAX_VALUE;
         for (int c = 0; c < channels; ++c) {
-            if (channels > 1) {
-                position[3] = c;
-            }
+            double[] pixels = intensityImage.getIntensities(c);
+            double maxPixel = intensityImage.getMaxIntensity(c);
             byte[] outPixels = new byte[_width * _height];
 
-            // sum photon counts
-            double maxPixel = 0.0;
-            for (int x = 0; x < _width; ++x) {
-                position[0] = x;
-                for (int y = 0; y < _height; ++y) {
-                    position[1] = y;
-                    pixels[x][y] = 0.0;
-                    for (int b = 0; b < bins; ++b) {
-                        position[2] = b;
-
-                        cursor.setPosition(position);
-                        double photonCount = ((ComplexType) cursor.getType()).getRealDouble();
-                        pixels[x][y] += photonCount;
-                        
-                        // keep track of minimum
-                        if (0.0 < photonCount && photonCount < _minNonZeroPhotonCount) {
-                            _minNonZeroPhotonCount = photonCount;
-                        }
-                    }
-                    // keep track of maximum value and its coordinates
-                    if (pixels[x][y] > maxPixel) {
-                        maxPixel = pixels[x][y];
-                        _brightestPoint = new int[] { x , y };
-                    }
-                }
-            }
-
             // convert to grayscale
-            for (int x = 0; x < _width; ++x) {
-                for (int y = 0; y < _height; ++y) {
-                    outPixels[y * _width + x] = (byte) (pixels[x][y] * 255 / maxPixel);
-                }
+            for (int i = 0; i < pixels.length; ++i) {
+                outPixels[i] = (byte) (pixels[i] * 255 / maxPixel);
             }
 
             // add a slice
@@ -139,6 +94,13 @@ public class GrayScaleImage<T extends RealType<T>> implements IGrayScaleImage {
             _imageStack.addSlice("" + c, outPixels);
             _saveOutPixels[c] = outPixels;
         }
+        show(title);
+    }
+
+    /*
+     * Shows the image stack and listens for clicks.
+     */
+    private void show(String title) {
         ImagePlus imagePlus = new ImagePlus(title, _imageStack);
         _stackWindow = new MyStackWindow(imagePlus);
         _stackWindow.setVisible(true);
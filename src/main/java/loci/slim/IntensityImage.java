@@ -0,0 +1,342 @@
+//
+// IntensityImage.java
+//
+
+
+/*
+SLIMPlugin for combined spectral-lifetime image analysis.
+
+Copyright (c) 2010, UW-Madison LOCI
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the names of the ImageJDev.org developers nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package loci.slim;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import loci.slim.fitting.IDecayImage;
+
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.type.numeric.RealType;
+
+/**
+ * The IntensityImage sums the photon counts of each pixel of the input data.
+ * It also finds the minimum non-zero photon count and the brightest point and
+ * sums the decay curves of each channel.
+ * <p>
+ * Everything is computed in a single parallel pass, split into bands of rows
+ * of each channel.  Tiled data is split into bands of tile rows and read a
+ * tile at a time, so parallel tasks don't thrash the tile cache.  Display is
+ * left to GrayScaleImage.
+ *
+ * @author Aivar Grislis
+ */
+public class IntensityImage {
+    private static final int ROWS_PER_TASK = 4;
+    private final int _width;
+    private final int _height;
+    private final int _channels;
+    private final double[][] _intensities;
+    private int _bandHeight;
+    private int _bandWidth;
+    private int _bandsPerChannel;
+    private double[] _maxIntensities;
+    private double _minNonZeroPhotonCount;
+    private int[] _brightestPoint;
+    private double[][] _summedDecays;
+
+    /**
+     * Computes the intensity image of an imglib image.
+     * 
+     * @param image
+     * @param width
+     * @param height
+     * @param channels
+     * @param bins
+     * @param binIndex
+     * @return 
+     */
+    public static <T extends RealType<T>> IntensityImage compute(
+            final Image<T> image, final int width, final int height,
+            final int channels, final int bins, final int binIndex) {
+        IntensityImage intensityImage = new IntensityImage(width, height, channels);
+        intensityImage.compute(ROWS_PER_TASK, width,
+            new IDecayImageSource() {
+                @Override
+                public IDecayImage getDecayImage() {
+                    // cursors are not thread-safe, use one per task
+                    return new DecayImageWrapper<T>(image, width, height, channels, bins, binIndex, 1);
+                }
+            });
+        return intensityImage;
+    }
+
+    /**
+     * Computes the intensity image of decay data.
+     * 
+     * @param decayImage raw photon counts, must be thread-safe
+     * @return 
+     */
+    public static IntensityImage compute(final IDecayImage decayImage) {
+        int width = decayImage.getWidth();
+        int bandHeight = ROWS_PER_TASK;
+        int bandWidth = width;
+        if (decayImage instanceof TiledDecayImage) {
+            // one row of tiles per task, a tile at a time
+            bandHeight = bandWidth = ((TiledDecayImage) decayImage).getTileSize();
+        }
+        IntensityImage intensityImage = new IntensityImage(width,
+                decayImage.getHeight(), decayImage.getChannels());
+        intensityImage.compute(bandHeight, bandWidth,
+            new IDecayImageSource() {
+                @Override
+                public IDecayImage getDecayImage() {
+                    return decayImage;
+                }
+            });
+        return intensityImage;
+    }
+
+    private IntensityImage(int width, int height, int channels) {
+        _width = width;
+        _height = height;
+        _channels = channels;
+        _intensities = new double[channels][width * height];
+    }
+
+    public int getWidth() {
+        return _width;
+    }
+
+    public int getHeight() {
+        return _height;
+    }
+
+    public int getChannels() {
+        return _channels;
+    }
+
+    /**
+     * Gets summed photon counts of a channel, row by row.
+     * 
+     * @param channel
+     * @return 
+     */
+    public double[] getIntensities(int channel) {
+        return _intensities[channel];
+    }
+
+    /**
+     * Gets the greatest summed photon count of a channel.
+     * 
+     * @param channel
+     * @return 
+     */
+    public double getMaxIntensity(int channel) {
+        return _maxIntensities[channel];
+    }
+
+    /**
+     * Gets the minimum, non-zero photon count encountered in the image.
+     * 
+     * @return 
+     */
+    public double getMinNonZeroPhotonCount() {
+        return _minNonZeroPhotonCount;
+    }
+
+    /**
+     * Gets the coordinates of the brightest point in the image, over all
+     * channels.
+     * 
+     * @return { x, y }
+     */
+    public int[] getBrightestPoint() {
+        return _brightestPoint;
+    }
+
+    /**
+     * Gets the decay curve of a channel, summed over all pixels.
+     * 
+     * @param channel
+     * @return raw photon counts, a copy
+     */
+    public double[] getSummedDecay(int channel) {
+        return _summedDecays[channel].clone();
+    }
+
+    /*
+     * Sums all the rows of all the channels.
+     * 
+     * @param bandHeight rows per task
+     * @param bandWidth columns summed together within a band
+     */
+    private void compute(int bandHeight, int bandWidth, IDecayImageSource source) {
+        _bandHeight = bandHeight;
+        _bandWidth = bandWidth;
+        _bandsPerChannel = (_height + bandHeight - 1) / bandHeight;
+        ForkJoinPool forkJoinPool = new ForkJoinPool();
+        try {
+            Partial partial = forkJoinPool.invoke(
+                    new SumBandsTask(source, 0, _channels * _bandsPerChannel));
+            _maxIntensities = partial._maxIntensities;
+            _minNonZeroPhotonCount = partial._minNonZeroPhotonCount;
+            _brightestPoint = new int[] { partial._brightestX, partial._brightestY };
+            _summedDecays = partial._summedDecays;
+            for (int c = 0; c < _channels; ++c) {
+                if (null == _summedDecays[c]) {
+                    // nothing could be read
+                    _summedDecays[c] = new double[0];
+                }
+            }
+        }
+        finally {
+            forkJoinPool.shutdown();
+        }
+    }
+
+    /*
+     * Supplies decay data to a task.
+     */
+    private interface IDecayImageSource {
+        IDecayImage getDecayImage();
+    }
+
+    /*
+     * Results of summing some rows.
+     */
+    private class Partial {
+        double[] _maxIntensities = new double[_channels];
+        double _minNonZeroPhotonCount = Double.MAX_VALUE;
+        double _brightest = -1.0;
+        int _brightestX;
+        int _brightestY;
+        double[][] _summedDecays = new double[_channels][];
+
+        void combine(Partial other) {
+            for (int c = 0; c < _channels; ++c) {
+                _maxIntensities[c] = Math.max(_maxIntensities[c], other._maxIntensities[c]);
+                if (null == _summedDecays[c]) {
+                    _summedDecays[c] = other._summedDecays[c];
+                }
+                else if (null != other._summedDecays[c]) {
+                    for (int b = 0; b < _summedDecays[c].length; ++b) {
+                        _summedDecays[c][b] += other._summedDecays[c][b];
+                    }
+                }
+            }
+            _minNonZeroPhotonCount = Math.min(_minNonZeroPhotonCount, other._minNonZeroPhotonCount);
+            if (other._brightest > _brightest) {
+                _brightest = other._brightest;
+                _brightestX = other._brightestX;
+                _brightestY = other._brightestY;
+            }
+        }
+    }
+
+    /*
+     * Sums a range of bands of rows, numbered channel by channel, splitting in
+     * two until a single band.
+     */
+    private class SumBandsTask extends RecursiveTask<Partial> {
+        private final IDecayImageSource _source;
+        private final int _start;
+        private final int _stop;
+
+        SumBandsTask(IDecayImageSource source, int start, int stop) {
+            _source = source;
+            _start = start;
+            _stop = stop;
+        }
+
+        @Override
+        protected Partial compute() {
+            if (_stop - _start <= 1) {
+                return sumBand();
+            }
+            int middle = (_start + _stop) >>> 1;
+            SumBandsTask left = new SumBandsTask(_source, _start, middle);
+            left.fork();
+            Partial partial = new SumBandsTask(_source, middle, _stop).compute();
+            partial.combine(left.join());
+            return partial;
+        }
+
+        /*
+         * Sums a band, a column of bandWidth at a time.
+         */
+        private Partial sumBand() {
+            Partial partial = new Partial();
+            IDecayImage decayImage = _source.getDecayImage();
+            int[] location = new int[3];
+            int c = _start / _bandsPerChannel;
+            int startY = (_start % _bandsPerChannel) * _bandHeight;
+            int stopY = Math.min(_height, startY + _bandHeight);
+            double[] intensities = _intensities[c];
+            location[2] = c;
+            for (int startX = 0; startX < _width; startX += _bandWidth) {
+                int stopX = Math.min(_width, startX + _bandWidth);
+                for (int y = startY; y < stopY; ++y) {
+                    location[1] = y;
+                    for (int x = startX; x < stopX; ++x) {
+                        location[0] = x;
+                        double sum = 0.0;
+                        double[] decay = decayImage.getPixel(location);
+                        if (null != decay) {
+                            if (null == partial._summedDecays[c]) {
+                                partial._summedDecays[c] = new double[decay.length];
+                            }
+                            double[] summedDecay = partial._summedDecays[c];
+                            for (int b = 0; b < decay.length; ++b) {
+                                double photonCount = decay[b];
+                                sum += photonCount;
+                                summedDecay[b] += photonCount;
+                            
+                                // keep track of minimum
+                                if (0.0 < photonCount && photonCount < partial._minNonZeroPhotonCount) {
+                                    partial._minNonZeroPhotonCount = photonCount;
+                                }
+                            }
+                        }
+                        intensities[y * _width + x] = sum;
+                    
+                        // keep track of maximum values and coordinates
+                        if (sum > partial._maxIntensities[c]) {
+                            partial._maxIntensities[c] = sum;
+                        }
+                        if (sum > partial._brightest) {
+                            partial._brightest = sum;
+                            partial._brightestX = x;
+                            partial._brightestY = y;
+                        }
+                    }
+                }
+            }
+            return partial;
+        }
+    }
+}
@@ -0,0 +1,278 @@
+//
+// MappedDecayCube.java
+//
+
+
+/*
+SLIMPlugin for combined spectral-lifetime image analysis.
+
+Copyright (c) 2010, UW-Madison LOCI
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the names of the ImageJDev.org developers nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package loci.slim;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import loci.formats.FormatException;
+import loci.slim.fitting.IDecayImage;
+import loci.slim.preprocess.IIntensityProcessor;
+import loci.slim.preprocess.IProcessor;
+
+import mpicbg.imglib.image.Image;
+
+/**
+ * This class holds decay data in a memory-mapped scratch file, for data sets
+ * too large for the heap.
+ * <p>
+ * The layout is the same as DecayCube, bins of each pixel contiguous, as
+ * floats with increment applied.  The file is mapped in slabs of whole rows,
+ * each under the 2GB limit of a single mapping.  It is filled once, slab by
+ * slab, straight from Bio-Formats so the data never has to fit in the heap.
+ * Getting a pixel then reads from the page cache.  getPixel is safe to call
+ * from several threads at once.
+ * 
+ * @author Aivar Grislis
+ */
+public class MappedDecayCube implements IDecayImage, IIntensityProcessor {
+    private static final long MAX_SLAB_BYTES = 1L << 30;
+    private static final int MAX_BAND_PIXELS = 1 << 20;
+    private int _width;
+    private int _height;
+    private int _channels;
+    private int _bins;
+    private int _rowsPerSlab;
+    private int _slabsPerChannel;
+    private FloatBuffer[] _slabs;
+    private File _file;
+    private RandomAccessFile _randomAccessFile;
+
+    /**
+     * Creates and fills the scratch file.
+     * 
+     * @param planes source of the data
+     * @param increment each value is divided by this
+     * @throws FormatException
+     * @throws IOException 
+     */
+    public MappedDecayCube(DecayPlanes planes, int increment)
+            throws FormatException, IOException {
+        _width    = planes.getWidth();
+        _height   = planes.getHeight();
+        _channels = planes.getChannels();
+        _bins     = planes.getBins();
+        
+        long rowBytes = 4L * _width * _bins;
+        _rowsPerSlab = (int) Math.max(1, Math.min(_height, MAX_SLAB_BYTES / rowBytes));
+        _slabsPerChannel = (_height + _rowsPerSlab - 1) / _rowsPerSlab;
+        
+        _file = File.createTempFile("slim", ".cube");
+        _file.deleteOnExit();
+        _randomAccessFile = new RandomAccessFile(_file, "rw");
+        try {
+            FileChannel channel = _randomAccessFile.getChannel();
+            _slabs = new FloatBuffer[_channels * _slabsPerChannel];
+            long offset = 0;
+            for (int c = 0; c < _channels; ++c) {
+                for (int s = 0; s < _slabsPerChannel; ++s) {
+                    int rows = Math.min(_rowsPerSlab, _height - s * _rowsPerSlab);
+                    long size = rows * rowBytes;
+                    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, offset, size);
+                    buffer.order(ByteOrder.nativeOrder());
+                    _slabs[c * _slabsPerChannel + s] = buffer.asFloatBuffer();
+                    offset += size;
+                }
+            }
+            fill(planes, increment);
+        }
+        catch (IOException e) {
+            close();
+            throw e;
+        }
+        catch (FormatException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Gets width of image.
+     * 
+     * @return 
+     */
+    @Override
+    public int getWidth() {
+        return _width;
+    }
+
+    /**
+     * Gets height of image.
+     * @return 
+     */
+    @Override
+    public int getHeight() {
+        return _height;
+    }
+
+    /**
+     * Gets number of channels of image.
+     * 
+     * @return 
+     */
+    @Override
+    public int getChannels() {
+        return _channels;
+    }
+
+    /**
+     * Gets number of bins in decay curve of image.
+     * 
+     * @return 
+     */
+    @Override
+    public int getBins() {
+        return _bins;
+    }
+
+    /**
+     * Specifies a source IProcessor to be chained to this one.
+     * 
+     * @param processor 
+     */
+    @Override
+    public void chain(IProcessor processor) {
+        throw new UnsupportedOperationException("Can't chain to MappedDecayCube");
+    }
+
+    /**
+     * Gets input pixel decay curve.
+     * 
+     * @param location
+     * @return 
+     */
+    @Override
+    public double[] getPixel(int[] location) {
+        int y = location[1];
+        FloatBuffer slab = _slabs[location[2] * _slabsPerChannel + y / _rowsPerSlab];
+        int offset = ((y % _rowsPerSlab) * _width + location[0]) * _bins;
+        double[] decay = new double[_bins];
+        for (int i = 0; i < _bins; ++i) {
+            // absolute gets, no shared buffer position
+            decay[i] = slab.get(offset + i);
+        }
+        return decay;
+    }
+
+    /**
+     * Gets input pixel photon count, without building the decay curve.
+     * 
+     * @param location
+     * @param start first bin to count
+     * @param stop last bin to count
+     * @return 
+     */
+    @Override
+    public double getIntensity(int[] location, int start, int stop) {
+        int y = location[1];
+        FloatBuffer slab = _slabs[location[2] * _slabsPerChannel + y / _rowsPerSlab];
+        int offset = ((y % _rowsPerSlab) * _width + location[0]) * _bins;
+        double sum = 0.0;
+        for (int i = Math.max(start, 0); i <= Math.min(stop, _bins - 1); ++i) {
+            sum += slab.get(offset + i);
+        }
+        return sum;
+    }
+
+    /**
+     * Gets underlying image.  There is none, the data never passes through an
+     * imglib image.
+     * 
+     * @return null
+     */
+    @Override
+    public Image getImage() {
+        return null;
+    }
+
+    /**
+     * Releases the scratch file.
+     */
+    public void close() {
+        _slabs = null;
+        try {
+            _randomAccessFile.close();
+        }
+        catch (IOException e) {
+            System.out.println("Error closing " + _file + " " + e.getMessage()); //TODO IJ.log it!
+        }
+        _file.delete();
+    }
+
+    /*
+     * Copies the planes into the scratch file one slab at a time, so each slab
+     * stays in the page cache while all of its bins are written.
+     */
+    private void fill(DecayPlanes planes, int increment)
+            throws FormatException, IOException {
+        // plane for each channel and bin
+        int[][] planeIndices = new int[_channels][_bins];
+        for (int plane = 0; plane < planes.getPlanes(); ++plane) {
+            int channel = planes.getChannel(plane);
+            if (channel >= 0) {
+                planeIndices[channel][planes.getBin(plane)] = plane;
+            }
+        }
+        
+        // read in bands, to bound the heap used
+        int bandRows = Math.max(1, Math.min(_rowsPerSlab, MAX_BAND_PIXELS / _width));
+        float[] values = new float[bandRows * _width];
+        for (int c = 0; c < _channels; ++c) {
+            for (int s = 0; s < _slabsPerChannel; ++s) {
+                FloatBuffer slab = _slabs[c * _slabsPerChannel + s];
+                int startRow = s * _rowsPerSlab;
+                int rows = Math.min(_rowsPerSlab, _height - startRow);
+                for (int b = 0; b < _bins; ++b) {
+                    for (int band = 0; band < rows; band += bandRows) {
+                        int bandHeight = Math.min(bandRows, rows - band);
+                        planes.read(planeIndices[c][b], 0, startRow + band,
+                                _width, bandHeight, values, increment);
+                        int offset = band * _width;
+                        int pixels = bandHeight * _width;
+                        for (int i = 0; i < pixels; ++i) {
+                            slab.put((offset + i) * _bins + b, values[i]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
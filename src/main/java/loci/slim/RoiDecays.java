@@ -0,0 +1,249 @@
+//
+// RoiDecays.java
+//
+
+
+/*
+SLIMPlugin for combined spectral-lifetime image analysis.
+
+Copyright (c) 2010, UW-Madison LOCI
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the names of the ImageJDev.org developers nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package loci.slim;
+
+import ij.gui.Roi;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import loci.slim.fitting.IDecayImage;
+
+/**
+ * The RoiDecays sums the decay curves of all the pixels within each ROI.
+ * <p>
+ * The ROIs are rasterized once into label masks.  The decays of all ROIs and
+ * channels are then summed in a single parallel pass over the rows the ROIs
+ * cover.
+ *
+ * @author Aivar Grislis
+ */
+public class RoiDecays {
+    private static final int TASKS_PER_THREAD = 4;
+    private final int _width;
+    private final int _rois;
+    private final int[][] _labelMasks;
+    private final int[] _pixels;
+    private int _startY;
+    private int _stopY;
+
+    /**
+     * Constructor, rasterizes the ROIs.
+     * 
+     * @param rois
+     * @param width
+     * @param height 
+     */
+    public RoiDecays(Roi[] rois, int width, int height) {
+        _width = width;
+        _rois = rois.length;
+        _pixels = new int[_rois];
+        _startY = height;
+        _stopY = 0;
+        
+        // overlapping ROIs need more than one mask
+        List<int[]> labelMasks = new ArrayList<int[]>();
+        for (int r = 0; r < _rois; ++r) {
+            Rectangle bounds = rois[r].getBounds().intersection(new Rectangle(width, height));
+            for (int y = bounds.y; y < bounds.y + bounds.height; ++y) {
+                for (int x = bounds.x; x < bounds.x + bounds.width; ++x) {
+                    if (rois[r].contains(x, y)) {
+                        int index = y * width + x;
+                        int[] labelMask = null;
+                        for (int[] mask : labelMasks) {
+                            if (0 == mask[index]) {
+                                labelMask = mask;
+                                break;
+                            }
+                        }
+                        if (null == labelMask) {
+                            labelMask = new int[width * height];
+                            labelMasks.add(labelMask);
+                        }
+                        labelMask[index] = r + 1;
+                        ++_pixels[r];
+                        _startY = Math.min(_startY, y);
+                        _stopY = Math.max(_stopY, y + 1);
+                    }
+                }
+            }
+        }
+        _labelMasks = labelMasks.toArray(new int[0][]);
+    }
+
+    /**
+     * Gets the label masks.  Each mask holds the ROI number plus one for each
+     * pixel, or zero if none.  Later ROIs that overlap earlier ones are in
+     * later masks.
+     * 
+     * @return 
+     */
+    public int[][] getLabelMasks() {
+        return _labelMasks;
+    }
+
+    /**
+     * Gets the number of pixels within a ROI.
+     * 
+     * @param roi
+     * @return 
+     */
+    public int getPixels(int roi) {
+        return _pixels[roi];
+    }
+
+    /**
+     * Sums the decays within each ROI.
+     * 
+     * @param decayImage
+     * @param channels channels to sum
+     * @param threadSafe whether decay image may be read concurrently
+     * @return summed decays, indexed by channel index, ROI and bin
+     */
+    public double[][][] sum(IDecayImage decayImage, int[] channels, boolean threadSafe) {
+        double[][][] sums = null;
+        ForkJoinPool forkJoinPool = threadSafe ? new ForkJoinPool() : new ForkJoinPool(1);
+        try {
+            int rows = Math.max(0, _stopY - _startY);
+            int rowsPerTask = Math.max(1,
+                    rows / (forkJoinPool.getParallelism() * TASKS_PER_THREAD));
+            sums = forkJoinPool.invoke(
+                    new SumRowsTask(decayImage, channels, _startY, _stopY, rowsPerTask));
+        }
+        finally {
+            forkJoinPool.shutdown();
+        }
+        
+        // ROIs with no pixels or no data
+        for (double[][] channelSums : sums) {
+            for (int r = 0; r < _rois; ++r) {
+                if (null == channelSums[r]) {
+                    channelSums[r] = new double[decayImage.getBins()];
+                }
+            }
+        }
+        return sums;
+    }
+
+    /*
+     * Sums a range of rows, splitting in two until small enough.
+     */
+    private class SumRowsTask extends RecursiveTask<double[][][]> {
+        private final IDecayImage _decayImage;
+        private final int[] _channels;
+        private final int _start;
+        private final int _stop;
+        private final int _rowsPerTask;
+
+        SumRowsTask(IDecayImage decayImage, int[] channels, int start, int stop, int rowsPerTask) {
+            _decayImage = decayImage;
+            _channels = channels;
+            _start = start;
+            _stop = stop;
+            _rowsPerTask = rowsPerTask;
+        }
+
+        @Override
+        protected double[][][] compute() {
+            if (_stop - _start <= _rowsPerTask) {
+                return sumRows();
+            }
+            int middle = (_start + _stop) >>> 1;
+            SumRowsTask left = new SumRowsTask(_decayImage, _channels, _start, middle, _rowsPerTask);
+            left.fork();
+            double[][][] sums = new SumRowsTask(_decayImage, _channels, middle, _stop, _rowsPerTask).compute();
+            combine(sums, left.join());
+            return sums;
+        }
+
+        private double[][][] sumRows() {
+            double[][][] sums = new double[_channels.length][_rois][];
+            int[] location = new int[3];
+            for (int y = _start; y < _stop; ++y) {
+                location[1] = y;
+                for (int x = 0; x < _width; ++x) {
+                    int index = y * _width + x;
+                    
+                    // skip pixels outside all ROIs
+                    if (0 == _labelMasks[0][index]) {
+                        continue;
+                    }
+                    location[0] = x;
+                    for (int c = 0; c < _channels.length; ++c) {
+                        location[2] = _channels[c];
+                        double[] decay = _decayImage.getPixel(location);
+                        if (null == decay) {
+                            continue;
+                        }
+                        for (int[] labelMask : _labelMasks) {
+                            int label = labelMask[index];
+                            if (0 == label) {
+                                break;
+                            }
+                            double[] sum = sums[c][label - 1];
+                            if (null == sum) {
+                                sum = sums[c][label - 1] = new double[decay.length];
+                            }
+                            for (int b = 0; b < decay.length; ++b) {
+                                sum[b] += decay[b];
+                            }
+                        }
+                    }
+                }
+            }
+            return sums;
+        }
+
+        private void combine(double[][][] sums, double[][][] otherSums) {
+            for (int c = 0; c < sums.length; ++c) {
+                for (int r = 0; r < _rois; ++r) {
+                    double[] other = otherSums[c][r];
+                    if (null == sums[c][r]) {
+                        sums[c][r] = other;
+                    }
+                    else if (null != other) {
+                        for (int b = 0; b < other.length; ++b) {
+                            sums[c][r][b] += other[b];
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -43,7 +43,6 @@ import ij.process.ColorProcessor;
 import ij.process.ImageProcessor;
 
 import java.awt.Color;
-import java.awt.Rectangle;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Hashtable;
@@ -62,6 +61,7 @@ import loci.formats.FormatException;
 import loci.formats.FormatTools;
 import loci.formats.ImageReader;
 import loci.slim.analysis.SLIMAnalysis;
+import loci.slim.preprocess.ISLIMAdaptiveBinner;
 import loci.slim.preprocess.ISLIMBinner;
 import loci.slim.preprocess.SLIMBinning;
 import loci.slim.heuristics.FitterEstimator;
@@ -90,13 +90,17 @@ import loci.slim.fitting.config.Configuration;
 import loci.slim.fitting.cursor.FittingCursor;
 import loci.slim.fitting.cursor.FittingCursorHelper;
 import loci.slim.fitting.cursor.IFittingCursorListener;
+import loci.slim.fitting.engine.FitScheduler;
 import loci.slim.fitting.engine.IFittingEngine;
 import loci.slim.fitting.images.FittedImageParser;
+import loci.slim.fitting.metrics.FittingMetrics;
+import loci.slim.fitting.params.IFitResults;
 import loci.slim.fitting.params.IGlobalFitParams;
-import loci.slim.fitting.params.LocalFitParams;
-import loci.slim.fitting.params.GlobalFitParams;
 import loci.slim.fitting.params.ILocalFitParams;
-import loci.slim.fitting.params.IFitResults;
+import loci.slim.fitting.params.GlobalFitParams;
+import loci.slim.fitting.params.LocalFitParams;
+import loci.slim.fitting.params.PrimitiveFitBatch;
+import loci.slim.fitting.params.PrimitiveFitBatchPool;
 
 import loci.slim.fitting.FitInfo;
 import loci.slim.fitting.images.FittedImageFitter;
@@ -134,8 +138,11 @@ public class SLIMProcessor <T extends RealType<T>> {
     private static final boolean USE_TAU = true;
     private static final boolean USE_LAMBDA = false;
 
-    // this affects how many pixels we process at once
+    // this affects how many pixels we process at once, initially if adaptive
     private static final int PIXEL_COUNT = 128;
+    
+    // enough batches for those queued and in flight in the fitting pipeline
+    private static final int BATCHES_POOLED = 12;
 
     // Unicode special characters
     private static final Character CHI    = '\u03c7';
@@ -157,6 +164,8 @@ public class SLIMProcessor <T extends RealType<T>> {
 
     private static final String FILE_KEY = "file";
     private static final String PATH_KEY = "path";
+    private static final String ENGINE_KEY = "engine";
+    private static final String WORKERS_KEY = "workers";
     private String _file;
     private String _path;
     private Hashtable<String, Object> _globalMetadata;
@@ -190,6 +199,7 @@ public class SLIMProcessor <T extends RealType<T>> {
     private SLIMBinning _binning;
 
     private ExcitationPanel _excitationPanel = null;
+    private IntensityImage _intensityImage;
     private IGrayScaleImage _grayScaleImage;
     // user sets this from the grayScalePanel control
     private int _channel;
@@ -209,6 +219,10 @@ public class SLIMProcessor <T extends RealType<T>> {
     private float _chiSqTarget;
     
     private FitInfo _fitInfo;
+    private volatile FittingPipeline _fittingPipeline;
+    private IDecayImage _decayCube;
+    private String _decayFile;
+    private TiledDecayImage _tiledDecayImage;
 
     private int _debug = 0;
 
@@ -219,12 +233,16 @@ public class SLIMProcessor <T extends RealType<T>> {
         _cancel = false;
         _fitInProgress = false;
         _fitted = false;
+        getFittingEngineFromPreferences();
     }
 
     public void processImage(Image<T> image) {
         boolean success = false;
 
         _image = image;
+        _decayCube = null;
+        _decayFile = null;
+        _tiledDecayImage = null;
         if (getImageInfo(image)) {
             // show the UI; do fits
             doFits();
@@ -239,13 +257,24 @@ public class SLIMProcessor <T extends RealType<T>> {
     public void process(String arg) {
         boolean success = false;
         if (showFileDialog(getFileFromPreferences())) {
-            _image = loadImage(_path, _file);
-            if (null == _image) {
-                System.out.println("image is null");
+            _decayCube = null;
+            _decayFile = _path + _file;
+            
+            // read lazily, through a single reader, if possible
+            _tiledDecayImage = openDecayImage(_decayFile);
+            if (null != _tiledDecayImage) {
+                _image = null;
+                success = getImageInfo(_tiledDecayImage.getDecayPlanes());
             }
-            if (getImageInfo(_image)) {
+            else {
+                _image = loadImage(_path, _file);
+                if (null == _image) {
+                    System.out.println("image is null");
+                }
+                success = getImageInfo(_image);
+            }
+            if (success) {
                 savePathAndFileInPreferences(_path, _file);
-                success = true;
             }
         }
         
@@ -312,6 +341,11 @@ public class SLIMProcessor <T extends RealType<T>> {
                     if (null != _fitInfo) {
                         _fitInfo.setCancel(true);
                     }
+                    // abandon queued and in-flight pixels right away
+                    FittingPipeline fittingPipeline = _fittingPipeline;
+                    if (null != fittingPipeline) {
+                        fittingPipeline.cancel();
+                    }
                 }
                 
                 /**
@@ -348,10 +382,7 @@ public class SLIMProcessor <T extends RealType<T>> {
                     }
                     int x = uiPanel.getX();
                     int y = uiPanel.getY();
-                    double[] values = new double[_bins];
-                    for (int b = 0; b < _bins; ++b) {
-                        values[b] = getData(_cursor, channel, x, y, b);
-                    }
+                    double[] values = getCursorDecay(uiPanel, channel, x, y);
                     Excitation excitation = ExcitationFileHandler.getInstance().createExcitation(fileName, values, _timeRange);
                     return updateExcitation(uiPanel, excitation);
                 }
@@ -381,10 +412,7 @@ public class SLIMProcessor <T extends RealType<T>> {
                     if (null != _excitationPanel) {
                         prompt = _excitationPanel.getRawValues();
                     }
-                    double[] decay = new double[_bins];
-                    for (int b = 0; b < _bins; ++b) {
-                        decay[b] = getData(_cursor, _channel, _x, _y, b);
-                    }
+                    double[] decay = getCursorDecay(_uiPanel, _channel, _x, _y);
                     
                     double chiSqTarget = _uiPanel.getChiSquareTarget();
                     System.out.println("chiSqTarget is " + chiSqTarget);
@@ -429,27 +457,49 @@ public class SLIMProcessor <T extends RealType<T>> {
         uiPanel.getFrame().setLocationRelativeTo(null);
         uiPanel.getFrame().setVisible(true);
 
-        // create a grayscale image from the data
-        _grayScaleImage = new GrayScaleImage(_image);
+        // sum the photon counts, then show them as a grayscale image
+        String title = _file;
+        if (null != _image) {
+            _intensityImage = IntensityImage.compute(_image, _width, _height, _channels, _bins, _binIndex);
+            title = _image.getName();
+            int spaceIndex = title.indexOf(" ");
+            if (0 < spaceIndex) {
+                title = title.substring(0, spaceIndex);
+            }
+        }
+        else {
+            _intensityImage = IntensityImage.compute(_tiledDecayImage);
+        }
+        _grayScaleImage = new GrayScaleImage(title, _intensityImage);
         _grayScaleImage.setListener(
             new ISelectListener() {
                 @Override
                 public void selected(int channel, int x, int y) {
-                    // just ignore clicks during a fit
-                    if (!_fitInProgress) {
+                    // ignore clicks during a fit, except for image fits
+                    if (!_fitInProgress || null != _fittingPipeline) {
+                        // one interactive fit at a time; preempts image fits
                         synchronized (_synchFit) {
-                            float zoomFactor = ((GrayScaleImage)_grayScaleImage).getZoomFactor();
-                            x *= zoomFactor;
-                            y *= zoomFactor;
+                            FitScheduler.getInstance().beginInteractive();
+                            try {
+                                float zoomFactor = ((GrayScaleImage)_grayScaleImage).getZoomFactor();
+                                x *= zoomFactor;
+                                y *= zoomFactor;
                             
-                            _x = x;
-                            _y = y; //TODO ARG 4/6/12 trying to fix my flakey bug
+                                _x = x;
+                                _y = y; //TODO ARG 4/6/12 trying to fix my flakey bug
                             
-                            uiPanel.setX(x);
-                            uiPanel.setY(y);
-                            getFitSettings(_grayScaleImage, uiPanel, _fittingCursor);
-                            // fit on the pixel clicked
-                            fitPixel(uiPanel, _fittingCursor);
+                                uiPanel.setX(x);
+                                uiPanel.setY(y);
+                                if (!_fitInProgress) {
+                                    // a running image fit keeps its settings
+                                    getFitSettings(_grayScaleImage, uiPanel, _fittingCursor);
+                                }
+                                // fit on the pixel clicked
+                                fitPixel(uiPanel, _fittingCursor);
+                            }
+                            finally {
+                                FitScheduler.getInstance().endInteractive();
+                            }
                         }
                     }
                 }
@@ -487,12 +537,15 @@ public class SLIMProcessor <T extends RealType<T>> {
                 }
             }
 
-            //uiPanel.enable(false); //TODO this might be better to be same as grayScalePanel
-            _grayScaleImage.enable(false);
-
             // get settings of requested fit
             getFitSettings(_grayScaleImage, uiPanel, _fittingCursor);
 
+            //uiPanel.enable(false); //TODO this might be better to be same as grayScalePanel
+            // still allow clicking on pixels during image fits
+            if (FitRegion.EACH != _region) {
+                _grayScaleImage.enable(false);
+            }
+
             // do the fit
             System.out.println("// do the fit!!!");
             fitData(uiPanel);
@@ -509,6 +562,22 @@ public class SLIMProcessor <T extends RealType<T>> {
         _grayScaleImage.setListener(null);
         //TODO uiPanel is still hooked up as start stop listeners to decay curves!
         uiPanel.getFrame().setVisible(false);
+        closeDecayImage();
+    }
+
+    /*
+     * Releases the backing file of a MappedDecayCube and the reader of a
+     * TiledDecayImage.
+     */
+    private synchronized void closeDecayImage() {
+        if (_decayCube instanceof MappedDecayCube) {
+            ((MappedDecayCube) _decayCube).close();
+        }
+        _decayCube = null;
+        if (null != _tiledDecayImage) {
+            _tiledDecayImage.close();
+            _tiledDecayImage = null;
+        }
     }
 
     /**
@@ -523,10 +592,7 @@ public class SLIMProcessor <T extends RealType<T>> {
         if (null != _grayScaleImage) {
             channel = _grayScaleImage.getChannel();
         }
-        double[] decay = new double[_bins];
-        for (int b = 0; b < _bins; ++b) {
-            decay[b] = getData(_cursor, channel, _x, _y, b);
-        }
+        double[] decay = getCursorDecay(uiPanel, channel, _x, _y);
         int[] results = CursorEstimator.estimateDecayCursors(_timeRange, decay);
         int transientStart = results[CursorEstimator.TRANSIENT_START];
         int dataStart = results[CursorEstimator.DATA_START];
@@ -547,21 +613,47 @@ public class SLIMProcessor <T extends RealType<T>> {
      */
     private double[] getSummedDecay() {
         double[] decay = new double[_bins];
-        for (int i = 0; i < decay.length; ++i) {
-            decay[i] = 0.0;
-        }
-        for (int y = 0; y < _height; ++y) {
-            for (int x = 0; x < _width; ++x) {
-                for (int c = 0; c < _channels; ++c) {
-                    for (int b = 0; b < _bins; ++b) {
-                        decay[b] += getData(_cursor, c, x, y, b);
-                    }
-                }
+        for (int c = 0; c < _channels; ++c) {
+            double[] channelDecay = getSummedDecay(c);
+            for (int b = 0; b < _bins; ++b) {
+                decay[b] += channelDecay[b];
             }
         }
         return decay;
     }
 
+    /**
+     * This method gets the decay summed over all pixels of a channel.
+     * <p>
+     * The sums are gathered once along with the intensity image, whenever the
+     * data is loaded.
+     * 
+     * @param channel
+     * @return 
+     */
+    private double[] getSummedDecay(int channel) {
+        double[] decay = _intensityImage.getSummedDecay(channel);
+        if (decay.length < _bins) {
+            // couldn't read it
+            decay = new double[_bins];
+        }
+        for (int b = 0; b < _bins; ++b) {
+            decay[b] /= _minNonZeroPhotonCount;
+        }
+        return decay;
+    }
+
+    /*
+     * Gets the decay curve to estimate cursors from.  This is the summed decay
+     * when fitting the summed image.
+     */
+    private double[] getCursorDecay(IUserInterfacePanel uiPanel, int channel, int x, int y) {
+        if (null != _intensityImage && FitRegion.SUMMED == uiPanel.getRegion()) {
+            return getSummedDecay(channel);
+        }
+        return getDecay(channel, x, y);
+    }
+
     /*
      * This method is called when a new excitation is loaded.
      */
@@ -578,10 +670,7 @@ public class SLIMProcessor <T extends RealType<T>> {
             if (null != _grayScaleImage) {
                 channel = _grayScaleImage.getChannel();
             }
-            double[] decay = new double[_bins];
-            for (int b = 0; b < _bins; ++b) {
-                decay[b] = getData(_cursor, channel, _x, _y, b);
-            }
+            double[] decay = getCursorDecay(uiPanel, channel, _x, _y);
 
             double chiSqTarget = uiPanel.getChiSquareTarget();
             System.out.println("chiSqTarget is " + chiSqTarget);
@@ -643,6 +732,27 @@ public class SLIMProcessor <T extends RealType<T>> {
         return true;
     }
 
+    /*
+     * Opens a file for lazy reading, with a single reader for both metadata
+     * and data.
+     * 
+     * @return null if the reader can't find lifetime data
+     */
+    private TiledDecayImage openDecayImage(String fileName) {
+        TiledDecayImage decayImage = null;
+        try {
+            // raw photon counts, like the cursor
+            decayImage = new TiledDecayImage(DecayPlanes.open(fileName), 1);
+        }
+        catch (IOException e) {
+            System.out.println("Can't read " + fileName + " lazily " + e.getMessage());
+        }
+        catch (FormatException e) {
+            System.out.println("Can't read " + fileName + " lazily " + e.getMessage());
+        }
+        return decayImage;
+    }
+
     private Image<T> loadImage(String path, String file) {
         boolean threwException = false;
         ImageOpener imageOpener = new ImageOpener();
@@ -706,7 +816,29 @@ public class SLIMProcessor <T extends RealType<T>> {
         _binIndex = 2;
         System.out.println("width " + _width + " height " + _height + " timeBins " + _bins + " channels " + _channels);
         _cursor = image.createLocalizableByDimCursor();
-        
+        getTimeRange();
+        return true;
+    }
+
+    private boolean getImageInfo(DecayPlanes planes) {
+        _globalMetadata = planes.getGlobalMetadata();
+        _width = planes.getWidth();
+        _height = planes.getHeight();
+        _channels = planes.getChannels();
+        _hasChannels = _channels > 1;
+        _channelIndex = 3;
+        _bins = planes.getBins();
+        _binIndex = 2;
+        System.out.println("width " + _width + " height " + _height + " timeBins " + _bins + " channels " + _channels);
+        _cursor = null;
+        getTimeRange();
+        return true;
+    }
+
+    /*
+     * Gets the time range of a bin and the increment from the metadata.
+     */
+    private void getTimeRange() {
         _timeRange = 10.0f;
         if (null != _globalMetadata) {
             Number timeBase = (Number) _globalMetadata.get("time base");
@@ -721,8 +853,6 @@ public class SLIMProcessor <T extends RealType<T>> {
             }
         }
         _timeRange /= _bins;
-
-        return true;
     }
 
     /**
@@ -739,6 +869,39 @@ public class SLIMProcessor <T extends RealType<T>> {
        return new String[] { prefs.get(PATH_KEY, ""), prefs.get(FILE_KEY, "") };
     }
 
+    /**
+     * Selects the fitting engine from Java Preferences, if set.  The "engine"
+     * is THREADED, FORK_JOIN or SHARDED; "workers" lists the host:port of
+     * each FittingWorker for SHARDED.
+     */
+    private void getFittingEngineFromPreferences() {
+        Preferences prefs = Preferences.userNodeForPackage(this.getClass());
+        String engine = prefs.get(ENGINE_KEY, "").trim();
+        String workers = prefs.get(WORKERS_KEY, "").trim();
+        if (0 == engine.length()) {
+            return;
+        }
+        Configuration configuration = Configuration.getInstance();
+        try {
+            Configuration.FittingEngineType type = Configuration.FittingEngineType.valueOf(engine);
+            List<String> workerAddresses = new ArrayList<String>();
+            for (String workerAddress : workers.split("[\\s,]+")) {
+                if (workerAddress.length() > 0) {
+                    workerAddresses.add(workerAddress);
+                }
+            }
+            if (Configuration.FittingEngineType.SHARDED == type && workerAddresses.isEmpty()) {
+                System.out.println("Fitting engine SHARDED needs workers"); //TODO IJ.log it!
+                return;
+            }
+            configuration.setWorkerAddresses(workerAddresses);
+            configuration.setFittingEngineType(type);
+        }
+        catch (IllegalArgumentException e) {
+            System.out.println("Unknown fitting engine " + engine); //TODO IJ.log it!
+        }
+    }
+
     /**
      * Saves the path and file names to Java Preferences.
      *
@@ -755,30 +918,40 @@ public class SLIMProcessor <T extends RealType<T>> {
      * Fits the data as requested by UI.
      */
     private void fitData(IUserInterfacePanel uiPanel) {
+        FitRegion region = _region;
         Image<DoubleType> fittedImage = null;
-        // only one fit at a time
-        synchronized (_synchFit) {
-            
-            switch (_region) {
-                case SUMMED:
-                    // sum all pixels
-                    fittedImage = fitSummed(uiPanel);
-                    break;
-                case ROI:
-                    // fit summed ROIs
-                    fittedImage = fitROIs(uiPanel);
-                    break;
-                case POINT:
-                    // fit single pixel
-                    fittedImage = fitPixel(uiPanel, _x, _y);
-                    break;
-                case EACH:
-                    // fit every pixel
-                    fittedImage = fitImage(uiPanel);
-                    break;
+        if (FitRegion.EACH == region) {
+            // fit every pixel; interactive fits preempt this
+            fittedImage = fitImage(uiPanel);
+        }
+        else {
+            // only one interactive fit at a time
+            synchronized (_synchFit) {
+                FitScheduler.getInstance().beginInteractive();
+                try {
+                    switch (region) {
+                        case SUMMED:
+                            // sum all pixels
+                            fittedImage = fitSummed(uiPanel);
+                            break;
+                        case ROI:
+                            // fit summed ROIs
+                            fittedImage = fitROIs(uiPanel);
+                            break;
+                        case POINT:
+                            // fit single pixel
+                            fittedImage = fitPixel(uiPanel, _x, _y);
+                            break;
+                    }
+                }
+                finally {
+                    FitScheduler.getInstance().endInteractive();
+                }
             }
         }
         if (null != fittedImage) {
+            // some analyses also save the fit settings
+            _analysis.setFitInfo(FitRegion.EACH == region ? _fitInfo : getFitInfo(uiPanel));
             for (String analysis : uiPanel.getAnalysisList()) {
                 _analysis.doAnalysis(analysis, fittedImage, uiPanel.getRegion(), uiPanel.getFunction()); //TODO get from uiPanel or get from global?  re-evaluate approach here
             }
@@ -814,15 +987,11 @@ public class SLIMProcessor <T extends RealType<T>> {
         return fitInfo;
     }
 
-    /**
-     * Fits all the pixels in the image.  Gets fit settings from the UI panel
-     * and various globals.
-     * 
-     * @param uiPanel
-     * @return 
+    /*
+     * Gets fit settings from the UI panel, the fitting cursor and the
+     * excitation.
      */
-    private Image<DoubleType> fitImage(IUserInterfacePanel uiPanel) {
-        // get fit settings from the UI panel
+    private FitInfo getFitInfo(IUserInterfacePanel uiPanel) {
         FitInfo fitInfo = getFitInfo(_grayScaleImage, uiPanel, _fittingCursor);
         fitInfo.setXInc(_timeRange);
         if (_fittingCursor.getHasPrompt() && null != _excitationPanel) {
@@ -837,11 +1006,46 @@ public class SLIMProcessor <T extends RealType<T>> {
             double[] values = _excitationPanel.getValues(modStartIndex /*startIndex*/, modStopIndex /*stopIndex*/, base);
             fitInfo.setPrompt(values);
         }
+        return fitInfo;
+    }
+
+    /*
+     * Sets up global, image-wide fit parameters.
+     */
+    private IGlobalFitParams getGlobalFitParams(FitInfo fitInfo) {
+        //TODO revisit all of these
+        IGlobalFitParams globalFitParams = new GlobalFitParams();
+        globalFitParams.setEstimator(new FitterEstimator());
+        globalFitParams.setFitAlgorithm(fitInfo.getAlgorithm());
+        globalFitParams.setFitFunction(fitInfo.getFunction());
+        globalFitParams.setNoiseModel(fitInfo.getNoiseModel());
+        globalFitParams.setTransientStart(fitInfo.getTransientStart());
+        globalFitParams.setDataStart(fitInfo.getDataStart());
+        globalFitParams.setTransientStop(fitInfo.getTransientStop());
+        globalFitParams.setXInc(fitInfo.getXInc());
+        globalFitParams.setPrompt(fitInfo.getPrompt());
+        globalFitParams.setStartPrompt(fitInfo.getStartPrompt());
+        globalFitParams.setStopPrompt(fitInfo.getStopPrompt());
+        globalFitParams.setChiSquareTarget(fitInfo.getChiSquareTarget());
+        globalFitParams.setFree(fitInfo.getFree());
+        return globalFitParams;
+    }
+
+    /**
+     * Fits all the pixels in the image.  Gets fit settings from the UI panel
+     * and various globals.
+     * 
+     * @param uiPanel
+     * @return 
+     */
+    private Image<DoubleType> fitImage(IUserInterfacePanel uiPanel) {
+        // get fit settings from the UI panel
+        FitInfo fitInfo = getFitInfo(uiPanel);
         fitInfo.setIndexColorModel(HistogramTool.getIndexColorModel());
         _fitInfo = fitInfo;
         
         // set up images
-        IDecayImage decayImage = new DecayImageWrapper(_image, _width, _height, _channels, _bins, _binIndex, _increment);
+        IDecayImage decayImage = getDecayImage(true);
         IFittedImage previousImage = null;
         int width = decayImage.getWidth();
         int height = decayImage.getHeight();
@@ -857,6 +1061,9 @@ public class SLIMProcessor <T extends RealType<T>> {
         ISLIMBinner binner = _binning.getBinner(uiPanel.getBinning());
         if (null != binner) {
             binner.init(_width, _height);
+            if (binner instanceof ISLIMAdaptiveBinner) {
+                ((ISLIMAdaptiveBinner) binner).setTarget(fitInfo.getDataStart(), fitInfo.getTransientStop(), fitInfo.getThreshold());
+            }
             binner.chain(processor);
             processor = binner;
         }
@@ -933,142 +1140,176 @@ public class SLIMProcessor <T extends RealType<T>> {
         }
   
         // set up global, image-wide fit parameters
-        //TODO revisit all of these
-        IGlobalFitParams globalFitParams = new GlobalFitParams();
-        globalFitParams.setEstimator(new FitterEstimator());
-        globalFitParams.setFitAlgorithm(fitInfo.getAlgorithm());
-        globalFitParams.setFitFunction(fitInfo.getFunction());
-        globalFitParams.setNoiseModel(fitInfo.getNoiseModel());
-        globalFitParams.setTransientStart(fitInfo.getTransientStart());
-        globalFitParams.setDataStart(fitInfo.getDataStart());
-        globalFitParams.setTransientStop(fitInfo.getTransientStop());
-        globalFitParams.setXInc(fitInfo.getXInc());
-        globalFitParams.setPrompt(fitInfo.getPrompt());
-        globalFitParams.setStartPrompt(fitInfo.getStartPrompt());
-        globalFitParams.setStopPrompt(fitInfo.getStopPrompt());
-        globalFitParams.setChiSquareTarget(fitInfo.getChiSquareTarget());
-        globalFitParams.setFree(fitInfo.getFree());
+        IGlobalFitParams globalFitParams = getGlobalFitParams(fitInfo);
      
         // initialize class used for 'chunky pixel' effect
         IChunkyPixelTable chunkyPixelTable = new ChunkyPixelTableImpl();
         
-        List<ChunkyPixel> pixelList = new ArrayList<ChunkyPixel>();       
-        List<ILocalFitParams> localFitParamsList = new ArrayList<ILocalFitParams>();
+        // batches of pixels are recycled, not allocated per pixel
+        double[] initialParams = fitInfo.getParameters();
+        PrimitiveFitBatchPool batchPool = new PrimitiveFitBatchPool
+                (bins, initialParams.length, BATCHES_POOLED);
+        
+        // size batches of pixels according to measured fit speed?
+        AdaptiveBatcher batcher = null;
+        int batchSize = PIXEL_COUNT;
+        if (Configuration.getInstance().getAdaptiveBatching()) {
+            batcher = new AdaptiveBatcher(
+                    Configuration.getInstance().getThreads(), PIXEL_COUNT);
+        }
+        
+        // time this fit
+        FittingMetrics metrics = fittingEngine.getMetrics();
+        metrics.reset(Configuration.getInstance().getThreads());
+        long metricsDumpMillis = Configuration.getInstance().getMetricsDumpMillis();
+        if (metricsDumpMillis > 0) {
+            metrics.startDump(metricsDumpMillis);
+        }
+        
+        // fitting and drawing overlap pixel extraction on this thread
+        FittingPipeline pipeline = new FittingPipeline(fittingEngine,
+                globalFitParams, imageColorizer, newImage, batcher, batchPool);
+        pipeline.start();
+        _fittingPipeline = pipeline;
+        if (fitInfo.getCancel()) {
+            // cancelled before the pipeline was published
+            pipeline.cancel();
+        }
        
+        PrimitiveFitBatch batch = batchPool.acquire(batchSize);
+        
+        // reused for every pixel; binners move it about
+        int[] inputLocation = new int[3];
+        
         // loop over all channels or just the current one
         for (int c : getChannelIndices(fitAllChannels, channel, channels)) {
             // 'chunky pixel' effect: draw staggered pixels, not sequential
             ChunkyPixelEffectIterator pixelIterator =
                     new ChunkyPixelEffectIterator(chunkyPixelTable, width, height);
             
-            while (!fitInfo.getCancel() && pixelIterator.hasNext()) {
+            while (!fitInfo.getCancel() && !pipeline.isCancelled()
+                    && pixelIterator.hasNext()) {
                 IJ.showProgress(++pixelCount, totalPixelCount);
                 ChunkyPixel pixel = pixelIterator.next();
 
                 // compute full location information
                 int x = pixel.getX();
                 int y = pixel.getY();
-                int[] inputLocation = new int[] { x, y, c };
-                int[] outputLocation = new int[] { x, y, fitAllChannels ? c : 0 };
+                inputLocation[0] = x;
+                inputLocation[1] = y;
+                inputLocation[2] = c;
 
                 double[] decay = processor.getPixel(inputLocation);
                 
                 // fit this pixel?
                 if (null != decay) {
-                    // set up local, pixel fit parameters
-                    ILocalFitParams localFitParams = new LocalFitParams();
-                    localFitParams.setY(decay);
-                    localFitParams.setSig(null);
-                    localFitParams.setParams(fitInfo.getParameters());
-                    double[] yFitted = new double[bins];
-                    localFitParams.setYFitted(yFitted);
-                    
-                    pixel.setInputLocation(inputLocation);
-                    pixel.setOutputLocation(outputLocation);
-                    pixelList.add(pixel);
-                    localFitParamsList.add(localFitParams);
+                    batch.add(decay, initialParams, x, y, fitAllChannels ? c : 0);
                     
-                    if (++pixelsToProcessCount >= PIXEL_COUNT) {
+                    if (++pixelsToProcessCount >= batchSize) {
                         pixelsToProcessCount = 0;
                         
-                        ChunkyPixel[] pixelArray = pixelList.toArray(new ChunkyPixel[0]);
-                        pixelList.clear();
-                        ILocalFitParams[] localFitParamsArray = localFitParamsList.toArray(new ILocalFitParams[0]);
-                        localFitParamsList.clear();
+                        // blocks if fitting falls behind
+                        pipeline.put(batch);
                         
-                        processPixels(fittingEngine, pixelArray, globalFitParams, localFitParamsArray, imageColorizer, newImage);
+                        if (null != batcher) {
+                            batchSize = batcher.getBatchSize();
+                        }
+                        batch = batchPool.acquire(batchSize);
                     }
                 }
             }
         }
         
-        if (fitInfo.getCancel()) {
+        if (!fitInfo.getCancel() && !pipeline.isCancelled()) {
+            if (pixelsToProcessCount > 0) {
+                pipeline.put(batch);
+            }
+            
+            // wait for fitting and drawing to catch up; may still be cancelled
+            pipeline.finish();
+        }
+        _fittingPipeline = null;
+        if (metricsDumpMillis > 0) {
+            metrics.stopDump();
+            System.out.println(metrics.toString()); //TODO IJ.log it!
+        }
+        
+        if (fitInfo.getCancel() || pipeline.isCancelled()) {
+            pipeline.cancel();
+            pipeline.join();
             IJ.showProgress(0, 0);
-            cancelImageFit();
+            cancelImageFit(newImage);
             if (null != imageColorizer) {
                 imageColorizer.cancelFit();
             }
             return null;
         }
-        else {
-            if (pixelsToProcessCount > 0) {
-                ChunkyPixel[] pixelArray = pixelList.toArray(new ChunkyPixel[0]);
-                ILocalFitParams[] localFitParamsArray = localFitParamsList.toArray(new ILocalFitParams[0]);
-                processPixels(fittingEngine, pixelArray, globalFitParams, localFitParamsArray, imageColorizer, newImage);
-            }
-            if (null != imageColorizer) {
-                imageColorizer.endFit();
-            }
+        
+        if (null != imageColorizer) {
+            imageColorizer.endFit();
         }
 
         return newImage.getImage();
     }
 
-    /**
-     * Helper function that processes an array of pixels.  When creating
-     * colorized images from fit parameters, the histogram and images are
-     * updated at the end of this function.
-     *
-     * @param fittingEngine
-     * @param pixels
-     * @param globalFitParams
-     * @param localFitParams
-     * @param imageColorizer
-     * @param fittedImage
+    /*
+     * Gets the decay data.
+     * 
+     * Data read lazily is read a tile at a time for a few pixels.  Otherwise,
+     * or to fit the whole image, if there is room the data is copied once
+     * into a DecayCube, which is fast and may be shared by concurrent fits.
+     * If not, data from a file is copied once into a memory-mapped
+     * MappedDecayCube.  Failing that each caller gets its own wrapper, since
+     * wrapper cursors are not thread-safe.
      */
-    private void processPixels(
-            IFittingEngine fittingEngine,
-            ChunkyPixel[] pixels,
-            IGlobalFitParams globalFitParams,
-            ILocalFitParams[] localFitParams,
-            FittedImageFitter imageColorizer,
-            IFittedImage fittedImage) {
-
-        //TODO use Lists or just arrays? This just converts from array to List.
-        List<ILocalFitParams> localFitParamsList = new ArrayList<ILocalFitParams>();
-        for (ILocalFitParams lFP : localFitParams) {
-            localFitParamsList.add(lFP);
-        }
-        
-        List<IFitResults> resultsList =
-                fittingEngine.fit(globalFitParams, localFitParamsList);
-
-        for (int i = 0; i < resultsList.size(); ++i) {
-            IFitResults result = resultsList.get(i);
-            double[] results = result.getParams();
-            ChunkyPixel p = pixels[i];
-            int[] location = p.getOutputLocation();
-         
-            // if producing colorized images, feed this pixel to colorizer
-            if (null != imageColorizer) {
-                imageColorizer.updatePixel(location, results);
+    private synchronized IDecayImage getDecayImage(boolean wholeImage) {
+        if (null != _decayCube) {
+            return _decayCube;
+        }
+        if (null != _tiledDecayImage && !wholeImage) {
+            // shares the tile cache
+            return new TiledDecayImage(_tiledDecayImage, _increment);
+        }
+        if (null != _image && DecayCube.fitsInMemory(_width, _height, _channels, _bins)) {
+            _decayCube = new DecayCube(_image, _width, _height, _channels, _bins, _binIndex, _increment);
+            return _decayCube;
+        }
+        if (null != _decayFile) {
+            // lazy reader is already open
+            DecayPlanes planes = null;
+            if (null != _tiledDecayImage) {
+                planes = _tiledDecayImage.getDecayPlanes();
+            }
+            try {
+                if (null == planes) {
+                    planes = DecayPlanes.open(_decayFile);
+                }
+                if (DecayCube.fitsInMemory(_width, _height, _channels, _bins)) {
+                    _decayCube = new DecayCube(planes, _increment);
+                }
+                else {
+                    _decayCube = new MappedDecayCube(planes, _increment);
+                }
+                return _decayCube;
+            }
+            catch (IOException e) {
+                System.out.println("Can't copy " + _decayFile + " " + e.getMessage()); //TODO IJ.log it!
+            }
+            catch (FormatException e) {
+                System.out.println("Can't copy " + _decayFile + " " + e.getMessage()); //TODO IJ.log it!
             }
-            fittedImage.setPixel(location, results);
+            finally {
+                if (null != planes && null == _tiledDecayImage) {
+                    planes.close();
+                }
+            }
+            // don't try again
+            _decayFile = null;
         }
-
-        if (null != imageColorizer) {
-            imageColorizer.recalcHistogram();
+        if (null != _tiledDecayImage) {
+            return new TiledDecayImage(_tiledDecayImage, _increment);
         }
+        return new DecayImageWrapper(_image, _width, _height, _channels, _bins, _binIndex, _increment);
     }
 
     /*
@@ -1089,25 +1330,12 @@ public class SLIMProcessor <T extends RealType<T>> {
         for (int channel : getChannelIndices(_fitAllChannels, _channel, _channels)) {
             curveFitData = new CurveFitData();
             curveFitData.setParams(params.clone()); //TODO NO NO NO s/b either from UI or fitted point or fitted whole image
-            yCount = new double[_bins];
-            for (int b = 0; b < _bins; ++b) {
-                yCount[b] = 0.0;
-            }
-
-            // count photons and pixels
-            int pixels = 0;
-
             // sum this channel
-            for (int y = 0; y < _height; ++y) {
-                for (int x = 0; x < _width; ++x) {
-                    for (int b = 0; b < _bins; ++b) {
-                        double count = getData(_cursor, _channel, x, y, b);
-                        yCount[b] += count;
-                        photons += (int) count;
-                    }
-                    ++pixels;
-                }
+            yCount = getSummedDecay(channel);
+            for (int b = 0; b < _bins; ++b) {
+                photons += (int) yCount[b];
             }
+            int pixels = _width * _height;
             curveFitData.setYCount(yCount);
             curveFitData.setTransStartIndex(0);
             curveFitData.setDataStartIndex(_startBin);
@@ -1153,72 +1381,80 @@ public class SLIMProcessor <T extends RealType<T>> {
     private Image<DoubleType> fitROIs(IUserInterfacePanel uiPanel) {
         Image<DoubleType> fittedPixels = null;
         double params[] = uiPanel.getParameters();
+        Roi[] rois = getRois();
+        int[] channelIndices = getChannelIndices(_fitAllChannels, _channel, _channels);
+        
+        // rasterize the ROIs once, then sum all their decays in one pass
+        RoiDecays roiDecays = new RoiDecays(rois, _width, _height);
+        IDecayImage decayImage = getDecayImage(false);
+        boolean threadSafe = !(decayImage instanceof DecayImageWrapper);
+        double[][][] decays = roiDecays.sum(decayImage, channelIndices, threadSafe);
         
         // build the data
-        ArrayList<ICurveFitData> curveFitDataList = new ArrayList<ICurveFitData>();
-        ICurveFitData curveFitData;
-        double yCount[];
-        double yFitted[];
-        int[] photons = new int[getRois().length];
-        for (int i = 0; i < photons.length; ++i) {
-            photons[i] = 0;
-        }
-
-        // loop over all channels or just the current one
-        for (int channel : getChannelIndices(_fitAllChannels, _channel, _channels)) {
-            int roiNumber = 1;
-            for (Roi roi: getRois()) {
-                curveFitData = new CurveFitData();
-                curveFitData.setParams(params.clone());
-                yCount = new double[_bins];
-                for (int b = 0; b < _bins; ++b) {
-                    yCount[b] = 0.0;
-                }
-                Rectangle bounds = roi.getBounds();
-                int pixels = 0;
-                for (int x = 0; x < bounds.width; ++x) {
-                    for (int y = 0; y < bounds.height; ++y) {
-                        if (roi.contains(bounds.x + x, bounds.y + y)) {
-                            ++pixels;
-                            for (int b = 0; b < _bins; ++b) {
-                                double count = getData(_cursor, channel, x, y, b);
-                                yCount[b] += count;
-                                photons[roiNumber - 1] += count;
-                            }
-                        }
-                    }
+        FitInfo fitInfo = getFitInfo(uiPanel);
+        List<ILocalFitParams> dataList = new ArrayList<ILocalFitParams>();
+        ICurveFitData dataArray[] = new ICurveFitData[channelIndices.length * rois.length];
+        int[] photons = new int[rois.length];
+        for (int c = 0; c < channelIndices.length; ++c) {
+            // use zero for current channel if it's the only one
+            int nominalChannel = _fitAllChannels ? channelIndices[c] : 0;
+            for (int r = 0; r < rois.length; ++r) {
+                double[] yCount = decays[c][r];
+                for (int b = 0; b < yCount.length; ++b) {
+                    photons[r] += yCount[b];
                 }
+                ILocalFitParams localFitParams = new LocalFitParams();
+                localFitParams.setY(yCount);
+                localFitParams.setSig(null);
+                localFitParams.setParams(params.clone());
+                localFitParams.setYFitted(new double[yCount.length]);
+                localFitParams.setLocation(new int[] { r, 0, nominalChannel });
+                dataList.add(localFitParams);
+
+                ICurveFitData curveFitData = new CurveFitData();
+                curveFitData.setParams(params.clone());
                 curveFitData.setYCount(yCount);
-                curveFitData.setTransStartIndex(0);
-                curveFitData.setDataStartIndex(_startBin);
-                curveFitData.setTransEndIndex(_stopBin);
-                
-                yFitted = new double[_bins];
-                curveFitData.setYFitted(yFitted);
-
-                // use zero for current channel if it's the only one
-                int nominalChannel = _fitAllChannels ? channel : 0;
+                curveFitData.setTransStartIndex(fitInfo.getTransientStart());
+                curveFitData.setDataStartIndex(fitInfo.getDataStart());
+                curveFitData.setTransEndIndex(fitInfo.getTransientStop());
+                curveFitData.setYFitted(localFitParams.getYFitted());
                 curveFitData.setChannel(nominalChannel);
-                curveFitData.setX(roiNumber - 1);
+                curveFitData.setX(r);
                 curveFitData.setY(0);
-                curveFitData.setPixels(pixels);
-                curveFitDataList.add(curveFitData);
-
-                ++roiNumber;
+                curveFitData.setPixels(roiDecays.getPixels(r));
+                dataArray[nominalChannel * rois.length + r] = curveFitData;
             }
         }
 
-        // do the fit
-        ICurveFitData dataArray[] = curveFitDataList.toArray(new ICurveFitData[0]);
-        getCurveFitter(uiPanel).fitData(dataArray);
+        // fit all the ROIs concurrently, on an engine of their own; pool
+        //   threads of the shared engine may be waiting for this fit to end
+        int threads = Math.min(Configuration.getInstance().getThreads(), dataList.size());
+        IFittingEngine fittingEngine = Configuration.getInstance().newFittingEngine(Math.max(1, threads));
+        List<IFitResults> results;
+        try {
+            fittingEngine.setCurveFitter(getCurveFitter(uiPanel));
+            results = fittingEngine.fit(getGlobalFitParams(fitInfo), dataList);
+        }
+        finally {
+            fittingEngine.shutdown();
+        }
+        for (IFitResults result : results) {
+            if (null != result) {
+                int[] location = result.getLocation();
+                ICurveFitData curveFitData = dataArray[location[2] * rois.length + location[0]];
+                curveFitData.setParams(result.getParams());
+                curveFitData.setYFitted(result.getYFitted());
+                curveFitData.setChiSquare(result.getChiSquare());
+            }
+        }
 
         // show the decay graphs
         double min = Double.MAX_VALUE;
         double max = Double.MIN_VALUE;
         int roiNumber = 1;
-        for (Roi roi: getRois()) {
+        for (Roi roi: rois) {
             int nominalChannel = _fitAllChannels ? _channel : 0;
-            int dataIndex = nominalChannel * getRois().length + (roiNumber - 1);
+            int dataIndex = nominalChannel * rois.length + (roiNumber - 1);
 
             String title = "Roi " + roiNumber;
             if (1 < _channels) {
@@ -1239,23 +1475,20 @@ public class SLIMProcessor <T extends RealType<T>> {
         // show colorized lifetimes
         ImageProcessor imageProcessor = new ColorProcessor(_width, _height);
         ImagePlus imagePlus = new ImagePlus("ROIs Fitted Lifetimes", imageProcessor);
-        roiNumber = 1;
-        for (Roi roi: getRois()) {
+        Color[] colors = new Color[rois.length];
+        for (int r = 0; r < rois.length; ++r) {
             int nominalChannel = _fitAllChannels ? _channel : 0;
-            int dataIndex = nominalChannel * getRois().length + (roiNumber - 1);
+            int dataIndex = nominalChannel * rois.length + r;
             double lifetime = dataArray[dataIndex].getParams()[3];
-
-            imageProcessor.setColor(lifetimeColorMap(min, max, lifetime));
-
-            Rectangle bounds = roi.getBounds();
-            for (int x = 0; x < bounds.width; ++x) {
-                for (int y = 0; y < bounds.height; ++y) {
-                    if (roi.contains(bounds.x + x, bounds.y + y)) {
-                        imageProcessor.drawPixel(bounds.x + x, bounds.y + y);
-                    }
+            colors[r] = lifetimeColorMap(min, max, lifetime);
+        }
+        for (int[] labelMask : roiDecays.getLabelMasks()) {
+            for (int i = 0; i < labelMask.length; ++i) {
+                if (0 != labelMask[i]) {
+                    imageProcessor.setColor(colors[labelMask[i] - 1]);
+                    imageProcessor.drawPixel(i % _width, i / _width);
                 }
             }
-            ++roiNumber;
         }
         imagePlus.show();  
 
@@ -1265,7 +1498,7 @@ public class SLIMProcessor <T extends RealType<T>> {
         // get the results
         int channels = _fitAllChannels ? _channels : 1;
         //fittedPixels = makeImage(channels, 1, 1, uiPanel.getParameterCount()); //TODO ImgLib bug if you use 1, 1, 1, 4; see "imglibBug()" below.
-        fittedPixels = makeImage(channels + 1, getRois().length + 1, 2, uiPanel.getParameterCount()); //TODO this is a workaround; unused pixels will remain NaNs
+        fittedPixels = makeImage(channels + 1, rois.length + 1, 2, uiPanel.getParameterCount()); //TODO this is a workaround; unused pixels will remain NaNs
         LocalizableByDimCursor<DoubleType> resultsCursor = fittedPixels.createLocalizableByDimCursor();
         setFittedParamsFromData(resultsCursor, dataArray);
         return fittedPixels;
@@ -1277,8 +1510,6 @@ public class SLIMProcessor <T extends RealType<T>> {
             FittingCursor fittingCursor) {
         int x = uiPanel.getX();
         int y = uiPanel.getY();
-        _startBin = fittingCursor.getDataStartBin();
-        _stopBin = fittingCursor.getTransientStopBin();
 //        System.out.println("_startBin is " + _startBin + " _stopBin " + _stopBin);
 //        System.out.println("FYI FWIW prompt delay is " + _fittingCursor.getPromptDelay());
 //        System.out.println("prompt start is " + _fittingCursor.getPromptStartValue() + " stop " + _fittingCursor.getPromptStopValue());
@@ -1289,36 +1520,45 @@ public class SLIMProcessor <T extends RealType<T>> {
     /*
      * Fits a given pixel.
      * 
+     * This may run while an image fit is in progress, so it works from its
+     * own copy of the fit settings and its own preprocessor chain.
+     * 
      * @param x
      * @param y
      */
     private Image<DoubleType> fitPixel(IUserInterfacePanel uiPanel, int x, int y) {
         Image<DoubleType> fittedPixels = null;
+        FitInfo fitInfo = getFitInfo(_grayScaleImage, uiPanel, _fittingCursor);
+        int currentChannel = fitInfo.getChannel();
+        boolean fitAllChannels = fitInfo.getFitAllChannels();
         
-        // set up the source
-        IDecayImage decayImage = new DecayImageWrapper(_image, _width, _height, _channels, _bins, _binIndex, _increment);
+        // set up the source; binners keep per-image state, so get a new one
+        IDecayImage decayImage = getDecayImage(false);
         IProcessor processor = decayImage;
-        ISLIMBinner binner = _binning.getBinner(uiPanel.getBinning());
+        ISLIMBinner binner = new SLIMBinning().getBinner(fitInfo.getBinning());
         if (null != binner) {
             binner.init(_width, _height);
+            if (binner instanceof ISLIMAdaptiveBinner) {
+                ((ISLIMAdaptiveBinner) binner).setTarget(fitInfo.getDataStart(), fitInfo.getTransientStop(), fitInfo.getThreshold());
+            }
             binner.chain(processor);
             processor = binner;
         }
         
         // set up the location
-        int[] location = new int[] { _x, _y, _channel };
+        int[] location = new int[] { x, y, currentChannel };
         
         // build the data
         ArrayList<ICurveFitData> curveFitDataList = new ArrayList<ICurveFitData>();
-        double params[] = uiPanel.getParameters(); //TODO wrong; params should possibly come from already fitted data
-        double chiSquareTarget = uiPanel.getChiSquareTarget();
+        double params[] = fitInfo.getParameters(); //TODO wrong; params should possibly come from already fitted data
+        double chiSquareTarget = fitInfo.getChiSquareTarget();
         ICurveFitData curveFitData;
         double yCount[];
         double yFitted[];
         int photons = 0;
 
         // loop over all channels or just the current one
-        for (int channel : getChannelIndices(_fitAllChannels, _channel, _channels)) {
+        for (int channel : getChannelIndices(fitAllChannels, currentChannel, _channels)) {
             curveFitData = new CurveFitData();
             curveFitData.setParams(params.clone()); //TODO NO NO NO s/b either from UI or fitted point or fitted whole image
 
@@ -1326,9 +1566,9 @@ public class SLIMProcessor <T extends RealType<T>> {
             yCount = processor.getPixel(location);
             
             curveFitData.setYCount(yCount);
-            int transStartIndex = _fittingCursor.getTransientStartBin();
-            int dataStartIndex = _fittingCursor.getDataStartBin();
-            int transStopIndex = _fittingCursor.getTransientStopBin();
+            int transStartIndex = fitInfo.getTransientStart();
+            int dataStartIndex = fitInfo.getDataStart();
+            int transStopIndex = fitInfo.getTransientStop();
             curveFitData.setTransStartIndex(transStartIndex);
             curveFitData.setDataStartIndex(dataStartIndex);
             curveFitData.setTransEndIndex(transStopIndex);
@@ -1346,7 +1586,7 @@ public class SLIMProcessor <T extends RealType<T>> {
             curveFitData.setChiSquareTarget(chiSquareTarget);
 
             // use zero for current channel if it's the only one
-            int nominalChannel = _fitAllChannels ? channel : 0;
+            int nominalChannel = fitAllChannels ? channel : 0;
             curveFitData.setChannel(nominalChannel);
             curveFitData.setX(0);
             curveFitData.setY(0);
@@ -1361,11 +1601,11 @@ public class SLIMProcessor <T extends RealType<T>> {
         // show decay graph for visible channel
         String title = "Fitted Pixel " + x + " " + y;
         if (1 < _channels) {
-            title += " Channel " + (_channel + 1);
+            title += " Channel " + (currentChannel + 1);
         }
         int visibleChannel = 0;
-        if (_fitAllChannels) {
-            visibleChannel = _channel;
+        if (fitAllChannels) {
+            visibleChannel = currentChannel;
         }
         showDecayGraph(title, uiPanel, _fittingCursor,
                 dataArray[visibleChannel], photons); //TODO ARG this s/b the photon count for the appropriate channel; currently it will sum all channels.
@@ -1374,9 +1614,9 @@ public class SLIMProcessor <T extends RealType<T>> {
         uiPanel.setParameters(dataArray[visibleChannel].getParams());
         
         // get the results
-        int channels = _fitAllChannels ? _channels : 1;
+        int channels = fitAllChannels ? _channels : 1;
         //fittedPixels = makeImage(channels, 1, 1, uiPanel.getParameterCount()); //TODO ImgLib bug if you use 1, 1, 1, 4; see "imglibBug()" below.
-        fittedPixels = makeImage(channels + 1, 2, 2, uiPanel.getParameterCount()); //TODO this is a workaround; unused pixels will remain NaNs
+        fittedPixels = makeImage(channels + 1, 2, 2, fitInfo.getParameterCount()); //TODO this is a workaround; unused pixels will remain NaNs
         LocalizableByDimCursor<DoubleType> resultsCursor = fittedPixels.createLocalizableByDimCursor();               
         setFittedParamsFromData(resultsCursor, dataArray);
         return fittedPixels;
@@ -1465,6 +1705,30 @@ public class SLIMProcessor <T extends RealType<T>> {
         return returnValue;
     }
 
+    /*
+     * Gets the decay curve of a pixel, corrected like getData.
+     */
+    private double[] getDecay(int channel, int x, int y) {
+        double[] decay = null;
+        if (null != _image) {
+            decay = new double[_bins];
+            for (int b = 0; b < _bins; ++b) {
+                decay[b] = getData(_cursor, channel, x, y, b);
+            }
+        }
+        else {
+            decay = _tiledDecayImage.getPixel(new int[] { x, y, channel });
+            if (null == decay) {
+                // couldn't read it
+                decay = new double[_bins];
+            }
+            for (int b = 0; b < _bins; ++b) {
+                decay[b] /= _minNonZeroPhotonCount;
+            }
+        }
+        return decay;
+    }
+
     private double getData(LocalizableByDimCursor<T> cursor, int channel, int x, int y, int bin) {
         int dim[];
         if (_hasChannels) {
@@ -1538,9 +1802,15 @@ public class SLIMProcessor <T extends RealType<T>> {
         }
     }
 
-    private void cancelImageFit() {
-        _fittedImage = null;
-        _fittedParameterCount = 0;
+    /**
+     * Keeps the partial results of a cancelled image fit.  Pixels that were
+     * not fitted remain NaN.
+     * 
+     * @param partialImage 
+     */
+    private void cancelImageFit(IFittedImage partialImage) {
+        _fittedImage = partialImage.getImage();
+        _fittedParameterCount = partialImage.getParameters();
     }
 
     /**
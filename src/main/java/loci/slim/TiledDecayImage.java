@@ -0,0 +1,375 @@
+//
+// TiledDecayImage.java
+//
+
+
+/*
+SLIMPlugin for combined spectral-lifetime image analysis.
+
+Copyright (c) 2010, UW-Madison LOCI
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the names of the ImageJDev.org developers nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package loci.slim;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import loci.formats.FormatException;
+import loci.slim.fitting.IDecayImage;
+import loci.slim.preprocess.IIntensityProcessor;
+import loci.slim.preprocess.IProcessor;
+
+import mpicbg.imglib.image.Image;
+
+/**
+ * This class reads decay data lazily, a tile at a time, straight from
+ * Bio-Formats.
+ * <p>
+ * A tile is a square of pixels of one channel with all of their bins, kept
+ * pixel-major like DecayCube.  Tiles are read on first use and kept in a
+ * bounded least recently used cache, so looking at a few pixels of a huge file
+ * only reads the tiles around them.  Several TiledDecayImages with different
+ * increments may share one cache.  getPixel is safe to call from several
+ * threads at once.
+ * 
+ * @author Aivar Grislis
+ */
+public class TiledDecayImage implements IDecayImage, IIntensityProcessor {
+    private static final int TILE_SIZE = 64;
+    private static final long DEFAULT_CACHE_BYTES = 64L << 20;
+    private final TileCache _cache;
+    private final float _increment;
+
+    /**
+     * Constructor with default cache size.
+     * 
+     * @param planes source of the data
+     * @param increment each value is divided by this
+     */
+    public TiledDecayImage(DecayPlanes planes, int increment) {
+        this(planes, increment, DEFAULT_CACHE_BYTES);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param planes source of the data
+     * @param increment each value is divided by this
+     * @param cacheBytes size of tile cache
+     */
+    public TiledDecayImage(DecayPlanes planes, int increment, long cacheBytes) {
+        _cache = new TileCache(planes, cacheBytes);
+        _increment = increment;
+    }
+
+    /**
+     * Constructor, shares the tile cache of another TiledDecayImage.
+     * 
+     * @param other
+     * @param increment each value is divided by this
+     */
+    public TiledDecayImage(TiledDecayImage other, int increment) {
+        _cache = other._cache;
+        _increment = increment;
+    }
+
+    /**
+     * Gets the source of the data.
+     * 
+     * @return 
+     */
+    public DecayPlanes getDecayPlanes() {
+        return _cache._planes;
+    }
+
+    /**
+     * Gets width and height of a tile.  Reading a tile at a time is fastest.
+     * 
+     * @return 
+     */
+    public int getTileSize() {
+        return TILE_SIZE;
+    }
+
+    /**
+     * Gets width of image.
+     * 
+     * @return 
+     */
+    @Override
+    public int getWidth() {
+        return _cache._width;
+    }
+
+    /**
+     * Gets height of image.
+     * @return 
+     */
+    @Override
+    public int getHeight() {
+        return _cache._height;
+    }
+
+    /**
+     * Gets number of channels of image.
+     * 
+     * @return 
+     */
+    @Override
+    public int getChannels() {
+        return _cache._planes.getChannels();
+    }
+
+    /**
+     * Gets number of bins in decay curve of image.
+     * 
+     * @return 
+     */
+    @Override
+    public int getBins() {
+        return _cache._bins;
+    }
+
+    /**
+     * Specifies a source IProcessor to be chained to this one.
+     * 
+     * @param processor 
+     */
+    @Override
+    public void chain(IProcessor processor) {
+        throw new UnsupportedOperationException("Can't chain to TiledDecayImage");
+    }
+
+    /**
+     * Gets input pixel decay curve.
+     * 
+     * @param location
+     * @return decay or null if it can't be read
+     */
+    @Override
+    public double[] getPixel(int[] location) {
+        int x = location[0];
+        int y = location[1];
+        float[] tile = _cache.getTile(location[2], x / TILE_SIZE, y / TILE_SIZE);
+        if (null == tile) {
+            return null;
+        }
+        int bins = _cache._bins;
+        int tileWidth = Math.min(TILE_SIZE, _cache._width - (x / TILE_SIZE) * TILE_SIZE);
+        int offset = ((y % TILE_SIZE) * tileWidth + x % TILE_SIZE) * bins;
+        double[] decay = new double[bins];
+        for (int i = 0; i < bins; ++i) {
+            decay[i] = tile[offset + i] / _increment;
+        }
+        return decay;
+    }
+
+    /**
+     * Gets input pixel photon count, without building the decay curve.
+     * 
+     * @param location
+     * @param start first bin to count
+     * @param stop last bin to count
+     * @return 
+     */
+    @Override
+    public double getIntensity(int[] location, int start, int stop) {
+        int x = location[0];
+        int y = location[1];
+        float[] tile = _cache.getTile(location[2], x / TILE_SIZE, y / TILE_SIZE);
+        if (null == tile) {
+            return 0.0;
+        }
+        int bins = _cache._bins;
+        int tileWidth = Math.min(TILE_SIZE, _cache._width - (x / TILE_SIZE) * TILE_SIZE);
+        int offset = ((y % TILE_SIZE) * tileWidth + x % TILE_SIZE) * bins;
+        double sum = 0.0;
+        for (int i = Math.max(start, 0); i <= Math.min(stop, bins - 1); ++i) {
+            sum += tile[offset + i];
+        }
+        return sum / _increment;
+    }
+
+    /**
+     * Gets underlying image.  There is none, the data never passes through an
+     * imglib image.
+     * 
+     * @return null
+     */
+    @Override
+    public Image getImage() {
+        return null;
+    }
+
+    /**
+     * Closes the underlying reader.
+     */
+    public void close() {
+        _cache.clear();
+        _cache._planes.close();
+    }
+
+    /*
+     * Least recently used cache of tiles.
+     * <p>
+     * Cached tiles are looked up without locking; only reading a missing tile
+     * and evicting take the lock.  Each hit stamps the tile with the time it
+     * was used and eviction drops the tile with the oldest stamp.
+     */
+    private static class TileCache {
+        private final DecayPlanes _planes;
+        private final int _width;
+        private final int _height;
+        private final int _bins;
+        private final int _tilesX;
+        private final int _tilesY;
+        private final int[][] _planeIndices;
+        private final long _maxBytes;
+        private final Map<Integer, Tile> _tiles;
+        private long _bytes;
+        private float[] _values;
+
+        TileCache(DecayPlanes planes, long maxBytes) {
+            _planes = planes;
+            _width = planes.getWidth();
+            _height = planes.getHeight();
+            _bins = planes.getBins();
+            _tilesX = (_width + TILE_SIZE - 1) / TILE_SIZE;
+            _tilesY = (_height + TILE_SIZE - 1) / TILE_SIZE;
+            
+            // hold at least two rows of tiles, so row by row scans don't thrash
+            long tileRowBytes = 4L * _tilesX * TILE_SIZE * TILE_SIZE * _bins;
+            _maxBytes = Math.max(maxBytes, 2 * tileRowBytes);
+            
+            // plane for each channel and bin
+            _planeIndices = new int[planes.getChannels()][_bins];
+            for (int plane = 0; plane < planes.getPlanes(); ++plane) {
+                int channel = planes.getChannel(plane);
+                if (channel >= 0) {
+                    _planeIndices[channel][planes.getBin(plane)] = plane;
+                }
+            }
+            
+            _tiles = new ConcurrentHashMap<Integer, Tile>();
+            _values = new float[TILE_SIZE * TILE_SIZE];
+        }
+
+        /*
+         * Gets a tile, reading it if necessary.
+         */
+        float[] getTile(int channel, int tileX, int tileY) {
+            Integer key = (channel * _tilesY + tileY) * _tilesX + tileX;
+            Tile tile = _tiles.get(key);
+            if (null == tile) {
+                tile = readTile(key, channel, tileX, tileY);
+                if (null == tile) {
+                    return null;
+                }
+            }
+            tile._lastUsed = System.nanoTime();
+            return tile._values;
+        }
+
+        synchronized void clear() {
+            _tiles.clear();
+            _bytes = 0;
+        }
+
+        /*
+         * Reads a missing tile into the cache, evicting least recently used
+         * tiles as needed.
+         */
+        private synchronized Tile readTile(Integer key, int channel, int tileX, int tileY) {
+            // another thread may have read it while we waited
+            Tile tile = _tiles.get(key);
+            if (null == tile) {
+                try {
+                    tile = new Tile(readTile(channel, tileX, tileY));
+                }
+                catch (IOException e) {
+                    System.out.println("Error reading tile " + e.getMessage()); //TODO IJ.log it!
+                    return null;
+                }
+                catch (FormatException e) {
+                    System.out.println("Error reading tile " + e.getMessage()); //TODO IJ.log it!
+                    return null;
+                }
+                _tiles.put(key, tile);
+                _bytes += 4L * tile._values.length;
+                
+                // evict least recently used, always keeping the new tile
+                while (_bytes > _maxBytes && _tiles.size() > 1) {
+                    Map.Entry<Integer, Tile> eldest = null;
+                    for (Map.Entry<Integer, Tile> entry : _tiles.entrySet()) {
+                        if (entry.getValue() != tile
+                                && (null == eldest
+                                    || entry.getValue()._lastUsed - eldest.getValue()._lastUsed < 0)) {
+                            eldest = entry;
+                        }
+                    }
+                    _bytes -= 4L * eldest.getValue()._values.length;
+                    _tiles.remove(eldest.getKey());
+                }
+            }
+            return tile;
+        }
+
+        /*
+         * Reads a tile, one rectangle per bin.
+         */
+        private float[] readTile(int channel, int tileX, int tileY)
+                throws FormatException, IOException {
+            int x = tileX * TILE_SIZE;
+            int y = tileY * TILE_SIZE;
+            int width = Math.min(TILE_SIZE, _width - x);
+            int height = Math.min(TILE_SIZE, _height - y);
+            int pixels = width * height;
+            float[] tile = new float[pixels * _bins];
+            for (int b = 0; b < _bins; ++b) {
+                _planes.read(_planeIndices[channel][b], x, y, width, height, _values, 1.0f);
+                for (int i = 0; i < pixels; ++i) {
+                    tile[i * _bins + b] = _values[i];
+                }
+            }
+            return tile;
+        }
+
+        /*
+         * Cached tile with the time it was last used.
+         */
+        private static class Tile {
+            final float[] _values;
+            volatile long _lastUsed;
+
+            Tile(float[] values) {
+                _values = values;
+                _lastUsed = System.nanoTime();
+            }
+        }
+    }
+}
@@ -0,0 +1,489 @@
+//
+// FitResultsFile.java
+//
+
+
+/*
+SLIMPlugin for combined spectral-lifetime image analysis.
+
+Copyright (c) 2010, UW-Madison LOCI
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the names of the ImageJDev.org developers nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package loci.slim.analysis;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Properties;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import loci.curvefitter.ICurveFitter.FitAlgorithm;
+import loci.curvefitter.ICurveFitter.FitFunction;
+import loci.curvefitter.ICurveFitter.FitRegion;
+import loci.curvefitter.ICurveFitter.NoiseModel;
+import loci.slim.OutputImageWrapper;
+import loci.slim.fitting.FitInfo;
+
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.type.numeric.real.DoubleType;
+
+/**
+ * Binary file of fitted results.  Holds the fitted parameters along with the
+ * fit settings, so results can be reopened without refitting.
+ * <p>
+ * The file starts with a small header, followed by the fit settings as
+ * properties text and a table of chunks.  Each chunk holds one parameter of
+ * one channel, a row at a time, as big-endian doubles.  Chunks are either
+ * stored as is, in which case they are memory-mapped when read, or deflated.
+ *
+ * @author Aivar Grislis
+ */
+public class FitResultsFile {
+    public static final String EXTENSION = ".slimfit";
+    private static final int MAGIC = 0x534c494d; // "SLIM"
+    private static final int VERSION = 1;
+    private static final int COMPRESSED = 1;
+    private static final String REGION_KEY = "region";
+    private static final String FUNCTION_KEY = "function";
+    private static final String ALGORITHM_KEY = "algorithm";
+    private static final String NOISE_MODEL_KEY = "noiseModel";
+    private static final String FITTED_IMAGES_KEY = "fittedImages";
+    private static final String FIT_ALL_CHANNELS_KEY = "fitAllChannels";
+    private static final String CHANNEL_KEY = "channel";
+    private static final String TRANSIENT_START_KEY = "transientStart";
+    private static final String DATA_START_KEY = "dataStart";
+    private static final String TRANSIENT_STOP_KEY = "transientStop";
+    private static final String X_INC_KEY = "xInc";
+    private static final String THRESHOLD_KEY = "threshold";
+    private static final String CHI_SQUARE_TARGET_KEY = "chiSquareTarget";
+    private static final String BINNING_KEY = "binning";
+    private static final String X_KEY = "x";
+    private static final String Y_KEY = "y";
+    private static final String PARAMETERS_KEY = "parameters";
+    private static final String FREE_KEY = "free";
+    private static final String PROMPT_KEY = "prompt";
+    private static final String START_PROMPT_KEY = "startPrompt";
+    private static final String STOP_PROMPT_KEY = "stopPrompt";
+    private final RandomAccessFile _file;
+    private final int _width;
+    private final int _height;
+    private final int _channels;
+    private final int _parameters;
+    private final boolean _compressed;
+    private final FitRegion _region;
+    private final FitFunction _function;
+    private final FitInfo _fitInfo;
+    private final long[] _offsets;
+    private final long[] _lengths;
+
+    /**
+     * Writes fitted results to a file.
+     * 
+     * @param fileName
+     * @param image fitted parameters, dimensions x, y, channel, parameter
+     * @param region
+     * @param function
+     * @param fitInfo fit settings, may be null
+     * @param compress whether to deflate the chunks
+     * @throws IOException 
+     */
+    public static void write(String fileName, Image<DoubleType> image,
+            FitRegion region, FitFunction function, FitInfo fitInfo,
+            boolean compress) throws IOException {
+        FittedParameters fittedParameters = new FittedParameters(image);
+        int width = fittedParameters.getWidth();
+        int height = fittedParameters.getHeight();
+        int channels = fittedParameters.getChannels();
+        int parameters = fittedParameters.getParameters();
+        byte[] settings = getSettings(region, function, fitInfo);
+        int chunks = channels * parameters;
+        long[] offsets = new long[chunks];
+        long[] lengths = new long[chunks];
+        
+        RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+        try {
+            file.setLength(0);
+            file.writeInt(MAGIC);
+            file.writeInt(VERSION);
+            file.writeInt(width);
+            file.writeInt(height);
+            file.writeInt(channels);
+            file.writeInt(parameters);
+            file.writeInt(compress ? COMPRESSED : 0);
+            file.writeInt(settings.length);
+            file.write(settings);
+            
+            // leave room for the chunk table
+            long tableOffset = file.getFilePointer();
+            file.seek(tableOffset + 2 * 8 * chunks);
+            
+            ByteBuffer chunk = ByteBuffer.allocate(width * height * 8);
+            DoubleBuffer values = chunk.asDoubleBuffer();
+            Deflater deflater = compress ? new Deflater() : null;
+            byte[] deflated = new byte[64 * 1024];
+            for (int c = 0; c < channels; ++c) {
+                for (int p = 0; p < parameters; ++p) {
+                    // gather a chunk
+                    values.clear();
+                    values.put(fittedParameters.getValues(c, p));
+                    
+                    // write it
+                    int index = c * parameters + p;
+                    offsets[index] = file.getFilePointer();
+                    if (compress) {
+                        deflater.reset();
+                        deflater.setInput(chunk.array());
+                        deflater.finish();
+                        while (!deflater.finished()) {
+                            int count = deflater.deflate(deflated);
+                            file.write(deflated, 0, count);
+                        }
+                    }
+                    else {
+                        file.write(chunk.array());
+                    }
+                    lengths[index] = file.getFilePointer() - offsets[index];
+                }
+            }
+            if (null != deflater) {
+                deflater.end();
+            }
+            
+            // fill in the chunk table
+            file.seek(tableOffset);
+            for (int i = 0; i < chunks; ++i) {
+                file.writeLong(offsets[i]);
+                file.writeLong(lengths[i]);
+            }
+        }
+        finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Opens a file of fitted results.
+     * 
+     * @param fileName
+     * @return 
+     * @throws IOException 
+     */
+    public static FitResultsFile open(String fileName) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(fileName, "r");
+        try {
+            return new FitResultsFile(file);
+        }
+        catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        catch (RuntimeException e) {
+            file.close();
+            throw new IOException("Bad fit results file " + fileName, e);
+        }
+    }
+
+    private FitResultsFile(RandomAccessFile file) throws IOException {
+        _file = file;
+        if (MAGIC != file.readInt()) {
+            throw new IOException("Not a fit results file");
+        }
+        int version = file.readInt();
+        if (VERSION != version) {
+            throw new IOException("Unsupported fit results version " + version);
+        }
+        _width = file.readInt();
+        _height = file.readInt();
+        _channels = file.readInt();
+        _parameters = file.readInt();
+        _compressed = 0 != (file.readInt() & COMPRESSED);
+        byte[] settings = new byte[file.readInt()];
+        file.readFully(settings);
+        Properties properties = new Properties();
+        properties.load(new ByteArrayInputStream(settings));
+        _region = FitRegion.valueOf(properties.getProperty(REGION_KEY));
+        _function = FitFunction.valueOf(properties.getProperty(FUNCTION_KEY));
+        _fitInfo = getFitInfo(properties);
+        
+        int chunks = _channels * _parameters;
+        _offsets = new long[chunks];
+        _lengths = new long[chunks];
+        for (int i = 0; i < chunks; ++i) {
+            _offsets[i] = file.readLong();
+            _lengths[i] = file.readLong();
+        }
+    }
+
+    public int getWidth() {
+        return _width;
+    }
+
+    public int getHeight() {
+        return _height;
+    }
+
+    public int getChannels() {
+        return _channels;
+    }
+
+    public int getParameters() {
+        return _parameters;
+    }
+
+    public FitRegion getRegion() {
+        return _region;
+    }
+
+    public FitFunction getFunction() {
+        return _function;
+    }
+
+    /**
+     * Gets the fit settings.  Settings that were not saved are left at their
+     * defaults.
+     * 
+     * @return 
+     */
+    public FitInfo getFitInfo() {
+        return _fitInfo;
+    }
+
+    /**
+     * Gets one fitted parameter of one channel, a row at a time.  Chunks that
+     * were stored as is are memory-mapped rather than read.
+     * 
+     * @param channel
+     * @param parameter
+     * @return 
+     * @throws IOException 
+     */
+    public DoubleBuffer getChunk(int channel, int parameter) throws IOException {
+        int index = channel * _parameters + parameter;
+        FileChannel fileChannel = _file.getChannel();
+        MappedByteBuffer mapped = fileChannel.map(FileChannel.MapMode.READ_ONLY,
+                _offsets[index], _lengths[index]);
+        if (!_compressed) {
+            return mapped.asDoubleBuffer();
+        }
+        byte[] input = new byte[(int) _lengths[index]];
+        mapped.get(input);
+        byte[] output = new byte[_width * _height * 8];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input);
+            int count = inflater.inflate(output);
+            if (output.length != count) {
+                throw new IOException("Truncated chunk " + channel + " " + parameter);
+            }
+        }
+        catch (DataFormatException e) {
+            throw new IOException("Bad chunk " + channel + " " + parameter, e);
+        }
+        finally {
+            inflater.end();
+        }
+        return ByteBuffer.wrap(output).asDoubleBuffer();
+    }
+
+    /**
+     * Recreates the image of fitted parameters.
+     * 
+     * @return dimensions x, y, channel, parameter
+     * @throws IOException 
+     */
+    public Image<DoubleType> getImage() throws IOException {
+        OutputImageWrapper image = new OutputImageWrapper(_width, _height, _channels, _parameters);
+        double[][] values = new double[_parameters][];
+        int[] location = new int[3];
+        for (int c = 0; c < _channels; ++c) {
+            location[2] = c;
+            for (int p = 0; p < _parameters; ++p) {
+                values[p] = new double[_width * _height];
+                getChunk(c, p).get(values[p]);
+            }
+            double[] pixel = new double[_parameters];
+            for (int y = 0; y < _height; ++y) {
+                location[1] = y;
+                for (int x = 0; x < _width; ++x) {
+                    location[0] = x;
+                    for (int p = 0; p < _parameters; ++p) {
+                        pixel[p] = values[p][y * _width + x];
+                    }
+                    image.setPixel(location, pixel);
+                }
+            }
+        }
+        return image.getImage();
+    }
+
+    /**
+     * Closes the file.
+     */
+    public void close() {
+        try {
+            _file.close();
+        }
+        catch (IOException e) {
+            System.out.println("Error closing fit results " + e.getMessage()); //TODO IJ.log it!
+        }
+    }
+
+    /*
+     * Saves fit settings as properties text.
+     */
+    private static byte[] getSettings(FitRegion region, FitFunction function, FitInfo fitInfo) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(REGION_KEY, region.name());
+        properties.setProperty(FUNCTION_KEY, function.name());
+        if (null != fitInfo) {
+            if (null != fitInfo.getAlgorithm()) {
+                properties.setProperty(ALGORITHM_KEY, fitInfo.getAlgorithm().name());
+            }
+            if (null != fitInfo.getNoiseModel()) {
+                properties.setProperty(NOISE_MODEL_KEY, fitInfo.getNoiseModel().name());
+            }
+            if (null != fitInfo.getFittedImages()) {
+                properties.setProperty(FITTED_IMAGES_KEY, fitInfo.getFittedImages());
+            }
+            if (null != fitInfo.getBinning()) {
+                properties.setProperty(BINNING_KEY, fitInfo.getBinning());
+            }
+            properties.setProperty(FIT_ALL_CHANNELS_KEY, "" + fitInfo.getFitAllChannels());
+            properties.setProperty(CHANNEL_KEY, "" + fitInfo.getChannel());
+            properties.setProperty(TRANSIENT_START_KEY, "" + fitInfo.getTransientStart());
+            properties.setProperty(DATA_START_KEY, "" + fitInfo.getDataStart());
+            properties.setProperty(TRANSIENT_STOP_KEY, "" + fitInfo.getTransientStop());
+            properties.setProperty(X_INC_KEY, "" + fitInfo.getXInc());
+            properties.setProperty(THRESHOLD_KEY, "" + fitInfo.getThreshold());
+            properties.setProperty(CHI_SQUARE_TARGET_KEY, "" + fitInfo.getChiSquareTarget());
+            properties.setProperty(X_KEY, "" + fitInfo.getX());
+            properties.setProperty(Y_KEY, "" + fitInfo.getY());
+            properties.setProperty(START_PROMPT_KEY, "" + fitInfo.getStartPrompt());
+            properties.setProperty(STOP_PROMPT_KEY, "" + fitInfo.getStopPrompt());
+            if (null != fitInfo.getParameters()) {
+                properties.setProperty(PARAMETERS_KEY, join(fitInfo.getParameters()));
+            }
+            if (null != fitInfo.getFree()) {
+                StringBuilder builder = new StringBuilder();
+                for (boolean free : fitInfo.getFree()) {
+                    if (0 < builder.length()) {
+                        builder.append(',');
+                    }
+                    builder.append(free);
+                }
+                properties.setProperty(FREE_KEY, builder.toString());
+            }
+            if (null != fitInfo.getPrompt()) {
+                properties.setProperty(PROMPT_KEY, join(fitInfo.getPrompt()));
+            }
+        }
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        properties.store(outputStream, "SLIM Plugin fit settings");
+        return outputStream.toByteArray();
+    }
+
+    /*
+     * Restores fit settings from properties.
+     */
+    private static FitInfo getFitInfo(Properties properties) {
+        FitInfo fitInfo = new FitInfo();
+        fitInfo.setRegion(FitRegion.valueOf(properties.getProperty(REGION_KEY)));
+        fitInfo.setFunction(FitFunction.valueOf(properties.getProperty(FUNCTION_KEY)));
+        String value = properties.getProperty(ALGORITHM_KEY);
+        if (null != value) {
+            fitInfo.setAlgorithm(FitAlgorithm.valueOf(value));
+        }
+        value = properties.getProperty(NOISE_MODEL_KEY);
+        if (null != value) {
+            fitInfo.setNoiseModel(NoiseModel.valueOf(value));
+        }
+        fitInfo.setFittedImages(properties.getProperty(FITTED_IMAGES_KEY));
+        fitInfo.setBinning(properties.getProperty(BINNING_KEY));
+        fitInfo.setFitAllChannels(Boolean.parseBoolean(properties.getProperty(FIT_ALL_CHANNELS_KEY)));
+        fitInfo.setChannel(Integer.parseInt(properties.getProperty(CHANNEL_KEY, "0")));
+        fitInfo.setTransientStart(Integer.parseInt(properties.getProperty(TRANSIENT_START_KEY, "0")));
+        fitInfo.setDataStart(Integer.parseInt(properties.getProperty(DATA_START_KEY, "0")));
+        fitInfo.setTransientStop(Integer.parseInt(properties.getProperty(TRANSIENT_STOP_KEY, "0")));
+        fitInfo.setXInc(Double.parseDouble(properties.getProperty(X_INC_KEY, "0")));
+        fitInfo.setThreshold(Integer.parseInt(properties.getProperty(THRESHOLD_KEY, "0")));
+        fitInfo.setChiSquareTarget(Double.parseDouble(properties.getProperty(CHI_SQUARE_TARGET_KEY, "0")));
+        fitInfo.setX(Integer.parseInt(properties.getProperty(X_KEY, "0")));
+        fitInfo.setY(Integer.parseInt(properties.getProperty(Y_KEY, "0")));
+        fitInfo.setStartPrompt(Integer.parseInt(properties.getProperty(START_PROMPT_KEY, "0")));
+        fitInfo.setStopPrompt(Integer.parseInt(properties.getProperty(STOP_PROMPT_KEY, "0")));
+        value = properties.getProperty(PARAMETERS_KEY);
+        if (null != value) {
+            double[] parameters = split(value);
+            fitInfo.setParameters(parameters);
+            fitInfo.setParameterCount(parameters.length);
+        }
+        value = properties.getProperty(FREE_KEY);
+        if (null != value) {
+            String[] values = value.split(",");
+            boolean[] free = new boolean[values.length];
+            for (int i = 0; i < values.length; ++i) {
+                free[i] = Boolean.parseBoolean(values[i].trim());
+            }
+            fitInfo.setFree(free);
+        }
+        value = properties.getProperty(PROMPT_KEY);
+        if (null != value) {
+            fitInfo.setPrompt(split(value));
+        }
+        return fitInfo;
+    }
+
+    private static String join(double[] values) {
+        StringBuilder builder = new StringBuilder();
+        for (double value : values) {
+            if (0 < builder.length()) {
+                builder.append(',');
+            }
+            builder.append(value);
+        }
+        return builder.toString();
+    }
+
+    private static double[] split(String value) {
+        if (0 == value.length()) {
+            return new double[0];
+        }
+        String[] values = value.split(",");
+        double[] doubles = new double[values.length];
+        for (int i = 0; i < values.length; ++i) {
+            doubles[i] = Double.parseDouble(values[i].trim());
+        }
+        return doubles;
+    }
+}
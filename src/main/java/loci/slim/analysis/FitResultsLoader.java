@@ -0,0 +1,139 @@
+//
+// FitResultsLoader.java
+//
+
+
+/*
+SLIMPlugin for combined spectral-lifetime image analysis.
+
+Copyright (c) 2010, UW-Madison LOCI
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the names of the ImageJDev.org developers nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package loci.slim.analysis;
+
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+
+import loci.curvefitter.ICurveFitter.FitRegion;
+import loci.slim.fitting.FitInfo;
+import loci.slim.fitting.images.FittedImageFitter;
+import loci.slim.fitting.images.FittedImageFitter.FittedImageType;
+import loci.slim.fitting.images.FittedImageParser;
+import loci.slim.histogram.HistogramTool;
+
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.type.numeric.real.DoubleType;
+
+/**
+ * Reopens fitted results saved by ExportToBinary, without refitting.  The
+ * colorized images of a fit of each pixel are shown again.
+ *
+ * @author Aivar Grislis
+ */
+public class FitResultsLoader {
+
+    /**
+     * Loads fitted results from a file and shows them.
+     * 
+     * @param fileName
+     * @return image of fitted parameters, or null if unable to load
+     */
+    public Image<DoubleType> load(String fileName) {
+        Image<DoubleType> image = null;
+        FitResultsFile file = null;
+        try {
+            file = FitResultsFile.open(fileName);
+            image = file.getImage();
+            FitInfo fitInfo = file.getFitInfo();
+            if (FitRegion.EACH == file.getRegion() && null != fitInfo.getFittedImages()) {
+                showFittedImages(file, fitInfo);
+            }
+        }
+        catch (IOException e) {
+            System.out.println("Error loading " + fileName + " " + e.getMessage()); //TODO IJ.log it!
+        }
+        finally {
+            if (null != file) {
+                file.close();
+            }
+        }
+        return image;
+    }
+
+    /*
+     * Feeds the fitted parameters to the colorized images.
+     */
+    private void showFittedImages(FitResultsFile file, FitInfo fitInfo) throws IOException {
+        int width = file.getWidth();
+        int height = file.getHeight();
+        int channels = file.getChannels();
+        int parameters = file.getParameters();
+        int components = fitInfo.getComponents();
+        FittedImageParser parser =
+                new FittedImageParser(fitInfo.getFittedImages(), components,
+                        fitInfo.getStretched(), fitInfo.getFree());
+        FittedImageType[] outputImages = parser.getColorizedImages();
+        FittedImageFitter imageColorizer = new FittedImageFitter();
+        imageColorizer.setUpFit(
+                outputImages,
+                new int[] { width, height, channels },
+                HistogramTool.getIndexColorModel(),
+                components,
+                false,
+                null);
+        imageColorizer.beginFit();
+        
+        int[] location = new int[3];
+        double[][] values = new double[parameters][];
+        double[] pixel = new double[parameters];
+        for (int c = 0; c < channels; ++c) {
+            location[2] = c;
+            for (int p = 0; p < parameters; ++p) {
+                DoubleBuffer chunk = file.getChunk(c, p);
+                values[p] = new double[chunk.remaining()];
+                chunk.get(values[p]);
+            }
+            for (int y = 0; y < height; ++y) {
+                location[1] = y;
+                for (int x = 0; x < width; ++x) {
+                    location[0] = x;
+                    int index = y * width + x;
+                    
+                    // skip pixels that were not fitted
+                    if (Double.isNaN(values[0][index])) {
+                        continue;
+                    }
+                    for (int p = 0; p < parameters; ++p) {
+                        pixel[p] = values[p][index];
+                    }
+                    imageColorizer.updatePixel(location, pixel);
+                }
+            }
+        }
+        imageColorizer.endFit();
+    }
+}
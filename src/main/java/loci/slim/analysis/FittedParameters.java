@@ -0,0 +1,112 @@
+//
+// FittedParameters.java
+//
+
+
+/*
+SLIMPlugin for combined spectral-lifetime image analysis.
+
+Copyright (c) 2010, UW-Madison LOCI
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the names of the ImageJDev.org developers nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package loci.slim.analysis;
+
+import mpicbg.imglib.cursor.LocalizableCursor;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.type.numeric.real.DoubleType;
+
+/**
+ * Copies an image of fitted parameters into primitive arrays, one per
+ * channel and parameter, in a single pass.  Analyses can then read the
+ * parameters without going through imglib cursors for each value.
+ *
+ * @author Aivar Grislis
+ */
+public class FittedParameters {
+    private static final int X_INDEX = 0;
+    private static final int Y_INDEX = 1;
+    private static final int C_INDEX = 2;
+    private static final int P_INDEX = 3;
+    private final int _width;
+    private final int _height;
+    private final int _channels;
+    private final int _parameters;
+    private final double[][] _values;
+
+    /**
+     * Constructor, copies the fitted parameters.
+     * 
+     * @param image dimensions x, y, channel, parameter
+     */
+    public FittedParameters(Image<DoubleType> image) {
+        int[] dimensions = image.getDimensions();
+        _width = dimensions[X_INDEX];
+        _height = dimensions[Y_INDEX];
+        _channels = dimensions[C_INDEX];
+        _parameters = dimensions[P_INDEX];
+        _values = new double[_channels * _parameters][_width * _height];
+        
+        // visit the pixels in storage order
+        LocalizableCursor<DoubleType> cursor = image.createLocalizableCursor();
+        int[] position = new int[dimensions.length];
+        while (cursor.hasNext()) {
+            cursor.fwd();
+            cursor.getPosition(position);
+            _values[position[C_INDEX] * _parameters + position[P_INDEX]]
+                    [position[Y_INDEX] * _width + position[X_INDEX]]
+                    = cursor.getType().getRealDouble();
+        }
+        cursor.close();
+    }
+
+    public int getWidth() {
+        return _width;
+    }
+
+    public int getHeight() {
+        return _height;
+    }
+
+    public int getChannels() {
+        return _channels;
+    }
+
+    public int getParameters() {
+        return _parameters;
+    }
+
+    /**
+     * Gets one fitted parameter of one channel.
+     * 
+     * @param channel
+     * @param parameter
+     * @return values a row at a time, NaN where not fitted
+     */
+    public double[] getValues(int channel, int parameter) {
+        return _values[channel * _parameters + parameter];
+    }
+}
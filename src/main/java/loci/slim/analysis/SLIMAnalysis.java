@@ -42,6 +42,7 @@ import java.util.List;
 
 import loci.curvefitter.ICurveFitter.FitFunction;
 import loci.curvefitter.ICurveFitter.FitRegion;
+import loci.slim.fitting.FitInfo;
 
 import mpicbg.imglib.image.Image;
 import mpicbg.imglib.type.numeric.real.DoubleType;
@@ -61,6 +62,7 @@ import net.java.sezpoz.IndexItem;
 public class SLIMAnalysis {
     IndexItem<SLIMAnalyzer, ISLIMAnalyzer> _plugins[];
     String _names[];
+    FitInfo _fitInfo;
 
     /**
      * Constructor, gets list of potential analysis plugins.
@@ -90,6 +92,15 @@ public class SLIMAnalysis {
         return _names;
     }
 
+    /**
+     * Sets the settings of the fit that is analyzed next.
+     * 
+     * @param fitInfo may be null if unknown
+     */
+    public void setFitInfo(FitInfo fitInfo) {
+        _fitInfo = fitInfo;
+    }
+
     /**
      * Does image analysis.
      * 
@@ -99,6 +110,36 @@ public class SLIMAnalysis {
      * @param function 
      */
     public void doAnalysis(String name, Image<DoubleType> image, FitRegion region, FitFunction function) {
+        ISLIMAnalyzer instance = getInstance(name);
+        if (null != instance) {
+            instance.analyze(image, region, function);
+        }
+    }
+
+    /**
+     * Does image analysis without user interaction, for batch fits.
+     * 
+     * @param name
+     * @param image
+     * @param region
+     * @param function
+     * @param baseFileName output path and file name, without extension
+     * @return whether the plugin supports batch analysis and succeeded
+     */
+    public boolean doAnalysis(String name, Image<DoubleType> image, FitRegion region, FitFunction function, String baseFileName) {
+        ISLIMAnalyzer instance = getInstance(name);
+        if (instance instanceof ISLIMBatchAnalyzer) {
+            return ((ISLIMBatchAnalyzer) instance).analyze(image, region, function, baseFileName);
+        }
+        System.out.println("Analysis " + name + " not available for batch fits"); //TODO IJ.log it!
+        return false;
+    }
+
+    /*
+     * Creates an instance of the named plugin, null if not found.
+     */
+    private ISLIMAnalyzer getInstance(String name) {
+        ISLIMAnalyzer instance = null;
         
         // find selected plugin
         IndexItem<SLIMAnalyzer, ISLIMAnalyzer> selectedPlugin = null;
@@ -108,20 +149,18 @@ public class SLIMAnalysis {
             }
         }
 
-        // run selected plugin
         if (null != selectedPlugin) {
             // create an instance
-            ISLIMAnalyzer instance = null;
             try {
                 instance = selectedPlugin.instance();
+                if (instance instanceof ISLIMFitInfoAnalyzer) {
+                    ((ISLIMFitInfoAnalyzer) instance).setFitInfo(_fitInfo);
+                }
             }
             catch (InstantiationException e) {
                 System.out.println("Error instantiating plugin " + e.getMessage());
             }
-
-            if (null != instance) {
-                instance.analyze(image, region, function);
-            }
         }
+        return instance;
     }
 }
@@ -0,0 +1,127 @@
+//
+// ExportToBinary.java
+//
+
+
+/*
+SLIMPlugin for combined spectral-lifetime image analysis.
+
+Copyright (c) 2010, UW-Madison LOCI
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the names of the ImageJDev.org developers nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package loci.slim.analysis.plugins;
+
+import ij.IJ;
+import ij.gui.GenericDialog;
+
+import java.io.IOException;
+import java.util.prefs.*;
+
+import loci.curvefitter.ICurveFitter.FitFunction;
+import loci.curvefitter.ICurveFitter.FitRegion;
+import loci.slim.analysis.FitResultsFile;
+import loci.slim.analysis.ISLIMBatchAnalyzer;
+import loci.slim.analysis.ISLIMFitInfoAnalyzer;
+import loci.slim.analysis.SLIMAnalyzer;
+import loci.slim.fitting.FitInfo;
+
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.type.numeric.real.DoubleType;
+
+/**
+ * Exports SLIMPlugin results and fit settings to a binary file, which may be
+ * reopened without refitting.
+ *
+ * @author Aivar Grislis
+ */
+@SLIMAnalyzer(name="Export to Binary")
+public class ExportToBinary implements ISLIMBatchAnalyzer, ISLIMFitInfoAnalyzer {
+    private static final String FILE_KEY = "export_results_to_binary";
+    private static final String COMPRESS_KEY = "export_results_to_binary_compress";
+    private FitInfo m_fitInfo = null;
+    private boolean m_compress = false;
+
+    public void setFitInfo(FitInfo fitInfo) {
+        m_fitInfo = fitInfo;
+    }
+
+    public void analyze(Image<DoubleType> image, FitRegion region, FitFunction function) {
+        String fileName = showFileDialog(getFileFromPreferences(), getCompressFromPreferences());
+        if (null != fileName) {
+            saveInPreferences(fileName, m_compress);
+            export(fileName, image, region, function);
+        }
+    }
+
+    public boolean analyze(Image<DoubleType> image, FitRegion region, FitFunction function, String baseFileName) {
+        return export(baseFileName + FitResultsFile.EXTENSION, image, region, function);
+    }
+
+    public boolean export(String fileName, Image<DoubleType> image, FitRegion region, FitFunction function) {
+        try {
+            FitResultsFile.write(fileName, image, region, function, m_fitInfo, m_compress);
+            return true;
+        }
+        catch (IOException e) {
+            System.out.println("Error writing file " + e.getMessage());
+            IJ.log("exception writing file " + fileName);
+            IJ.handleException(e);
+        }
+        return false;
+    }
+
+    private String getFileFromPreferences() {
+       Preferences prefs = Preferences.userNodeForPackage(this.getClass());
+       return prefs.get(FILE_KEY, "");
+    }
+
+    private boolean getCompressFromPreferences() {
+       Preferences prefs = Preferences.userNodeForPackage(this.getClass());
+       return prefs.getBoolean(COMPRESS_KEY, false);
+    }
+
+    private void saveInPreferences(String file, boolean compress) {
+        Preferences prefs = Preferences.userNodeForPackage(this.getClass());
+        prefs.put(FILE_KEY, file);
+        prefs.putBoolean(COMPRESS_KEY, compress);
+    }
+
+    private String showFileDialog(String defaultFile, boolean defaultCompress) {
+        //TODO shouldn't UI be in separate class?
+        GenericDialog dialog = new GenericDialog("Export Results to Binary");
+        dialog.addStringField("Save As:", defaultFile, 24);
+        dialog.addCheckbox("Compress", defaultCompress);
+        dialog.showDialog();
+        if (dialog.wasCanceled()) {
+            return null;
+        }
+
+        String fileName = dialog.getNextString();
+        m_compress = dialog.getNextBoolean();
+        return fileName;
+    }
+}
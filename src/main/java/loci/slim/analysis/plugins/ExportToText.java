@@ -36,28 +36,37 @@ package loci.slim.analysis.plugins;
 
 import ij.IJ;
 import ij.gui.GenericDialog;
-import ij.gui.Roi;
-import ij.plugin.frame.RoiManager;
 
-import java.io.FileWriter;
+import imagej.thread.ThreadPool;
+
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.math.BigDecimal;
-import java.math.MathContext;
-import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.prefs.*;
 
-import loci.slim.analysis.ISLIMAnalyzer;
+import loci.slim.analysis.FittedParameters;
+import loci.slim.analysis.ISLIMBatchAnalyzer;
 import loci.slim.analysis.SLIMAnalyzer;
 import loci.curvefitter.ICurveFitter.FitFunction;
 import loci.curvefitter.ICurveFitter.FitRegion;
 
-import mpicbg.imglib.cursor.LocalizableByDimCursor;
 import mpicbg.imglib.image.Image;
-import mpicbg.imglib.type.numeric.RealType;
 import mpicbg.imglib.type.numeric.real.DoubleType;
 
 /**
  * Exports to text for further analysis of SLIMPlugin results.
+ * <p>
+ * Blocks of rows are formatted in parallel into large buffers, which are
+ * written in order.  Parameters are shown with four significant digits,
+ * rounded down, in engineering notation if large or small.
  *
  * <dl><dt><b>Source code:</b></dt>
  * <dd><a href="http://dev.loci.wisc.edu/trac/software/browser/trunk/projects/slim-plugin/src/main/java/loci/slim/analysis/plugins/ExportToText.java">Trac</a>,
@@ -66,16 +75,14 @@ import mpicbg.imglib.type.numeric.real.DoubleType;
  * @author Aivar Grislis
  */
 @SLIMAnalyzer(name="Export to Text")
-public class ExportToText implements ISLIMAnalyzer {
+public class ExportToText implements ISLIMBatchAnalyzer {
     private static final String FILE_KEY = "export_results_to_text";
-    private static final int X_INDEX = 0;
-    private static final int Y_INDEX = 1;
-    private static final int C_INDEX = 2;
-    private static final int P_INDEX = 3;
-    private static final char TAB = '\t';
-    private static final char EOL = '\n';
-    private FileWriter m_fileWriter = null;
-    private MathContext m_context = new MathContext(4, RoundingMode.FLOOR);
+    private static final String EXTENSION = ".txt";
+    private static final byte TAB = '\t';
+    private static final byte EOL = '\n';
+    private static final int BLOCK_BYTES = 1024 * 1024;
+    private static final int INTEGER_BYTES = 11;
+    private static final int PARAMETER_BYTES = NumberFormatter.MAX_BYTES + 1;
 
     public void analyze(Image<DoubleType> image, FitRegion region, FitFunction function) {
         String fileName = showFileDialog(getFileFromPreferences());
@@ -85,6 +92,10 @@ public class ExportToText implements ISLIMAnalyzer {
         }
     }
 
+    public boolean analyze(Image<DoubleType> image, FitRegion region, FitFunction function, String baseFileName) {
+        return export(baseFileName + EXTENSION, image, region, function);
+    }
+
     public static enum xFitRegion {
         SUMMED, ROI, POINT, EACH
     }
@@ -98,197 +109,164 @@ public class ExportToText implements ISLIMAnalyzer {
     }
 
 
-    public void export(String fileName, Image<DoubleType> image, FitRegion region, FitFunction function) {
-        // get list of current ROIs
-        boolean hasRois = false;
-        Roi[] rois = {};
-        RoiManager manager = RoiManager.getInstance();
-        if (null != manager) {
-            hasRois = true;
-            rois = manager.getRoisAsArray();
-        }
-
+    public boolean export(String fileName, Image<DoubleType> image, FitRegion region, FitFunction function) {
+        boolean success = false;
+        FileOutputStream outputStream = null;
         try {
-            m_fileWriter = new FileWriter(fileName);
+            outputStream = new FileOutputStream(fileName);
         } catch (IOException e) {
             IJ.log("exception opening file " + fileName);
             IJ.handleException(e);
         }
 
-        if (null != m_fileWriter) {
+        if (null != outputStream) {
+            // formatting is CPU-bound, one thread per processor
+            int threads = Runtime.getRuntime().availableProcessors();
+            ThreadPool<ByteBuffer> threadPool = new ThreadPool<ByteBuffer>();
+            threadPool.setThreads(threads);
             try {
-                // look at image dimensions
-                int dimensions[] = image.getDimensions();
-                int width    = dimensions[X_INDEX];
-                int height   = dimensions[Y_INDEX];
-                int channels = dimensions[C_INDEX];
-                int params   = dimensions[P_INDEX];
+                FileChannel fileChannel = outputStream.getChannel();
+                
+                // read the image once
+                FittedParameters parameters = new FittedParameters(image);
+                int width    = parameters.getWidth();
+                int height   = parameters.getHeight();
+                int channels = parameters.getChannels();
+                int[] order = getParameterOrder(function);
 
                 // write headers
+                StringBuilder header = new StringBuilder();
                 if (channels > 2) { //TODO s/b 1; workaround for ImgLib bug -> always get 2 channels
-                    writeChannelHeader();
+                    header.append("c\t");
                 }
                 switch (region) {
-                    case SUMMED:
-                    case POINT:
-                        writeHeader(function);
-                        break;
                     case ROI:
-                        writeROIsHeader();
-                        writeHeader(function);
+                        header.append("roi\t");
                         break;
                     case EACH:
-                        writeXYHeader();
-                        writeHeader(function);
+                        header.append("x\ty\t");
                         break;
                 }
-
-                // traverse the image
-                final LocalizableByDimCursor<?> cursor = image.createLocalizableByDimCursor();
-                int dimForCursor[] = new int[4];
-                double paramArray[] = new double[params];
-
-                // get the parameters for each pixel,
+                header.append(getHeader(function));
+                write(fileChannel, ByteBuffer.wrap(header.toString().getBytes("US-ASCII")));
+
+                // recycle a few large buffers
+                int lineBytes = 3 * INTEGER_BYTES + order.length * PARAMETER_BYTES;
+                int rowsPerBlock = Math.max(1, BLOCK_BYTES / (width * lineBytes));
+                int blockBytes = rowsPerBlock * width * lineBytes;
+                int bufferCount = 2 * threads;
+                BlockingQueue<ByteBuffer> buffers = new ArrayBlockingQueue<ByteBuffer>(bufferCount);
+                for (int i = 0; i < bufferCount; ++i) {
+                    buffers.add(ByteBuffer.allocateDirect(blockBytes));
+                }
+                
+                // format blocks of rows in parallel, write them in order
+                List<Future<ByteBuffer>> futures = new ArrayList<Future<ByteBuffer>>();
                 for (int c = 0; c < channels; ++c) {
-                    dimForCursor[C_INDEX] = c;
-
-                    for (int y = 0; y < height; ++y) {
-                        dimForCursor[Y_INDEX] = y;
-
-                        for (int x = 0; x < width; ++x) {
-                            dimForCursor[X_INDEX] = x;
-
-                            // get the fitted parameters for c, y, x
-                            for (int p = 0; p < params; ++p) {
-                                dimForCursor[P_INDEX] = p;
-
-                                // get the fitted parameter
-                                cursor.moveTo(dimForCursor);
-                                paramArray[p] = ((RealType) cursor.getType()).getRealFloat();
-                            }
-
-                            // if point has been fitted
-                            //TODO distinguish between not fitted and error in fit!
-                            if (!Double.isNaN(paramArray[0])) {
-                                if (channels > 2) { //TODO see above; this is a hacky workaround for a bug; s/b " > 1"
-                                    writeChannel(c + 1);
-                                }
-
-                                switch (region) {
-                                    case SUMMED:
-                                    case POINT:
-                                        writeParams(function, paramArray);
-                                        break;
-                                    case ROI:
-                                        writeROI(x + 1);
-                                        writeParams(function, paramArray);
-                                        break;
-                                    case EACH:
-                                        writeXY(x, y);
-                                        writeParams(function, paramArray);
-                                        break;
-                                }
-                            }
-
-                        } // x loop
-
-                    } // y loop
-
-                } // c loop
-
-                m_fileWriter.close();
+                    for (int y = 0; y < height; y += rowsPerBlock) {
+                        if (futures.size() == bufferCount) {
+                            writeBlock(fileChannel, futures.remove(0), buffers);
+                        }
+                        ByteBuffer buffer = buffers.take();
+                        futures.add(threadPool.submit(
+                                new FormatBlock(parameters, region, order, c,
+                                    y, Math.min(y + rowsPerBlock, height), buffer)));
+                    }
+                }
+                while (!futures.isEmpty()) {
+                    writeBlock(fileChannel, futures.remove(0), buffers);
+                }
+                success = true;
             }
             catch (IOException e) {
                 System.out.println("Error writing file " + e.getMessage());
                 IJ.log("exception writing file");
                 IJ.handleException(e);
             }
+            catch (InterruptedException e) {
+                System.out.println("Interrupted writing file " + e.getMessage());
+                IJ.log("interrupted writing file");
+            }
+            catch (ExecutionException e) {
+                System.out.println("Error formatting file " + e.getMessage());
+                IJ.log("exception formatting file");
+                IJ.handleException(e);
+            }
+            finally {
+                threadPool.shutdown();
+                try {
+                    outputStream.close();
+                }
+                catch (IOException e) {
+                    System.out.println("Error closing file " + e.getMessage());
+                    success = false;
+                }
+            }
         }
+        return success;
     }
 
-    private void writeChannelHeader() throws IOException {
-        m_fileWriter.write("c\t");
+    /*
+     * Waits for a block to be formatted, writes it and recycles the buffer.
+     */
+    private void writeBlock(FileChannel fileChannel, Future<ByteBuffer> future,
+            BlockingQueue<ByteBuffer> buffers)
+            throws IOException, InterruptedException, ExecutionException {
+        ByteBuffer buffer = future.get();
+        write(fileChannel, buffer);
+        buffer.clear();
+        buffers.add(buffer);
     }
 
-    private void writeChannel(int channel) throws IOException {
-        m_fileWriter.write(channel + TAB);
+    private void write(FileChannel fileChannel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            fileChannel.write(buffer);
+        }
     }
 
-    private void writeHeader(FitFunction function) throws IOException {
+    private String getHeader(FitFunction function) {
+        String header = null;
         switch (function) {
             case SINGLE_EXPONENTIAL:
-                m_fileWriter.write("A\tT\tZ\tX2\n");
+                header = "A\tT\tZ\tX2\n";
                 break;
             case DOUBLE_EXPONENTIAL:
-                m_fileWriter.write("A1\tT1\rA2\tT2\tZ\tX2\n");
+                header = "A1\tT1\tA2\tT2\tZ\tX2\n";
                 break;
             case TRIPLE_EXPONENTIAL:
-                m_fileWriter.write("A1\tT1\tA2\tT2\tA3\tT3\tZ\tX2\n");
+                header = "A1\tT1\tA2\tT2\tA3\tT3\tZ\tX2\n";
                 break;
             case STRETCHED_EXPONENTIAL:
-                m_fileWriter.write("A\tT\tH\tZ\tX2\n");
+                header = "A\tT\tH\tZ\tX2\n";
                 break;
         }
+        return header;
     }
 
-    private void writeParams(FitFunction function, double[] paramArray) throws IOException {
+    /*
+     * Gets the order in which to write the parameters, matching the header.
+     */
+    private int[] getParameterOrder(FitFunction function) {
+        int[] order = null;
         switch (function) {
             case SINGLE_EXPONENTIAL:
-                m_fileWriter.write("" +
-                        showParameter(paramArray[2]) + TAB +  // A
-                        showParameter(paramArray[3]) + TAB +  // T
-                        showParameter(paramArray[1]) + TAB +  // Z
-                        showParameter(paramArray[0]) + EOL    // X2
-                        );
+                // A T Z X2
+                order = new int[] { 2, 3, 1, 0 };
                 break;
             case DOUBLE_EXPONENTIAL:
-                m_fileWriter.write("" +
-                        showParameter(paramArray[2]) + TAB +  // A1
-                        showParameter(paramArray[3]) + TAB +  // T1
-                        showParameter(paramArray[4]) + TAB +  // A2
-                        showParameter(paramArray[5]) + TAB +  // T2
-                        showParameter(paramArray[1]) + TAB +  // Z
-                        showParameter(paramArray[0]) + EOL    // X2
-                        );
+                // A1 T1 A2 T2 Z X2
+                order = new int[] { 2, 3, 4, 5, 1, 0 };
                 break;
             case TRIPLE_EXPONENTIAL:
-                m_fileWriter.write("" +
-                        showParameter(paramArray[2]) + TAB +  // A1
-                        showParameter(paramArray[3]) + TAB +  // T1
-                        showParameter(paramArray[4]) + TAB +  // A2
-                        showParameter(paramArray[5]) + TAB +  // T2
-                        showParameter(paramArray[6]) + TAB +  // A3
-                        showParameter(paramArray[7]) + TAB +  // T3
-                        showParameter(paramArray[1]) + TAB +  // Z
-                        showParameter(paramArray[0]) + EOL    // X2
-                        );
+                // A1 T1 A2 T2 A3 T3 Z X2
+                order = new int[] { 2, 3, 4, 5, 6, 7, 1, 0 };
                 break;
             case STRETCHED_EXPONENTIAL:
-                m_fileWriter.write("" +
-                        showParameter(paramArray[2]) + TAB +  // A
-                        showParameter(paramArray[3]) + TAB +  // T
-                        showParameter(paramArray[4]) + TAB +  // H
-                        showParameter(paramArray[1]) + TAB +  // Z
-                        showParameter(paramArray[0]) + EOL    // X2
-                        );
+                // A T H Z X2
+                order = new int[] { 2, 3, 4, 1, 0 };
                 break;
         }
-    }
-
-    private void writeROIsHeader() throws IOException {
-        m_fileWriter.write("roi\t");
-    }
-
-    private void writeROI(int roi) throws IOException {
-        m_fileWriter.write("" + roi + '\t');
-    }
-
-    private void writeXYHeader() throws IOException {
-        m_fileWriter.write("x\ty\t");
-    }
-
-    private void writeXY(int x, int y) throws IOException {
-        m_fileWriter.write("" + x + '\t' + y + '\t');
+        return order;
     }
 
     private String getFileFromPreferences() {
@@ -313,7 +291,208 @@ public class ExportToText implements ISLIMAnalyzer {
         return dialog.getNextString();
     }
 
-    private String showParameter(double parameter) {
-        return BigDecimal.valueOf(parameter).round(m_context).toEngineeringString();
+    /*
+     * Formats a block of rows of one channel into a buffer.
+     */
+    private static class FormatBlock implements Callable<ByteBuffer> {
+        private final FittedParameters _parameters;
+        private final FitRegion _region;
+        private final int[] _order;
+        private final int _channel;
+        private final int _startY;
+        private final int _stopY;
+        private final ByteBuffer _buffer;
+        private final NumberFormatter _formatter = new NumberFormatter();
+
+        FormatBlock(FittedParameters parameters, FitRegion region, int[] order,
+                int channel, int startY, int stopY, ByteBuffer buffer) {
+            _parameters = parameters;
+            _region = region;
+            _order = order;
+            _channel = channel;
+            _startY = startY;
+            _stopY = stopY;
+            _buffer = buffer;
+        }
+
+        @Override
+        public ByteBuffer call() {
+            int width = _parameters.getWidth();
+            boolean showChannel = _parameters.getChannels() > 2; //TODO see above; this is a hacky workaround for a bug; s/b " > 1"
+            double[][] values = new double[_order.length][];
+            for (int i = 0; i < _order.length; ++i) {
+                values[i] = _parameters.getValues(_channel, _order[i]);
+            }
+            double[] chiSquares = _parameters.getValues(_channel, 0);
+            
+            for (int y = _startY; y < _stopY; ++y) {
+                for (int x = 0; x < width; ++x) {
+                    int index = y * width + x;
+                    
+                    // if point has been fitted
+                    //TODO distinguish between not fitted and error in fit!
+                    if (Double.isNaN(chiSquares[index])) {
+                        continue;
+                    }
+                    if (showChannel) {
+                        _formatter.append(_buffer, _channel + 1);
+                        _buffer.put(TAB);
+                    }
+                    switch (_region) {
+                        case ROI:
+                            _formatter.append(_buffer, x + 1);
+                            _buffer.put(TAB);
+                            break;
+                        case EACH:
+                            _formatter.append(_buffer, x);
+                            _buffer.put(TAB);
+                            _formatter.append(_buffer, y);
+                            _buffer.put(TAB);
+                            break;
+                    }
+                    for (int i = 0; i < values.length; ++i) {
+                        _formatter.append(_buffer, values[i][index]);
+                        _buffer.put(i < values.length - 1 ? TAB : EOL);
+                    }
+                }
+            }
+            _buffer.flip();
+            return _buffer;
+        }
+    }
+
+    /*
+     * Formats numbers as ASCII into a buffer, without allocating.
+     * <p>
+     * Parameters get four significant digits, rounded toward negative infinity,
+     * without trailing zeros.  Magnitudes of at least 10000 or less than
+     * 0.000001 are shown in engineering notation, e.g. "12.34E+3".
+     */
+    static class NumberFormatter {
+        static final int MAX_BYTES = 12;
+        private static final int DIGITS = 4;
+        private static final int MIN_EXPONENT = -340;
+        private static final double[] POWERS_OF_TEN = new double[2 * -MIN_EXPONENT + 1];
+        private static final byte[] NAN = { 'N', 'a', 'N' };
+        private static final byte[] INFINITY = { 'I', 'n', 'f', 'i', 'n', 'i', 't', 'y' };
+        private final byte[] _digits = new byte[20];
+        static {
+            for (int i = 0; i < POWERS_OF_TEN.length; ++i) {
+                POWERS_OF_TEN[i] = Double.parseDouble("1E" + (i + MIN_EXPONENT));
+            }
+        }
+
+        /**
+         * Appends an integer.
+         */
+        void append(ByteBuffer buffer, long value) {
+            if (value < 0) {
+                buffer.put((byte) '-');
+                value = -value;
+            }
+            int count = 0;
+            do {
+                _digits[count++] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (0 != value);
+            while (0 < count) {
+                buffer.put(_digits[--count]);
+            }
+        }
+
+        /**
+         * Appends a parameter.
+         */
+        void append(ByteBuffer buffer, double value) {
+            if (Double.isNaN(value)) {
+                buffer.put(NAN);
+                return;
+            }
+            boolean negative = value < 0.0;
+            if (negative) {
+                buffer.put((byte) '-');
+                value = -value;
+            }
+            if (Double.isInfinite(value)) {
+                buffer.put(INFINITY);
+                return;
+            }
+            if (0.0 == value) {
+                buffer.put((byte) '0');
+                return;
+            }
+            
+            // scale to four digits, value is digits * 10^(exponent - 3)
+            int exponent = (int) Math.floor(Math.log10(value));
+            double scaled = value / powerOfTen(exponent - (DIGITS - 1));
+            while (scaled >= 10000.0) {
+                ++exponent;
+                scaled /= 10.0;
+            }
+            while (scaled < 1000.0) {
+                --exponent;
+                scaled *= 10.0;
+            }
+            
+            // round toward negative infinity, allowing for binary fractions
+            //   that fall just short of the decimal value
+            long digits = negative
+                    ? (long) Math.ceil(scaled * (1.0 - 1.0e-12))
+                    : (long) Math.floor(scaled * (1.0 + 1.0e-12));
+            if (10000 <= digits) {
+                ++exponent;
+                digits /= 10;
+            }
+            
+            // drop trailing zeros
+            int count = DIGITS;
+            while (1 < count && 0 == digits % 10) {
+                digits /= 10;
+                --count;
+            }
+            for (int i = count - 1; i >= 0; --i) {
+                _digits[i] = (byte) ('0' + digits % 10);
+                digits /= 10;
+            }
+            
+            if (exponent >= DIGITS || exponent < -6) {
+                // engineering notation
+                int engineering = (int) Math.floor(exponent / 3.0) * 3;
+                appendDigits(buffer, count, exponent - engineering);
+                buffer.put((byte) 'E');
+                buffer.put((byte) (engineering < 0 ? '-' : '+'));
+                append(buffer, Math.abs(engineering));
+            }
+            else if (exponent >= 0) {
+                appendDigits(buffer, count, exponent);
+            }
+            else {
+                buffer.put((byte) '0');
+                buffer.put((byte) '.');
+                for (int i = -1; i > exponent; --i) {
+                    buffer.put((byte) '0');
+                }
+                buffer.put(_digits, 0, count);
+            }
+        }
+
+        /*
+         * Appends the digits with the decimal point after the digit at a
+         * given place, padding with zeros as needed.
+         */
+        private void appendDigits(ByteBuffer buffer, int count, int place) {
+            for (int i = 0; i <= place; ++i) {
+                buffer.put(i < count ? _digits[i] : (byte) '0');
+            }
+            if (count > place + 1) {
+                buffer.put((byte) '.');
+                buffer.put(_digits, place + 1, count - place - 1);
+            }
+        }
+
+        private double powerOfTen(int exponent) {
+            return POWERS_OF_TEN[Math.max(0, Math.min(POWERS_OF_TEN.length - 1,
+                    exponent - MIN_EXPONENT))];
+        }
     }
 }
@@ -0,0 +1,731 @@
+//
+// BatchFitter.java
+//
+
+
+/*
+SLIMPlugin for combined spectral-lifetime image analysis.
+
+Copyright (c) 2010, UW-Madison LOCI
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the names of the ImageJDev.org developers nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package loci.slim.batch;
+
+import imagej.thread.ThreadPool;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import loci.curvefitter.ICurveFitter;
+import loci.curvefitter.ICurveFitter.FitAlgorithm;
+import loci.curvefitter.ICurveFitter.FitRegion;
+import loci.curvefitter.JaolhoCurveFitter;
+import loci.curvefitter.SLIMCurveFitter;
+import loci.formats.FormatException;
+import loci.slim.AdaptiveBatcher;
+import loci.slim.DecayCube;
+import loci.slim.DecayPlanes;
+import loci.slim.Excitation;
+import loci.slim.ExcitationFileHandler;
+import loci.slim.FittingPipeline;
+import loci.slim.MappedDecayCube;
+import loci.slim.OutputImageWrapper;
+import loci.slim.analysis.SLIMAnalysis;
+import loci.slim.fitting.FitInfo;
+import loci.slim.fitting.IDecayImage;
+import loci.slim.fitting.IFittedImage;
+import loci.slim.fitting.config.Configuration;
+import loci.slim.fitting.engine.IFittingEngine;
+import loci.slim.fitting.metrics.FittingMetrics;
+import loci.slim.fitting.params.GlobalFitParams;
+import loci.slim.fitting.params.IFitResults;
+import loci.slim.fitting.params.IGlobalFitParams;
+import loci.slim.fitting.params.ILocalFitParams;
+import loci.slim.fitting.params.LocalFitParams;
+import loci.slim.fitting.params.PrimitiveFitBatch;
+import loci.slim.fitting.params.PrimitiveFitBatchPool;
+import loci.slim.heuristics.CursorEstimator;
+import loci.slim.heuristics.ExcitationScaler;
+import loci.slim.heuristics.FitterEstimator;
+import loci.slim.heuristics.Kludge;
+import loci.slim.preprocess.DecayBlock;
+import loci.slim.preprocess.IProcessor;
+import loci.slim.preprocess.ISLIMAdaptiveBinner;
+import loci.slim.preprocess.ISLIMBinner;
+import loci.slim.preprocess.SLIMBinning;
+import loci.slim.preprocess.Threshold;
+
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.type.numeric.real.DoubleType;
+
+/**
+ * Fits lifetime files without user interaction.  Several files are fitted at
+ * once, each with its own fitting engine, and the results are written by the
+ * batch-capable analysis plugins.
+ * <p>
+ * Usage: BatchFitter settings.properties file-or-directory...
+ * 
+ * @author Aivar Grislis
+ */
+public class BatchFitter {
+    private static final int PIXEL_COUNT = 128;
+    private static final int BATCHES_POOLED = 12;
+    private static final int BLOCK_DOUBLES = 1 << 17;
+    private final BatchSettings _settings;
+
+    public BatchFitter(BatchSettings settings) {
+        _settings = settings;
+    }
+
+    /**
+     * Fits a list of files, several at a time.
+     * 
+     * @param files
+     * @return number of files successfully fitted
+     */
+    public int fitFiles(List<File> files) {
+        int parallelFiles = Math.max(1, Math.min(_settings.getParallelFiles(), files.size()));
+        
+        // divide fitting threads among the files being fitted
+        final int threads = Math.max(1, _settings.getThreads() / parallelFiles);
+        
+        // reading and writing files, the configured strategy applies; each
+        //   file holds its decay data in memory, so only so many at once,
+        //   whatever the strategy
+        final Semaphore permits = new Semaphore(parallelFiles);
+        ThreadPool<Boolean> threadPool = new ThreadPool<Boolean>();
+        threadPool.setStrategy(Configuration.getInstance().getThreadPoolStrategy());
+        threadPool.setThreads(parallelFiles);
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+        for (final File file : files) {
+            futures.add(threadPool.submit(
+                new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws InterruptedException {
+                        permits.acquire();
+                        try {
+                            return fitFile(file, threads);
+                        }
+                        finally {
+                            permits.release();
+                        }
+                    }
+                }));
+        }
+        
+        int fitted = 0;
+        for (int i = 0; i < futures.size(); ++i) {
+            try {
+                if (futures.get(i).get()) {
+                    ++fitted;
+                }
+            }
+            catch (InterruptedException e) {
+                System.out.println("Interrupted fitting " + files.get(i)); //TODO IJ.log it!
+            }
+            catch (ExecutionException e) {
+                System.out.println("Error fitting " + files.get(i) + " " + e.getCause()); //TODO IJ.log it!
+            }
+        }
+        threadPool.shutdown();
+        return fitted;
+    }
+
+    /**
+     * Fits a single file and writes the results.
+     * 
+     * @param file
+     * @param threads
+     * @return whether successful
+     */
+    public boolean fitFile(File file, int threads) {
+        String path = file.getPath();
+        System.out.println("Fitting " + path);
+        
+        // read dimensions and metadata without loading the image, then copy
+        // the decay data once, into memory if there is room
+        IDecayImage decayImage = null;
+        double timeRange = 10.0;
+        int increment = 1;
+        DecayPlanes planes = null;
+        try {
+            planes = DecayPlanes.open(path);
+            Hashtable<String, Object> globalMetadata = planes.getGlobalMetadata();
+            if (null != globalMetadata) {
+                Number timeBase = (Number) globalMetadata.get("time base");
+                if (null != timeBase) {
+                    timeRange = timeBase.floatValue();
+                }
+                Number incr = (Number) globalMetadata.get("MeasureInfo.incr");
+                if (null != incr) {
+                    increment = incr.intValue();
+                }
+            }
+            timeRange /= planes.getBins();
+            if (DecayCube.fitsInMemory(planes.getWidth(), planes.getHeight(),
+                    planes.getChannels(), planes.getBins())) {
+                decayImage = new DecayCube(planes, increment);
+            }
+            else {
+                decayImage = new MappedDecayCube(planes, increment);
+            }
+        }
+        catch (IOException e) {
+            System.out.println("Can't open " + path + " " + e.getMessage()); //TODO IJ.log it!
+            return false;
+        }
+        catch (FormatException e) {
+            System.out.println("Can't open " + path + " " + e.getMessage()); //TODO IJ.log it!
+            return false;
+        }
+        finally {
+            if (null != planes) {
+                planes.close();
+            }
+        }
+        
+        try {
+            return fitFile(file, threads, decayImage, timeRange, increment);
+        }
+        finally {
+            if (decayImage instanceof MappedDecayCube) {
+                ((MappedDecayCube) decayImage).close();
+            }
+        }
+    }
+
+    /*
+     * Fits the decay data of a file and writes the results.
+     */
+    private boolean fitFile(File file, int threads, IDecayImage decayImage,
+            double timeRange, int increment) {
+        // get cursors, estimating any that are missing
+        Integer transientStart = _settings.getCursor("transientStart");
+        Integer dataStart      = _settings.getCursor("dataStart");
+        Integer transientStop  = _settings.getCursor("transientStop");
+        Integer promptStart    = _settings.getCursor("promptStart");
+        Integer promptStop     = _settings.getCursor("promptStop");
+        Double promptBaseline  = _settings.getPromptBaseline();
+        
+        Excitation excitation = null;
+        if (null != _settings.getExcitation()) {
+            excitation = ExcitationFileHandler.getInstance().loadExcitation(_settings.getExcitation(), timeRange);
+            if (null == excitation) {
+                System.out.println("Can't load excitation " + _settings.getExcitation()); //TODO IJ.log it!
+                return false;
+            }
+        }
+        
+        if (null == transientStart || null == dataStart || null == transientStop
+                || (null != excitation && (null == promptStart || null == promptStop || null == promptBaseline))) {
+            double[] decay = getSummedDecay(decayImage);
+            if (null == excitation) {
+                int[] results = CursorEstimator.estimateDecayCursors(timeRange, decay);
+                transientStart = choose(transientStart, results[CursorEstimator.TRANSIENT_START]);
+                dataStart      = choose(dataStart,      results[CursorEstimator.DATA_START]);
+                transientStop  = choose(transientStop,  results[CursorEstimator.TRANSIENT_STOP]);
+            }
+            else {
+                double[] results = CursorEstimator.estimateCursors
+                        (timeRange, excitation.getValues(), decay, _settings.getChiSquareTarget());
+                promptStart    = choose(promptStart,    (int) results[CursorEstimator.PROMPT_START]);
+                promptStop     = choose(promptStop,     (int) results[CursorEstimator.PROMPT_STOP]);
+                transientStart = choose(transientStart, (int) results[CursorEstimator.TRANSIENT_START]);
+                dataStart      = choose(dataStart,      (int) results[CursorEstimator.DATA_START]);
+                transientStop  = choose(transientStop,  (int) results[CursorEstimator.TRANSIENT_STOP]);
+                if (null == promptBaseline) {
+                    promptBaseline = results[CursorEstimator.PROMPT_BASELINE];
+                }
+            }
+        }
+        
+        // scale the excitation to the prompt cursors
+        double[] prompt = null;
+        if (null != excitation) {
+            //TODO ARG 7/31/12 same kludge as SLIMProcessor
+            int modStartIndex = Kludge.kludgeStart(promptStart * increment, increment, promptStart);
+            int modStopIndex  = Kludge.kludgeEnd(promptStop * increment, increment, promptStop);
+            double[] values = excitation.getValues();
+            prompt = ExcitationScaler.scale(values, modStartIndex, modStopIndex,
+                    promptBaseline, timeRange, values.length);
+        }
+        
+        // set up global, image-wide fit parameters
+        IGlobalFitParams globalFitParams = new GlobalFitParams();
+        globalFitParams.setEstimator(new FitterEstimator());
+        globalFitParams.setFitAlgorithm(_settings.getAlgorithm());
+        globalFitParams.setFitFunction(_settings.getFunction());
+        globalFitParams.setNoiseModel(_settings.getNoiseModel());
+        globalFitParams.setTransientStart(transientStart);
+        globalFitParams.setDataStart(dataStart);
+        globalFitParams.setTransientStop(transientStop);
+        globalFitParams.setXInc(timeRange);
+        globalFitParams.setPrompt(prompt);
+        if (null != prompt) {
+            globalFitParams.setStartPrompt(promptStart);
+            globalFitParams.setStopPrompt(promptStop);
+        }
+        globalFitParams.setChiSquareTarget(_settings.getChiSquareTarget());
+        globalFitParams.setFree(_settings.getFree());
+        
+        // each file has its own engine, since the curve fitter is engine-wide
+        IFittingEngine fittingEngine = Configuration.getInstance().newFittingEngine(threads);
+        fittingEngine.setCurveFitter(getCurveFitter(timeRange, prompt));
+        
+        // files are fitted side by side, each collects its own metrics
+        FittingMetrics metrics = new FittingMetrics();
+        metrics.reset(threads);
+        fittingEngine.setMetrics(metrics);
+        
+        Image<DoubleType> fittedImage = null;
+        try {
+            switch (_settings.getRegion()) {
+                case SUMMED:
+                    fittedImage = fitSummed(fittingEngine, globalFitParams, decayImage, dataStart, transientStop);
+                    break;
+                case POINT:
+                    fittedImage = fitPoint(fittingEngine, globalFitParams, decayImage);
+                    break;
+                case EACH:
+                    fittedImage = fitImage(fittingEngine, globalFitParams, decayImage, dataStart, transientStop, threads);
+                    break;
+                default:
+                    System.out.println("Region " + _settings.getRegion() + " not supported in batch fits"); //TODO IJ.log it!
+                    return false;
+            }
+        }
+        finally {
+            fittingEngine.shutdown();
+        }
+        if (Configuration.getInstance().getMetricsDumpMillis() > 0) {
+            System.out.println(file.getName() + " " + metrics.toString()); //TODO IJ.log it!
+        }
+        
+        if (null == fittedImage) {
+            System.out.println("Fit failed " + file.getPath()); //TODO IJ.log it!
+            return false;
+        }
+        
+        // write out the results; analysis plugins keep state, so each file
+        // gets its own plugin instances
+        boolean success = true;
+        SLIMAnalysis slimAnalysis = new SLIMAnalysis();
+        slimAnalysis.setFitInfo(getFitInfo(transientStart, dataStart, transientStop,
+                timeRange, prompt, promptStart, promptStop));
+        String baseFileName = getBaseFileName(file);
+        for (String analysis : _settings.getAnalyses()) {
+            if (!slimAnalysis.doAnalysis(analysis, fittedImage, _settings.getRegion(), _settings.getFunction(), baseFileName)) {
+                success = false;
+            }
+        }
+        return success;
+    }
+
+    /*
+     * Gets the fit settings of a file, for analyzers that record them.
+     */
+    private FitInfo getFitInfo(int transientStart, int dataStart, int transientStop,
+            double timeRange, double[] prompt, Integer promptStart, Integer promptStop) {
+        FitInfo fitInfo = new FitInfo();
+        fitInfo.setChannel(_settings.getChannel());
+        fitInfo.setRegion(_settings.getRegion());
+        fitInfo.setAlgorithm(_settings.getAlgorithm());
+        fitInfo.setFunction(_settings.getFunction());
+        fitInfo.setNoiseModel(_settings.getNoiseModel());
+        fitInfo.setAnalysisList(_settings.getAnalyses());
+        fitInfo.setFitAllChannels(_settings.getFitAllChannels());
+        fitInfo.setTransientStart(transientStart);
+        fitInfo.setDataStart(dataStart);
+        fitInfo.setTransientStop(transientStop);
+        fitInfo.setXInc(timeRange);
+        if (null != prompt) {
+            fitInfo.setPrompt(prompt);
+            fitInfo.setStartPrompt(promptStart);
+            fitInfo.setStopPrompt(promptStop);
+        }
+        fitInfo.setThreshold(_settings.getThreshold());
+        fitInfo.setChiSquareTarget(_settings.getChiSquareTarget());
+        fitInfo.setBinning(_settings.getBinning());
+        fitInfo.setX(_settings.getX());
+        fitInfo.setY(_settings.getY());
+        fitInfo.setParameterCount(_settings.getParameterCount());
+        fitInfo.setParameters(_settings.getParameters());
+        fitInfo.setFree(_settings.getFree());
+        return fitInfo;
+    }
+
+    /*
+     * Fits all the pixels in the image.
+     */
+    private Image<DoubleType> fitImage(
+            IFittingEngine fittingEngine,
+            IGlobalFitParams globalFitParams,
+            IDecayImage decayImage,
+            int dataStart,
+            int transientStop,
+            int threads) {
+        int width = decayImage.getWidth();
+        int height = decayImage.getHeight();
+        int channels = decayImage.getChannels();
+        int bins = decayImage.getBins();
+        boolean fitAllChannels = _settings.getFitAllChannels();
+        double[] initialParams = _settings.getParameters();
+        
+        IFittedImage newImage = new OutputImageWrapper(width, height,
+                fitAllChannels ? channels : 1, initialParams.length);
+        
+        // set up preprocessor chain
+        IProcessor processor = decayImage;
+        ISLIMBinner binner = null;
+        if (null != _settings.getBinning()) {
+            // binners keep per-image state, so each file gets its own
+            binner = new SLIMBinning().getBinner(_settings.getBinning());
+            if (null == binner) {
+                System.out.println("Binning " + _settings.getBinning() + " not found"); //TODO IJ.log it!
+            }
+        }
+        if (null != binner) {
+            binner.init(width, height);
+            if (binner instanceof ISLIMAdaptiveBinner) {
+                ((ISLIMAdaptiveBinner) binner).setTarget(dataStart, transientStop, _settings.getThreshold());
+            }
+            binner.chain(processor);
+            processor = binner;
+        }
+        if (_settings.getThreshold() > 0) {
+            IProcessor threshold = new Threshold(dataStart, transientStop, _settings.getThreshold());
+            threshold.chain(processor);
+            processor = threshold;
+        }
+        
+        PrimitiveFitBatchPool batchPool = new PrimitiveFitBatchPool
+                (bins, initialParams.length, BATCHES_POOLED);
+        AdaptiveBatcher batcher = null;
+        int batchSize = PIXEL_COUNT;
+        if (Configuration.getInstance().getAdaptiveBatching()) {
+            batcher = new AdaptiveBatcher(threads, PIXEL_COUNT);
+        }
+        
+        // no colorized images in batch fits
+        FittingPipeline pipeline = new FittingPipeline(fittingEngine,
+                globalFitParams, null, newImage, batcher, batchPool);
+        pipeline.start();
+        
+        PrimitiveFitBatch batch = batchPool.acquire(batchSize);
+        int pixelsToProcessCount = 0;
+        
+        // read the input a block of rows at a time, into a reused buffer
+        int blockRows = (int) Math.max(1, Math.min(height, BLOCK_DOUBLES / ((long) width * bins)));
+        DecayBlock block = new DecayBlock(width * blockRows, bins);
+        double[] decays = block.getDecays();
+        for (int c : getChannelIndices(fitAllChannels, _settings.getChannel(), channels)) {
+            for (int y0 = 0; y0 < height && !pipeline.isCancelled(); y0 += blockRows) {
+                block.setRegion(0, y0, c, width, Math.min(blockRows, height - y0));
+                block.fill(processor);
+                for (int j = 0; j < block.getHeight(); ++j) {
+                    for (int x = 0; x < width; ++x) {
+                        if (block.isValid(x, j)) {
+                            batch.add(decays, block.getOffset(x, j), initialParams,
+                                    x, y0 + j, fitAllChannels ? c : 0);
+                            
+                            if (++pixelsToProcessCount >= batchSize) {
+                                pixelsToProcessCount = 0;
+                                pipeline.put(batch);
+                                if (null != batcher) {
+                                    batchSize = batcher.getBatchSize();
+                                }
+                                batch = batchPool.acquire(batchSize);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        
+        if (!pipeline.isCancelled()) {
+            if (pixelsToProcessCount > 0) {
+                pipeline.put(batch);
+            }
+            pipeline.finish();
+        }
+        if (pipeline.isCancelled()) {
+            pipeline.join();
+            return null;
+        }
+        return newImage.getImage();
+    }
+
+    /*
+     * Sums all pixels and fits the result.
+     */
+    private Image<DoubleType> fitSummed(
+            IFittingEngine fittingEngine,
+            IGlobalFitParams globalFitParams,
+            IDecayImage decayImage,
+            int dataStart,
+            int transientStop) {
+        int width = decayImage.getWidth();
+        int height = decayImage.getHeight();
+        int channels = decayImage.getChannels();
+        int bins = decayImage.getBins();
+        boolean fitAllChannels = _settings.getFitAllChannels();
+        
+        List<ILocalFitParams> dataList = new ArrayList<ILocalFitParams>();
+        int[] location = new int[3];
+        for (int c : getChannelIndices(fitAllChannels, _settings.getChannel(), channels)) {
+            double[] summed = new double[bins];
+            location[2] = c;
+            for (int y = 0; y < height; ++y) {
+                for (int x = 0; x < width; ++x) {
+                    location[0] = x;
+                    location[1] = y;
+                    double[] decay = decayImage.getPixel(location);
+                    for (int b = 0; b < bins; ++b) {
+                        summed[b] += decay[b];
+                    }
+                }
+            }
+            dataList.add(getLocalFitParams(summed, fitAllChannels ? c : 0));
+        }
+        return fit(fittingEngine, globalFitParams, dataList);
+    }
+
+    /*
+     * Fits a single pixel.
+     */
+    private Image<DoubleType> fitPoint(
+            IFittingEngine fittingEngine,
+            IGlobalFitParams globalFitParams,
+            IDecayImage decayImage) {
+        boolean fitAllChannels = _settings.getFitAllChannels();
+        
+        // set up the source
+        IProcessor processor = decayImage;
+        ISLIMBinner binner = null;
+        if (null != _settings.getBinning()) {
+            // binners keep per-image state, so each file gets its own
+            binner = new SLIMBinning().getBinner(_settings.getBinning());
+        }
+        if (null != binner) {
+            binner.init(decayImage.getWidth(), decayImage.getHeight());
+            if (binner instanceof ISLIMAdaptiveBinner) {
+                ((ISLIMAdaptiveBinner) binner).setTarget(globalFitParams.getDataStart(),
+                        globalFitParams.getTransientStop(), _settings.getThreshold());
+            }
+            binner.chain(processor);
+            processor = binner;
+        }
+        
+        List<ILocalFitParams> dataList = new ArrayList<ILocalFitParams>();
+        for (int c : getChannelIndices(fitAllChannels, _settings.getChannel(), decayImage.getChannels())) {
+            // binners may move the location about
+            int[] location = new int[] { _settings.getX(), _settings.getY(), c };
+            double[] decay = processor.getPixel(location);
+            dataList.add(getLocalFitParams(decay, fitAllChannels ? c : 0));
+        }
+        return fit(fittingEngine, globalFitParams, dataList);
+    }
+
+    /*
+     * Fits a list of decays, one per channel, to a single pixel image.
+     */
+    private Image<DoubleType> fit(
+            IFittingEngine fittingEngine,
+            IGlobalFitParams globalFitParams,
+            List<ILocalFitParams> dataList) {
+        IFittedImage newImage = new OutputImageWrapper(1, 1, dataList.size(),
+                _settings.getParameterCount());
+        List<IFitResults> results = fittingEngine.fit(globalFitParams, dataList);
+        for (IFitResults result : results) {
+            if (null != result) {
+                newImage.setPixel(result.getLocation(), result.getParams());
+            }
+        }
+        return newImage.getImage();
+    }
+
+    /*
+     * Builds local fit parameters for a single decay.
+     */
+    private ILocalFitParams getLocalFitParams(double[] decay, int channel) {
+        ILocalFitParams localFitParams = new LocalFitParams();
+        localFitParams.setY(decay);
+        localFitParams.setSig(null);
+        localFitParams.setParams(_settings.getParameters());
+        localFitParams.setYFitted(new double[decay.length]);
+        localFitParams.setLocation(new int[] { 0, 0, channel });
+        return localFitParams;
+    }
+
+    /*
+     * Gets the curve fitter for this fit.
+     */
+    private ICurveFitter getCurveFitter(double xInc, double[] prompt) {
+        ICurveFitter curveFitter;
+        FitAlgorithm algorithm = _settings.getAlgorithm();
+        if (FitAlgorithm.JAOLHO == algorithm) {
+            curveFitter = new JaolhoCurveFitter();
+        }
+        else {
+            curveFitter = new SLIMCurveFitter();
+            curveFitter.setFitAlgorithm(algorithm);
+        }
+        curveFitter.setEstimator(new FitterEstimator());
+        curveFitter.setFitFunction(_settings.getFunction());
+        curveFitter.setNoiseModel(_settings.getNoiseModel());
+        curveFitter.setXInc(xInc);
+        curveFitter.setFree(_settings.getFree());
+        if (null != prompt) {
+            curveFitter.setInstrumentResponse(prompt);
+        }
+        return curveFitter;
+    }
+
+    /*
+     * Sums the decay for all channels of all pixels.
+     */
+    private double[] getSummedDecay(IDecayImage decayImage) {
+        double[] summed = new double[decayImage.getBins()];
+        int[] location = new int[3];
+        for (int c = 0; c < decayImage.getChannels(); ++c) {
+            location[2] = c;
+            for (int y = 0; y < decayImage.getHeight(); ++y) {
+                location[1] = y;
+                for (int x = 0; x < decayImage.getWidth(); ++x) {
+                    location[0] = x;
+                    double[] decay = decayImage.getPixel(location);
+                    for (int b = 0; b < summed.length; ++b) {
+                        summed[b] += decay[b];
+                    }
+                }
+            }
+        }
+        return summed;
+    }
+
+    /*
+     * Gets output path and file name, without extension.
+     */
+    private String getBaseFileName(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            name = name.substring(0, dot);
+        }
+        String directory = _settings.getOutputDirectory();
+        if (null == directory) {
+            directory = file.getAbsoluteFile().getParent();
+        }
+        return new File(directory, name).getPath();
+    }
+
+    private static Integer choose(Integer value, int estimate) {
+        return null == value ? estimate : value;
+    }
+
+    private static int[] getChannelIndices(boolean fitAllChannels, int channel, int channels) {
+        if (fitAllChannels) {
+            int[] channelIndices = new int[channels];
+            for (int c = 0; c < channels; ++c) {
+                channelIndices[c] = c;
+            }
+            return channelIndices;
+        }
+        else {
+            return new int[] { channel };
+        }
+    }
+
+    /**
+     * Command line entry point.
+     * 
+     * @param args settings file followed by files and/or directories
+     */
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: BatchFitter settings.properties file-or-directory...");
+            System.exit(1);
+        }
+        BatchSettings settings = null;
+        try {
+            settings = new BatchSettings(args[0]);
+        }
+        catch (IOException e) {
+            System.out.println("Can't read settings " + args[0] + " " + e.getMessage());
+            System.exit(1);
+        }
+        if (FitRegion.ROI == settings.getRegion()) {
+            System.out.println("ROI fits need a user interface");
+            System.exit(1);
+        }
+        try {
+            settings.getParameters();
+            settings.getFree();
+            
+            // engines are created per file, of the configured type
+            Configuration configuration = Configuration.getInstance();
+            configuration.setWorkerAddresses(settings.getWorkerAddresses());
+            configuration.setFittingEngineType(settings.getFittingEngineType());
+        }
+        catch (IllegalArgumentException e) {
+            System.out.println("Bad settings " + args[0] + " " + e.getMessage());
+            System.exit(1);
+        }
+        
+        List<File> files = new ArrayList<File>();
+        for (int i = 1; i < args.length; ++i) {
+            File file = new File(args[i]);
+            if (file.isDirectory()) {
+                File[] contents = file.listFiles();
+                if (null != contents) {
+                    Arrays.sort(contents);
+                    for (File content : contents) {
+                        if (content.isFile()) {
+                            files.add(content);
+                        }
+                    }
+                }
+            }
+            else {
+                files.add(file);
+            }
+        }
+        
+        BatchFitter batchFitter = new BatchFitter(settings);
+        int fitted = batchFitter.fitFiles(files);
+        System.out.println("Fitted " + fitted + " of " + files.size() + " files");
+        System.exit(fitted == files.size() ? 0 : 1);
+    }
+}
@@ -0,0 +1,334 @@
+//
+// BatchSettings.java
+//
+
+
+/*
+SLIMPlugin for combined spectral-lifetime image analysis.
+
+Copyright (c) 2010, UW-Madison LOCI
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the names of the ImageJDev.org developers nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package loci.slim.batch;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import loci.curvefitter.ICurveFitter.FitAlgorithm;
+import loci.curvefitter.ICurveFitter.FitFunction;
+import loci.curvefitter.ICurveFitter.FitRegion;
+import loci.curvefitter.ICurveFitter.NoiseModel;
+import loci.slim.fitting.config.Configuration.FittingEngineType;
+import loci.slim.heuristics.Estimator;
+
+/**
+ * Fit settings for a batch fit, read from a properties file.
+ * 
+ * Recognized keys, with defaults:
+ * <pre>
+ * region=EACH                 SUMMED, POINT or EACH
+ * function=SINGLE_EXPONENTIAL
+ * algorithm=SLIMCURVE_RLD_LMA
+ * noiseModel=MAXIMUM_LIKELIHOOD
+ * transientStart=             cursors, in bins; estimated if missing
+ * dataStart=
+ * transientStop=
+ * excitation=                 .irf or .ics file, optional
+ * promptStart=                prompt cursors, in bins; estimated if missing
+ * promptStop=
+ * promptBaseline=
+ * binning=None                name of a binning plugin
+ * threshold=0
+ * chiSquareTarget=1.5
+ * fitAllChannels=true
+ * channel=0                   if not fitting all channels
+ * x=0                         for POINT fits
+ * y=0
+ * parameters=                 initial values, same order as the UI, e.g. A T Z;
+ *                             estimated defaults if missing
+ * free=                       true/false per parameter, same order; all free
+ *                             if missing
+ * analyses=Export to Text     comma-separated analysis plugin names
+ * outputDirectory=            defaults to the input file's directory
+ * threads=8                   fitting threads
+ * parallelFiles=2             files fitted at once
+ * engine=THREADED             THREADED, FORK_JOIN or SHARDED
+ * workers=                    host:port of each FittingWorker, for SHARDED
+ * </pre>
+ * 
+ * @author Aivar Grislis
+ */
+public class BatchSettings {
+    private static final String NONE = "None";
+    private final Properties _properties;
+
+    /**
+     * Reads settings from a properties file.
+     * 
+     * @param fileName
+     * @throws IOException 
+     */
+    public BatchSettings(String fileName) throws IOException {
+        _properties = new Properties();
+        InputStream in = new FileInputStream(fileName);
+        try {
+            _properties.load(in);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    public FitRegion getRegion() {
+        return FitRegion.valueOf(getString("region", "EACH"));
+    }
+
+    public FitFunction getFunction() {
+        return FitFunction.valueOf(getString("function", "SINGLE_EXPONENTIAL"));
+    }
+
+    public FitAlgorithm getAlgorithm() {
+        return FitAlgorithm.valueOf(getString("algorithm", "SLIMCURVE_RLD_LMA"));
+    }
+
+    public NoiseModel getNoiseModel() {
+        return NoiseModel.valueOf(getString("noiseModel", "MAXIMUM_LIKELIHOOD"));
+    }
+
+    /**
+     * Gets a cursor bin.
+     * 
+     * @param key
+     * @return bin or null if it should be estimated
+     */
+    public Integer getCursor(String key) {
+        String value = getString(key, null);
+        return null == value ? null : Integer.valueOf(value);
+    }
+
+    public Double getPromptBaseline() {
+        String value = getString("promptBaseline", null);
+        return null == value ? null : Double.valueOf(value);
+    }
+
+    public String getExcitation() {
+        return getString("excitation", null);
+    }
+
+    /**
+     * Gets the binning plugin name.
+     * 
+     * @return name or null for no binning
+     */
+    public String getBinning() {
+        String binning = getString("binning", NONE);
+        return NONE.equals(binning) ? null : binning;
+    }
+
+    public int getThreshold() {
+        return Integer.parseInt(getString("threshold", "0"));
+    }
+
+    public double getChiSquareTarget() {
+        return Double.parseDouble(getString("chiSquareTarget", "1.5"));
+    }
+
+    public boolean getFitAllChannels() {
+        return Boolean.parseBoolean(getString("fitAllChannels", "true"));
+    }
+
+    public int getChannel() {
+        return Integer.parseInt(getString("channel", "0"));
+    }
+
+    public int getX() {
+        return Integer.parseInt(getString("x", "0"));
+    }
+
+    public int getY() {
+        return Integer.parseInt(getString("y", "0"));
+    }
+
+    /**
+     * Gets the number of fitted parameters, including chi square.
+     * 
+     * @return 
+     */
+    public int getParameterCount() {
+        switch (getFunction()) {
+            case DOUBLE_EXPONENTIAL:
+                return 6;
+            case TRIPLE_EXPONENTIAL:
+                return 8;
+            case STRETCHED_EXPONENTIAL:
+                return 5;
+            default:
+                return 4;
+        }
+    }
+
+    /**
+     * Gets the initial parameters, in fitter order: chi square, Z, then the
+     * others in UI order.  Defaults to the estimator's parameters for the
+     * function if missing.
+     * 
+     * @return 
+     * @throws IllegalArgumentException if the count is wrong for the function
+     */
+    public double[] getParameters() {
+        String[] values = getList("parameters");
+        if (0 == values.length) {
+            FitFunction function = getFunction();
+            boolean stretched = FitFunction.STRETCHED_EXPONENTIAL == function;
+            return new Estimator().getParameters(getComponents(function), stretched).clone();
+        }
+        double[] parameters = new double[getParameterCount()];
+        if (values.length != parameters.length - 1) {
+            throw new IllegalArgumentException("parameters has " + values.length
+                    + " values, " + getFunction() + " expects " + (parameters.length - 1));
+        }
+        
+        // UI order has Z last
+        parameters[1] = Double.parseDouble(values[values.length - 1]);
+        for (int i = 0; i < values.length - 1; ++i) {
+            parameters[i + 2] = Double.parseDouble(values[i]);
+        }
+        return parameters;
+    }
+
+    /**
+     * Gets which parameters are free, in fitter order: Z, then the others in
+     * UI order.  Defaults to all free if missing.
+     * 
+     * @return 
+     * @throws IllegalArgumentException if the count is wrong for the function
+     */
+    public boolean[] getFree() {
+        boolean[] free = new boolean[getParameterCount() - 1];
+        String[] values = getList("free");
+        if (0 == values.length) {
+            for (int i = 0; i < free.length; ++i) {
+                free[i] = true;
+            }
+            return free;
+        }
+        if (values.length != free.length) {
+            throw new IllegalArgumentException("free has " + values.length
+                    + " values, " + getFunction() + " expects " + free.length);
+        }
+        
+        // UI order has Z last
+        free[0] = Boolean.parseBoolean(values[values.length - 1]);
+        for (int i = 0; i < values.length - 1; ++i) {
+            free[i + 1] = Boolean.parseBoolean(values[i]);
+        }
+        return free;
+    }
+
+    public String[] getAnalyses() {
+        String[] analyses = getList("analyses");
+        if (0 == analyses.length) {
+            analyses = new String[] { "Export to Text" };
+        }
+        return analyses;
+    }
+
+    public String getOutputDirectory() {
+        return getString("outputDirectory", null);
+    }
+
+    public int getThreads() {
+        return Integer.parseInt(getString("threads", "8"));
+    }
+
+    public int getParallelFiles() {
+        return Integer.parseInt(getString("parallelFiles", "2"));
+    }
+
+    public FittingEngineType getFittingEngineType() {
+        return FittingEngineType.valueOf(getString("engine", "THREADED"));
+    }
+
+    /**
+     * Gets the FittingWorker processes for the sharded fitting engine.
+     * 
+     * @return list of "host:port"
+     * @throws IllegalArgumentException if the sharded engine has no workers
+     */
+    public List<String> getWorkerAddresses() {
+        List<String> workerAddresses = Arrays.asList(getList("workers"));
+        if (workerAddresses.isEmpty()
+                && FittingEngineType.SHARDED == getFittingEngineType()) {
+            throw new IllegalArgumentException("engine SHARDED needs workers");
+        }
+        return workerAddresses;
+    }
+
+    /*
+     * Gets the number of exponential components of a function.
+     */
+    private int getComponents(FitFunction function) {
+        switch (function) {
+            case DOUBLE_EXPONENTIAL:
+                return 2;
+            case TRIPLE_EXPONENTIAL:
+                return 3;
+            default:
+                return 1;
+        }
+    }
+
+    /*
+     * Gets a trimmed value, default if missing or empty.
+     */
+    private String getString(String key, String defaultValue) {
+        String value = _properties.getProperty(key);
+        if (null != value) {
+            value = value.trim();
+            if (value.length() > 0) {
+                return value;
+            }
+        }
+        return defaultValue;
+    }
+
+    /*
+     * Gets a comma or space separated list.
+     */
+    private String[] getList(String key) {
+        String value = getString(key, null);
+        if (null == value) {
+            return new String[0];
+        }
+        String[] values = value.split(value.contains(",") ? "\\s*,\\s*" : "\\s+");
+        return values;
+    }
+}
@@ -0,0 +1,120 @@
+//
+// FittingEngineBatchCallable.java
+//
+
+
+/*
+SLIMPlugin for combined spectral-lifetime image analysis.
+
+Copyright (c) 2010, UW-Madison LOCI
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the names of the ImageJDev.org developers nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package loci.slim.fitting.callable;
+
+import loci.slim.fitting.params.FitResults;
+import loci.slim.fitting.params.ILocalFitParams;
+import loci.slim.fitting.params.IGlobalFitParams;
+import loci.slim.fitting.params.IFitResults;
+import loci.slim.fitting.engine.CurveFitterPool;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import loci.curvefitter.CurveFitData;
+import loci.curvefitter.ICurveFitData;
+import loci.curvefitter.ICurveFitter;
+
+/**
+ * Brings together everything needed to fit a chunk of pixels.  The calling
+ * thread's curve fitter is set up once and fits the whole chunk in a single
+ * fitData call, so the per-call overhead of the fitter, e.g. crossing into
+ * native code, is shared by all the pixels.
+ *
+ * @author Aivar Grislis grislis at wisc dot edu
+ */
+public class FittingEngineBatchCallable implements IFittingEngineBatchCallable {
+    private CurveFitterPool _curveFitterPool;
+    private IGlobalFitParams _globalParams;
+    private List<ILocalFitParams> _localParamsList;
+    
+    @Override
+    public void setup(final CurveFitterPool curveFitterPool,
+            final IGlobalFitParams globalParams,
+            final List<ILocalFitParams> localParamsList) {
+        _curveFitterPool = curveFitterPool;
+        _globalParams = globalParams;
+        _localParamsList = localParamsList;
+    }
+ 
+    @Override
+    public List<IFitResults> call() {
+        int size = _localParamsList.size();
+        List<IFitResults> resultsList = new ArrayList<IFitResults>(size);
+        ICurveFitData[] curveFitDataArray = new ICurveFitData[size];
+        for (int i = 0; i < size; ++i) {
+            ILocalFitParams localParams = _localParamsList.get(i);
+            ICurveFitData curveFitData = new CurveFitData(); 
+            curveFitData.setChiSquareTarget(_globalParams.getChiSquareTarget());
+            curveFitData.setYCount(localParams.getY());
+            curveFitData.setTransStartIndex(_globalParams.getTransientStart());
+            curveFitData.setDataStartIndex(_globalParams.getDataStart());
+            curveFitData.setTransEndIndex(_globalParams.getTransientStop());        
+            curveFitData.setSig(localParams.getSig());
+            curveFitData.setParams(localParams.getParams().clone()); // params is overwritten
+            curveFitData.setYFitted(localParams.getYFitted());
+            curveFitDataArray[i] = curveFitData;
+        }
+        
+        try {
+            // this thread's curve fitter, already configured for this fit
+            ICurveFitter curveFitter = _curveFitterPool.getCurveFitter(_globalParams);
+            long fitTime = System.nanoTime();
+            curveFitter.fitData(curveFitDataArray);
+            // pixels in a chunk aren't timed individually
+            _curveFitterPool.getMetrics().recordFits(System.nanoTime() - fitTime, size);
+        }
+        catch (RuntimeException e) {
+            // report the whole chunk as failed, keeping the list in order
+            System.out.println("Exception fitting " + e.getMessage()); //TODO IJ.log it!
+            for (int i = 0; i < size; ++i) {
+                resultsList.add(null);
+            }
+            return resultsList;
+        }
+
+        for (int i = 0; i < size; ++i) {
+            ICurveFitData curveFitData = curveFitDataArray[i];
+            IFitResults result = new FitResults();
+            result.setChiSquare(curveFitData.getChiSquare());
+            result.setParams(curveFitData.getParams());
+            result.setYFitted(curveFitData.getYFitted());
+            result.setLocation(_localParamsList.get(i).getLocation());
+            resultsList.add(result);
+        }
+        return resultsList;
+    }   
+}
@@ -38,6 +38,7 @@ import loci.slim.fitting.params.FitResults;
 import loci.slim.fitting.params.ILocalFitParams;
 import loci.slim.fitting.params.IGlobalFitParams;
 import loci.slim.fitting.params.IFitResults;
+import loci.slim.fitting.engine.CurveFitterPool;
 
 import loci.curvefitter.CurveFitData;
 import loci.curvefitter.ICurveFitData;
@@ -45,34 +46,30 @@ import loci.curvefitter.ICurveFitter;
 
 /**
  * This class brings together everything needed to fit one pixel.  It is a 
- * Callable, meant to be called from multiple threads.
+ * Callable, meant to be called from multiple threads.  Each calling thread
+ * fits with its own curve fitter from the CurveFitterPool.
  *
  * @author Aivar Grislis grislis at wisc dot edu
  */
 public class FittingEngineCallable implements IFittingEngineCallable {
-    private ICurveFitter _curveFitter;
+    private CurveFitterPool _curveFitterPool;
     private IGlobalFitParams _globalParams;
     private ILocalFitParams _localParams;
     private IFitResults _result;
     
     @Override
-    public void setup(final ICurveFitter curveFitter,
+    public void setup(final CurveFitterPool curveFitterPool,
             final IGlobalFitParams globalParams,
             final ILocalFitParams localParams) {
-        _curveFitter = curveFitter;
+        _curveFitterPool = curveFitterPool;
         _globalParams = globalParams;
         _localParams = localParams;
     }
  
     @Override
     public IFitResults call() {
-        _curveFitter.setEstimator(_globalParams.getEstimator());
-        _curveFitter.setFitAlgorithm(_globalParams.getFitAlgorithm());
-        _curveFitter.setFitFunction(_globalParams.getFitFunction());
-        _curveFitter.setNoiseModel(_globalParams.getNoiseModel());
-        _curveFitter.setInstrumentResponse(_globalParams.getPrompt());
-        _curveFitter.setXInc(_globalParams.getXInc());
-        _curveFitter.setFree(_globalParams.getFree());
+        // this thread's curve fitter, already configured for this fit
+        ICurveFitter curveFitter = _curveFitterPool.getCurveFitter(_globalParams);
        
         ICurveFitData curveFitData = new CurveFitData(); 
         curveFitData.setChiSquareTarget(_globalParams.getChiSquareTarget());
@@ -85,12 +82,15 @@ public class FittingEngineCallable implements IFittingEngineCallable {
         curveFitData.setYFitted(_localParams.getYFitted());
         
         ICurveFitData[] curveFitDataArray = new ICurveFitData[] { curveFitData };
-        _curveFitter.fitData(curveFitDataArray);
+        long fitTime = System.nanoTime();
+        curveFitter.fitData(curveFitDataArray);
+        _curveFitterPool.getMetrics().recordFit(System.nanoTime() - fitTime);
 
         _result = new FitResults();
         _result.setChiSquare(curveFitData.getChiSquare());
         _result.setParams(curveFitData.getParams());
         _result.setYFitted(curveFitData.getYFitted());
+        _result.setLocation(_localParams.getLocation());
  
         return _result;
     }   
@@ -0,0 +1,69 @@
+//
+// IFittingEngineBatchCallable.java
+//
+
+
+/*
+SLIMPlugin for combined spectral-lifetime image analysis.
+
+Copyright (c) 2010, UW-Madison LOCI
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the names of the ImageJDev.org developers nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package loci.slim.fitting.callable;
+
+import loci.slim.fitting.params.ILocalFitParams;
+import loci.slim.fitting.params.IGlobalFitParams;
+import loci.slim.fitting.params.IFitResults;
+import loci.slim.fitting.engine.CurveFitterPool;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Fits a chunk of pixels with a single call to the curve fitter.
+ *
+ * @author Aivar Grislis grislis at wisc dot edu
+ */
+public interface IFittingEngineBatchCallable extends Callable<List<IFitResults>> {
+
+    /**
+     * Set up for a fit.
+     * 
+     * @param curveFitterPool supplies a curve fitter for the calling thread
+     * @param params
+     * @param dataList 
+     */
+    public void setup(CurveFitterPool curveFitterPool,
+            IGlobalFitParams params, List<ILocalFitParams> dataList);
+
+    /**
+     * Do the fit.
+     * 
+     * @return results in list order, null entries if the fit failed
+     */
+    public List<IFitResults> call();
+}
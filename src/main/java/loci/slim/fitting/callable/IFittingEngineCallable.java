@@ -37,7 +37,7 @@ package loci.slim.fitting.callable;
 import loci.slim.fitting.params.ILocalFitParams;
 import loci.slim.fitting.params.IGlobalFitParams;
 import loci.slim.fitting.params.IFitResults;
-import loci.curvefitter.ICurveFitter;
+import loci.slim.fitting.engine.CurveFitterPool;
 
 import java.util.concurrent.Callable;
 
@@ -50,11 +50,11 @@ public interface IFittingEngineCallable extends Callable<IFitResults> {
     /**
      * Set up for a fit.
      * 
-     * @param curveFitter
+     * @param curveFitterPool supplies a curve fitter for the calling thread
      * @param params
      * @param data 
      */
-    public void setup(ICurveFitter curveFitter,
+    public void setup(CurveFitterPool curveFitterPool,
             IGlobalFitParams params, ILocalFitParams data);
 
     /**
@@ -0,0 +1,70 @@
+//
+// IPrimitiveFitBatchCallable.java
+//
+
+
+/*
+SLIMPlugin for combined spectral-lifetime image analysis.
+
+Copyright (c) 2010, UW-Madison LOCI
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the names of the ImageJDev.org developers nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package loci.slim.fitting.callable;
+
+import loci.slim.fitting.params.IGlobalFitParams;
+import loci.slim.fitting.params.PrimitiveFitBatch;
+import loci.slim.fitting.engine.CurveFitterPool;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Fits a range of pixels of a PrimitiveFitBatch in place.
+ *
+ * @author Aivar Grislis grislis at wisc dot edu
+ */
+public interface IPrimitiveFitBatchCallable extends Callable<PrimitiveFitBatch> {
+
+    /**
+     * Set up for a fit.
+     * 
+     * @param curveFitterPool supplies a curve fitter for the calling thread
+     * @param params
+     * @param batch
+     * @param start index of first pixel
+     * @param stop index after last pixel
+     */
+    public void setup(CurveFitterPool curveFitterPool,
+            IGlobalFitParams params, PrimitiveFitBatch batch,
+            int start, int stop);
+
+    /**
+     * Do the fit.
+     * 
+     * @return the batch, with results filled in for the range
+     */
+    public PrimitiveFitBatch call();
+}
@@ -0,0 +1,97 @@
+//
+// PrimitiveFitBatchCallable.java
+//
+
+
+/*
+SLIMPlugin for combined spectral-lifetime image analysis.
+
+Copyright (c) 2010, UW-Madison LOCI
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the names of the ImageJDev.org developers nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package loci.slim.fitting.callable;
+
+import loci.slim.fitting.params.IGlobalFitParams;
+import loci.slim.fitting.params.PrimitiveFitBatch;
+import loci.slim.fitting.engine.CurveFitterPool;
+
+import loci.curvefitter.ICurveFitData;
+import loci.curvefitter.ICurveFitter;
+
+/**
+ * Fits a range of pixels of a PrimitiveFitBatch with a single fitData call,
+ * writing the results back into the batch.
+ *
+ * @author Aivar Grislis grislis at wisc dot edu
+ */
+public class PrimitiveFitBatchCallable implements IPrimitiveFitBatchCallable {
+    private CurveFitterPool _curveFitterPool;
+    private IGlobalFitParams _globalParams;
+    private PrimitiveFitBatch _batch;
+    private int _start;
+    private int _stop;
+    
+    @Override
+    public void setup(final CurveFitterPool curveFitterPool,
+            final IGlobalFitParams globalParams,
+            final PrimitiveFitBatch batch,
+            final int start, final int stop) {
+        _curveFitterPool = curveFitterPool;
+        _globalParams = globalParams;
+        _batch = batch;
+        _start = start;
+        _stop = stop;
+    }
+ 
+    @Override
+    public PrimitiveFitBatch call() {
+        int size = _stop - _start;
+        ICurveFitData[] curveFitDataArray = new ICurveFitData[size];
+        for (int i = 0; i < size; ++i) {
+            curveFitDataArray[i] = _batch.getCurveFitData(_start + i, _globalParams);
+        }
+        
+        try {
+            // this thread's curve fitter, already configured for this fit
+            ICurveFitter curveFitter = _curveFitterPool.getCurveFitter(_globalParams);
+            long fitTime = System.nanoTime();
+            curveFitter.fitData(curveFitDataArray);
+            // pixels in a chunk aren't timed individually
+            _curveFitterPool.getMetrics().recordFits(System.nanoTime() - fitTime, size);
+        }
+        catch (RuntimeException e) {
+            // pixels in range stay unfitted
+            System.out.println("Exception fitting " + e.getMessage()); //TODO IJ.log it!
+            return _batch;
+        }
+        
+        for (int i = _start; i < _stop; ++i) {
+            _batch.setResults(i);
+        }
+        return _batch;
+    }   
+}
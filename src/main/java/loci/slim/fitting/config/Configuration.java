@@ -36,15 +36,26 @@ package loci.slim.fitting.config;
 
 import loci.slim.fitting.callable.IFittingEngineCallable;
 import loci.slim.fitting.callable.FittingEngineCallable;
+import loci.slim.fitting.callable.FittingEngineBatchCallable;
+import loci.slim.fitting.callable.IFittingEngineBatchCallable;
+import loci.slim.fitting.callable.IPrimitiveFitBatchCallable;
+import loci.slim.fitting.callable.PrimitiveFitBatchCallable;
 import loci.slim.heuristics.FitterEstimator;
 import loci.slim.fitting.cursor.ICursorEstimator;
+import loci.slim.fitting.engine.ForkJoinFittingEngine;
 import loci.slim.fitting.engine.IFittingEngine;
+import loci.slim.fitting.engine.ShardedFittingEngine;
 import loci.slim.fitting.engine.ThreadedFittingEngine;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import loci.curvefitter.ICurveFitter;
 import loci.curvefitter.IFitterEstimator;
 import loci.curvefitter.SLIMCurveFitter;
 
+import imagej.thread.ThreadPool;
+
 /**
  * Handles configuration specific to the SLIM Plugin.
  * 
@@ -53,8 +64,14 @@ import loci.curvefitter.SLIMCurveFitter;
  * @author Aivar Grislis
  */
 public class Configuration extends ConfigurationHelper {
+    public enum FittingEngineType { THREADED, FORK_JOIN, SHARDED };
     private static Configuration _instance = null;
     private int _threads = 8;
+    private FittingEngineType _fittingEngineType = FittingEngineType.THREADED;
+    private ThreadPool.Strategy _threadPoolStrategy = ThreadPool.Strategy.FIXED;
+    private boolean _adaptiveBatching = true;
+    private long _metricsDumpMillis = 0;
+    private List<String> _workerAddresses = new ArrayList<String>();
     private IFittingEngine _fittingEngine;
     private ICurveFitter _curveFitter;
     private IFitterEstimator _cursorEstimator;
@@ -72,17 +89,135 @@ public class Configuration extends ConfigurationHelper {
         return _instance;
     }
     
-    public int getThreads() {
+    public synchronized int getThreads() {
         return _threads;
     }
     
+    /**
+     * Sets the number of fitting threads.  A running fitting engine keeps
+     * its existing threads.
+     * 
+     * @param threads 
+     */
+    public synchronized void setThreads(int threads) {
+        _threads = threads;
+        if (null != _fittingEngine) {
+            _fittingEngine.setThreads(threads);
+        }
+    }
+    
+    public synchronized ThreadPool.Strategy getThreadPoolStrategy() {
+        return _threadPoolStrategy;
+    }
+    
+    /**
+     * Selects how I/O-bound stages, such as reading the files of a batch
+     * fit, execute.  Fitting is CPU-bound, so the fitting engines always use
+     * a fixed number of threads.
+     * 
+     * @param strategy 
+     */
+    public synchronized void setThreadPoolStrategy(ThreadPool.Strategy strategy) {
+        _threadPoolStrategy = strategy;
+    }
+    
+    public synchronized boolean getAdaptiveBatching() {
+        return _adaptiveBatching;
+    }
+    
+    /**
+     * Sets whether image fits adapt the number of pixels dispatched at once
+     * to the measured fit speed.
+     * 
+     * @param adaptiveBatching 
+     */
+    public synchronized void setAdaptiveBatching(boolean adaptiveBatching) {
+        _adaptiveBatching = adaptiveBatching;
+    }
+    
+    public synchronized long getMetricsDumpMillis() {
+        return _metricsDumpMillis;
+    }
+    
+    /**
+     * Sets how often fitting metrics are printed during an image fit.
+     * 
+     * @param metricsDumpMillis period, or zero for none
+     */
+    public synchronized void setMetricsDumpMillis(long metricsDumpMillis) {
+        _metricsDumpMillis = metricsDumpMillis;
+    }
+    
+    public synchronized List<String> getWorkerAddresses() {
+        return new ArrayList<String>(_workerAddresses);
+    }
+    
+    /**
+     * Sets the FittingWorker processes used by the sharded fitting engine.
+     * An existing sharded engine is shut down and recreated on next use.
+     * 
+     * @param workerAddresses list of "host:port"
+     */
+    public synchronized void setWorkerAddresses(List<String> workerAddresses) {
+        _workerAddresses = new ArrayList<String>(workerAddresses);
+        if (FittingEngineType.SHARDED == _fittingEngineType
+                && null != _fittingEngine) {
+            _fittingEngine.shutdown();
+            _fittingEngine = null;
+        }
+    }
+    
+    public synchronized FittingEngineType getFittingEngineType() {
+        return _fittingEngineType;
+    }
+    
+    /**
+     * Selects the fitting engine implementation.  Any existing engine is shut
+     * down and a new one is created on next use.
+     * 
+     * @param fittingEngineType 
+     */
+    public synchronized void setFittingEngineType(FittingEngineType fittingEngineType) {
+        if (fittingEngineType != _fittingEngineType) {
+            _fittingEngineType = fittingEngineType;
+            if (null != _fittingEngine) {
+                _fittingEngine.shutdown();
+                _fittingEngine = null;
+            }
+        }
+    }
+    
     public synchronized IFittingEngine getFittingEngine() {
         if (null == _fittingEngine) {
-            _fittingEngine = new ThreadedFittingEngine();
+            _fittingEngine = newFittingEngine(_threads);
         }
         return _fittingEngine;
     }
     
+    /**
+     * Creates an unshared fitting engine of the selected type.  Caller must
+     * shut it down.
+     * 
+     * @param threads
+     * @return 
+     */
+    public synchronized IFittingEngine newFittingEngine(int threads) {
+        IFittingEngine fittingEngine = null;
+        switch (_fittingEngineType) {
+            case THREADED:
+                fittingEngine = new ThreadedFittingEngine();
+                break;
+            case FORK_JOIN:
+                fittingEngine = new ForkJoinFittingEngine();
+                break;
+            case SHARDED:
+                fittingEngine = new ShardedFittingEngine(_workerAddresses);
+                break;
+        }
+        fittingEngine.setThreads(threads);
+        return fittingEngine;
+    }
+    
     public synchronized ICurveFitter getCurveFitter() {
         if (null == _curveFitter) {
             _curveFitter = new SLIMCurveFitter();
@@ -101,4 +236,12 @@ public class Configuration extends ConfigurationHelper {
         return new FittingEngineCallable();
     }
     
+    public IFittingEngineBatchCallable newFittingEngineBatchCallable() {
+        return new FittingEngineBatchCallable();
+    }
+    
+    public IPrimitiveFitBatchCallable newPrimitiveFitBatchCallable() {
+        return new PrimitiveFitBatchCallable();
+    }
+    
 }
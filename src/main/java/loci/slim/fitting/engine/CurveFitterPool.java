@@ -0,0 +1,164 @@
+//
+// CurveFitterPool.java
+//
+
+
+/*
+SLIMPlugin for combined spectral-lifetime image analysis.
+
+Copyright (c) 2010, UW-Madison LOCI
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the names of the ImageJDev.org developers nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package loci.slim.fitting.engine;
+
+import loci.slim.fitting.metrics.FittingMetrics;
+import loci.slim.fitting.params.IGlobalFitParams;
+
+import loci.curvefitter.ICurveFitter;
+
+/**
+ * Hands out thread-confined curve fitters.  Each worker thread gets its own
+ * ICurveFitter, of the same class as the given prototype, so that workers
+ * never share fitter state.  A fitter is only reconfigured when it is asked
+ * for with a different set of global fit parameters, i.e. once per fit.
+ * 
+ * The pool also carries the metrics its fitters record into.
+ * 
+ * @author Aivar Grislis
+ */
+public class CurveFitterPool {
+    private final ICurveFitter _prototype;
+    private final ThreadLocal<PooledCurveFitter> _pooledCurveFitter;
+    private volatile FittingMetrics _metrics;
+    
+    /**
+     * Creates a pool of curve fitters like the given prototype.
+     * 
+     * @param prototype 
+     */
+    public CurveFitterPool(ICurveFitter prototype) {
+        _prototype = prototype;
+        _metrics = FittingMetrics.getInstance();
+        _pooledCurveFitter = new ThreadLocal<PooledCurveFitter>() {
+            @Override
+            protected PooledCurveFitter initialValue() {
+                return new PooledCurveFitter(newCurveFitter());
+            }
+        };
+    }
+    
+    /**
+     * Gets the prototype curve fitter.
+     * 
+     * @return 
+     */
+    public ICurveFitter getPrototype() {
+        return _prototype;
+    }
+    
+    /**
+     * Sets the metrics to record fits into.
+     * 
+     * @param metrics 
+     */
+    public void setMetrics(FittingMetrics metrics) {
+        _metrics = metrics;
+    }
+    
+    /**
+     * Gets the metrics to record fits into.
+     * 
+     * @return 
+     */
+    public FittingMetrics getMetrics() {
+        return _metrics;
+    }
+    
+    /**
+     * Gets the curve fitter owned by the current thread, configured for the
+     * given global fit parameters.
+     * 
+     * @param params
+     * @return curve fitter
+     */
+    public ICurveFitter getCurveFitter(IGlobalFitParams params) {
+        PooledCurveFitter pooledCurveFitter = _pooledCurveFitter.get();
+        if (params != pooledCurveFitter._params) {
+            configure(pooledCurveFitter._curveFitter, params);
+            pooledCurveFitter._params = params;
+        }
+        return pooledCurveFitter._curveFitter;
+    }
+    
+    /**
+     * Sets up a curve fitter with the image-wide fit parameters.
+     * 
+     * @param curveFitter
+     * @param params 
+     */
+    public static void configure(ICurveFitter curveFitter, IGlobalFitParams params) {
+        curveFitter.setEstimator(params.getEstimator());
+        curveFitter.setFitAlgorithm(params.getFitAlgorithm());
+        curveFitter.setFitFunction(params.getFitFunction());
+        curveFitter.setNoiseModel(params.getNoiseModel());
+        curveFitter.setInstrumentResponse(params.getPrompt());
+        curveFitter.setXInc(params.getXInc());
+        curveFitter.setFree(params.getFree());
+    }
+    
+    /*
+     * Creates a new curve fitter of the same class as the prototype.  Fails
+     * rather than share the prototype and its state between workers.
+     */
+    private ICurveFitter newCurveFitter() {
+        try {
+            return _prototype.getClass().newInstance();
+        }
+        catch (InstantiationException e) {
+            throw new IllegalStateException("Error instantiating curve fitter "
+                    + _prototype.getClass().getName(), e);
+        }
+        catch (IllegalAccessException e) {
+            throw new IllegalStateException("Error instantiating curve fitter "
+                    + _prototype.getClass().getName(), e);
+        }
+    }
+
+    /**
+     * Inner class that keeps track of a curve fitter and the parameters it
+     * was last configured with.
+     */
+    private static class PooledCurveFitter {
+        private final ICurveFitter _curveFitter;
+        private IGlobalFitParams _params;
+        
+        PooledCurveFitter(ICurveFitter curveFitter) {
+            _curveFitter = curveFitter;
+            _params = null;
+        }
+    }
+}
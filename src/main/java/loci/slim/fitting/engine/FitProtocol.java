@@ -0,0 +1,371 @@
+//
+// FitProtocol.java
+//
+
+
+/*
+SLIMPlugin for combined spectral-lifetime image analysis.
+
+Copyright (c) 2010, UW-Madison LOCI
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the names of the ImageJDev.org developers nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package loci.slim.fitting.engine;
+
+import loci.slim.fitting.params.FitResults;
+import loci.slim.fitting.params.GlobalFitParams;
+import loci.slim.fitting.params.IFitResults;
+import loci.slim.fitting.params.IGlobalFitParams;
+import loci.slim.fitting.params.ILocalFitParams;
+import loci.slim.fitting.params.LocalFitParams;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import loci.curvefitter.ICurveFitter;
+import loci.curvefitter.ICurveFitter.FitAlgorithm;
+import loci.curvefitter.ICurveFitter.FitFunction;
+import loci.curvefitter.ICurveFitter.NoiseModel;
+import loci.curvefitter.IFitterEstimator;
+
+/**
+ * Wire format used between the ShardedFittingEngine and FittingWorkers.
+ * 
+ * A request is a shard: the curve fitter and estimator class names, the
+ * global fit parameters and a list of local fit parameters.  The response is
+ * a status followed by one result per pixel, in order.  Curve fitters and
+ * estimators are instantiated by class name on the worker, so they need
+ * public no-argument constructors.
+ * 
+ * Requests are not authenticated.  The worker only instantiates classes of
+ * the expected type and rejects arrays and shards larger than any real fit
+ * would send, but it should still only listen where trusted clients reach it.
+ * 
+ * @author Aivar Grislis
+ */
+class FitProtocol {
+    static final int MAGIC = 0x534c494d; // "SLIM"
+    static final int VERSION = 1;
+    static final int FIT = 1;
+    static final int QUIT = 2;
+    static final int OK = 0;
+    static final int ERROR = 1;
+    // longest array a request may hold, e.g. bins in a decay
+    static final int MAX_ARRAY_LENGTH = 1 << 16;
+    // most pixels a request may hold
+    static final int MAX_SHARD_PIXELS = 1 << 16;
+    private static final Map<String, Object> _instances = new HashMap<String, Object>();
+    
+    private FitProtocol() {
+    }
+
+    /**
+     * Writes a fit request.
+     * 
+     * @param out
+     * @param curveFitter
+     * @param params
+     * @param dataList
+     * @throws IOException 
+     */
+    static void writeRequest(DataOutputStream out, ICurveFitter curveFitter,
+            IGlobalFitParams params, List<ILocalFitParams> dataList)
+            throws IOException {
+        out.writeInt(FIT);
+        out.writeUTF(curveFitter.getClass().getName());
+        IFitterEstimator estimator = params.getEstimator();
+        out.writeUTF(null == estimator ? "" : estimator.getClass().getName());
+        out.writeUTF(params.getFitAlgorithm().name());
+        out.writeUTF(params.getFitFunction().name());
+        out.writeUTF(params.getNoiseModel().name());
+        out.writeDouble(params.getXInc());
+        writeDoubles(out, params.getPrompt());
+        out.writeDouble(params.getChiSquareTarget());
+        writeBooleans(out, params.getFree());
+        out.writeInt(params.getStartPrompt());
+        out.writeInt(params.getStopPrompt());
+        out.writeInt(params.getTransientStart());
+        out.writeInt(params.getDataStart());
+        out.writeInt(params.getTransientStop());
+        out.writeInt(dataList.size());
+        for (ILocalFitParams data : dataList) {
+            writeDoubles(out, data.getY());
+            writeDoubles(out, data.getSig());
+            writeDoubles(out, data.getParams());
+            // yFitted is only an output buffer
+            double[] yFitted = data.getYFitted();
+            out.writeInt(null == yFitted ? -1 : yFitted.length);
+            writeInts(out, data.getLocation());
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads the global fit parameters of a fit request, after the FIT
+     * opcode.
+     * 
+     * @param in
+     * @return 
+     * @throws IOException 
+     */
+    static IGlobalFitParams readGlobalFitParams(DataInputStream in)
+            throws IOException {
+        IGlobalFitParams params = new GlobalFitParams();
+        String estimatorClass = in.readUTF();
+        if (estimatorClass.length() > 0) {
+            params.setEstimator(getInstance(estimatorClass, IFitterEstimator.class));
+        }
+        params.setFitAlgorithm(FitAlgorithm.valueOf(in.readUTF()));
+        params.setFitFunction(FitFunction.valueOf(in.readUTF()));
+        params.setNoiseModel(NoiseModel.valueOf(in.readUTF()));
+        params.setXInc(in.readDouble());
+        params.setPrompt(readDoubles(in));
+        params.setChiSquareTarget(in.readDouble());
+        params.setFree(readBooleans(in));
+        params.setStartPrompt(in.readInt());
+        params.setStopPrompt(in.readInt());
+        params.setTransientStart(in.readInt());
+        params.setDataStart(in.readInt());
+        params.setTransientStop(in.readInt());
+        return params;
+    }
+
+    /**
+     * Reads the local fit parameters of a fit request.
+     * 
+     * @param in
+     * @return 
+     * @throws IOException 
+     */
+    static List<ILocalFitParams> readLocalFitParams(DataInputStream in)
+            throws IOException {
+        int count = readLength(in, MAX_SHARD_PIXELS);
+        List<ILocalFitParams> dataList = new ArrayList<ILocalFitParams>(count);
+        for (int i = 0; i < count; ++i) {
+            ILocalFitParams data = new LocalFitParams();
+            double[] y = readDoubles(in);
+            data.setY(y);
+            data.setSig(readDoubles(in));
+            data.setParams(readDoubles(in));
+            // yFitted isn't sent, don't allocate more than was received
+            int yFittedLength = readLength(in, null == y ? 0 : y.length);
+            data.setYFitted(yFittedLength < 0 ? null : new double[yFittedLength]);
+            data.setLocation(readInts(in));
+            dataList.add(data);
+        }
+        return dataList;
+    }
+
+    /**
+     * Writes a successful response.
+     * 
+     * @param out
+     * @param resultsList null entries for failed fits
+     * @throws IOException 
+     */
+    static void writeResults(DataOutputStream out, List<IFitResults> resultsList)
+            throws IOException {
+        out.writeInt(OK);
+        out.writeInt(resultsList.size());
+        for (IFitResults results : resultsList) {
+            out.writeBoolean(null != results);
+            if (null != results) {
+                out.writeDouble(results.getChiSquare());
+                writeDoubles(out, results.getParams());
+                writeDoubles(out, results.getYFitted());
+                writeInts(out, results.getLocation());
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes a failure response.
+     * 
+     * @param out
+     * @param message
+     * @throws IOException 
+     */
+    static void writeError(DataOutputStream out, String message)
+            throws IOException {
+        out.writeInt(ERROR);
+        out.writeUTF(null == message ? "" : message);
+        out.flush();
+    }
+
+    /**
+     * Reads a response.
+     * 
+     * @param in
+     * @return results, null entries for failed fits
+     * @throws IOException if the connection fails or the worker reports an error
+     */
+    static List<IFitResults> readResults(DataInputStream in) throws IOException {
+        if (OK != in.readInt()) {
+            throw new IOException("Worker error " + in.readUTF());
+        }
+        int count = readLength(in, MAX_SHARD_PIXELS);
+        List<IFitResults> resultsList = new ArrayList<IFitResults>(count);
+        for (int i = 0; i < count; ++i) {
+            IFitResults results = null;
+            if (in.readBoolean()) {
+                results = new FitResults();
+                results.setChiSquare(in.readDouble());
+                results.setParams(readDoubles(in));
+                results.setYFitted(readDoubles(in));
+                results.setLocation(readInts(in));
+            }
+            resultsList.add(results);
+        }
+        return resultsList;
+    }
+
+    /**
+     * Gets a shared instance of a class, by name.  The class must be of the
+     * given type; it is checked before it is initialized or instantiated.
+     * 
+     * @param className
+     * @param type
+     * @return 
+     * @throws IOException if class is of the wrong type or can't be instantiated
+     */
+    static <T> T getInstance(String className, Class<T> type) throws IOException {
+        synchronized (_instances) {
+            Object instance = _instances.get(className);
+            if (null == instance) {
+                Class<?> instanceClass;
+                try {
+                    instanceClass = Class.forName(className, false, FitProtocol.class.getClassLoader());
+                }
+                catch (ClassNotFoundException e) {
+                    throw new IOException("Class not found " + className);
+                }
+                if (!type.isAssignableFrom(instanceClass)) {
+                    throw new IOException(className + " is not a " + type.getName());
+                }
+                try {
+                    instance = instanceClass.newInstance();
+                }
+                catch (Exception e) {
+                    throw new IOException("Error instantiating " + className + " " + e.getMessage());
+                }
+                _instances.put(className, instance);
+            }
+            return type.cast(instance);
+        }
+    }
+    
+    /*
+     * Reads an array length or count, -1 for null.
+     */
+    private static int readLength(DataInputStream in, int maxLength) throws IOException {
+        int length = in.readInt();
+        if (length < -1 || length > maxLength) {
+            throw new IOException("Bad length " + length);
+        }
+        return length;
+    }
+
+    private static void writeDoubles(DataOutputStream out, double[] values)
+            throws IOException {
+        if (null == values) {
+            out.writeInt(-1);
+        }
+        else {
+            out.writeInt(values.length);
+            for (double value : values) {
+                out.writeDouble(value);
+            }
+        }
+    }
+
+    private static double[] readDoubles(DataInputStream in) throws IOException {
+        int length = readLength(in, MAX_ARRAY_LENGTH);
+        if (length < 0) {
+            return null;
+        }
+        double[] values = new double[length];
+        for (int i = 0; i < length; ++i) {
+            values[i] = in.readDouble();
+        }
+        return values;
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values)
+            throws IOException {
+        if (null == values) {
+            out.writeInt(-1);
+        }
+        else {
+            out.writeInt(values.length);
+            for (int value : values) {
+                out.writeInt(value);
+            }
+        }
+    }
+
+    private static int[] readInts(DataInputStream in) throws IOException {
+        int length = readLength(in, MAX_ARRAY_LENGTH);
+        if (length < 0) {
+            return null;
+        }
+        int[] values = new int[length];
+        for (int i = 0; i < length; ++i) {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+
+    private static void writeBooleans(DataOutputStream out, boolean[] values)
+            throws IOException {
+        if (null == values) {
+            out.writeInt(-1);
+        }
+        else {
+            out.writeInt(values.length);
+            for (boolean value : values) {
+                out.writeBoolean(value);
+            }
+        }
+    }
+
+    private static boolean[] readBooleans(DataInputStream in) throws IOException {
+        int length = readLength(in, MAX_ARRAY_LENGTH);
+        if (length < 0) {
+            return null;
+        }
+        boolean[] values = new boolean[length];
+        for (int i = 0; i < length; ++i) {
+            values[i] = in.readBoolean();
+        }
+        return values;
+    }
+}
@@ -0,0 +1,122 @@
+//
+// FitScheduler.java
+//
+
+
+/*
+SLIMPlugin for combined spectral-lifetime image analysis.
+
+Copyright (c) 2010, UW-Madison LOCI
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the names of the ImageJDev.org developers nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package loci.slim.fitting.engine;
+
+/**
+ * Gives interactive fits priority over background image fits.
+ * <p>
+ * Interactive fits, i.e. a single pixel, summed or ROI fit, bracket their work
+ * with beginInteractive and endInteractive.  Background workers call
+ * awaitTurn before each chunk of pixels; while any interactive fit is running
+ * they wait, leaving the processors to the interactive fit, and resume when
+ * it is done.  Chunks already in progress run to completion, so chunks are
+ * kept small.
+ * 
+ * @author Aivar Grislis
+ */
+public class FitScheduler {
+    private static FitScheduler _instance;
+    private final Object _lock = new Object();
+    private volatile int _interactive;
+
+    private FitScheduler() {
+    }
+
+    /**
+     * Gets the singleton.
+     * 
+     * @return 
+     */
+    public static synchronized FitScheduler getInstance() {
+        if (null == _instance) {
+            _instance = new FitScheduler();
+        }
+        return _instance;
+    }
+
+    /**
+     * An interactive fit is starting.  Background fitting pauses.
+     */
+    public void beginInteractive() {
+        synchronized (_lock) {
+            ++_interactive;
+        }
+    }
+
+    /**
+     * An interactive fit is done.  Background fitting resumes if no other
+     * interactive fits are running.
+     */
+    public void endInteractive() {
+        synchronized (_lock) {
+            if (0 == --_interactive) {
+                _lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Whether any interactive fits are running.
+     * 
+     * @return 
+     */
+    public boolean isInteractive() {
+        return _interactive > 0;
+    }
+
+    /**
+     * Called by background workers before fitting a chunk of pixels.  Waits
+     * while interactive fits are running.
+     */
+    public void awaitTurn() {
+        // usual case, no waiting
+        if (0 == _interactive) {
+            return;
+        }
+        synchronized (_lock) {
+            while (_interactive > 0) {
+                try {
+                    _lock.wait();
+                }
+                catch (InterruptedException e) {
+                    // cancelled; let the caller notice
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+}
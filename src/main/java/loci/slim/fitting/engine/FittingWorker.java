@@ -0,0 +1,267 @@
+//
+// FittingWorker.java
+//
+
+
+/*
+SLIMPlugin for combined spectral-lifetime image analysis.
+
+Copyright (c) 2010, UW-Madison LOCI
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the names of the ImageJDev.org developers nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package loci.slim.fitting.engine;
+
+import loci.slim.fitting.params.IFitResults;
+import loci.slim.fitting.params.IGlobalFitParams;
+import loci.slim.fitting.params.ILocalFitParams;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import loci.curvefitter.ICurveFitter;
+
+import imagej.thread.ThreadPool;
+
+/**
+ * Fits shards of pixels on behalf of a ShardedFittingEngine, in this or
+ * another JVM, on this or another host.
+ * 
+ * Run standalone as:
+ * <pre>
+ * java -cp ... loci.slim.fitting.engine.FittingWorker [address:]port [threads]
+ * </pre>
+ * The worker listens on the loopback interface unless given the address of
+ * another interface.  Requests are not authenticated, so only listen on
+ * networks where every host is trusted.
+ * 
+ * Each connection fits with its own curve fitters, on a thread pool shared
+ * by all connections, so shards from several connections are fitted at the
+ * same time.
+ * 
+ * @author Aivar Grislis
+ */
+public class FittingWorker implements Runnable {
+    private static final int THREADS = 4;
+    private static final int BACKLOG = 50;
+    private final ServerSocket _serverSocket;
+    private final ThreadPool<List<IFitResults>> _threadPool;
+    private final int _threads;
+    private volatile boolean _quit;
+    
+    /**
+     * Creates a worker listening on the given port of the loopback interface.
+     * 
+     * @param port or zero for any free port
+     * @param threads number of fitting threads
+     * @throws IOException 
+     */
+    public FittingWorker(int port, int threads) throws IOException {
+        this(InetAddress.getByName(null), port, threads);
+    }
+    
+    /**
+     * Creates a worker listening on the given address and port.
+     * 
+     * @param address interface to listen on
+     * @param port or zero for any free port
+     * @param threads number of fitting threads
+     * @throws IOException 
+     */
+    public FittingWorker(InetAddress address, int port, int threads) throws IOException {
+        _serverSocket = new ServerSocket(port, BACKLOG, address);
+        _threadPool = new ThreadPool<List<IFitResults>>();
+        _threadPool.setThreads(threads);
+        _threads = threads;
+        _quit = false;
+    }
+    
+    /**
+     * Gets the port the worker is listening on.
+     * 
+     * @return 
+     */
+    public int getPort() {
+        return _serverSocket.getLocalPort();
+    }
+    
+    /**
+     * Starts accepting connections on a background thread.
+     */
+    public void start() {
+        Thread thread = new Thread(this, "FittingWorker-" + getPort());
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Stops accepting connections and shuts down the fitting engine.
+     */
+    public void stop() {
+        _quit = true;
+        try {
+            _serverSocket.close();
+        }
+        catch (IOException e) {
+            System.out.println("Error closing worker socket " + e.getMessage());
+        }
+        _threadPool.shutdown();
+    }
+    
+    /**
+     * Accepts connections, serving each on its own thread.
+     */
+    public void run() {
+        while (!_quit) {
+            try {
+                final Socket socket = _serverSocket.accept();
+                Thread thread = new Thread(
+                    new Runnable() {
+                        public void run() {
+                            serve(socket);
+                        }
+                    },
+                    "FittingWorker-" + socket.getRemoteSocketAddress());
+                thread.setDaemon(true);
+                thread.start();
+            }
+            catch (IOException e) {
+                if (!_quit) {
+                    System.out.println("Error accepting connection " + e.getMessage());
+                }
+            }
+        }
+    }
+    
+    /*
+     * Fits requests from a single connection until it closes.
+     */
+    private void serve(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream()));
+            if (FitProtocol.MAGIC != in.readInt()
+                    || FitProtocol.VERSION != in.readInt()) {
+                FitProtocol.writeError(out, "protocol version mismatch");
+                return;
+            }
+            // this connection's own curve fitters, on the shared threads
+            ThreadedFittingEngine fittingEngine
+                    = new ThreadedFittingEngine(_threadPool, _threads);
+            while (!_quit && FitProtocol.FIT == in.readInt()) {
+                ICurveFitter curveFitter;
+                IGlobalFitParams params;
+                List<ILocalFitParams> dataList;
+                try {
+                    curveFitter = FitProtocol.getInstance(in.readUTF(), ICurveFitter.class);
+                    params = FitProtocol.readGlobalFitParams(in);
+                    dataList = FitProtocol.readLocalFitParams(in);
+                }
+                catch (IOException e) {
+                    // can't recover, request is only partially read
+                    FitProtocol.writeError(out, e.getMessage());
+                    return;
+                }
+                catch (IllegalArgumentException e) {
+                    // unknown enum name
+                    FitProtocol.writeError(out, e.getMessage());
+                    return;
+                }
+                try {
+                    fittingEngine.setCurveFitter(curveFitter);
+                    List<IFitResults> resultsList
+                            = fittingEngine.fitAsync(params, dataList, null).get();
+                    FitProtocol.writeResults(out, resultsList);
+                }
+                catch (ExecutionException e) {
+                    FitProtocol.writeError(out, e.getMessage());
+                }
+                catch (InterruptedException e) {
+                    FitProtocol.writeError(out, "interrupted");
+                    return;
+                }
+                catch (RuntimeException e) {
+                    FitProtocol.writeError(out, e.getMessage());
+                }
+            }
+        }
+        catch (EOFException e) {
+            // client went away
+        }
+        catch (SocketException e) {
+            // client went away
+        }
+        catch (IOException e) {
+            System.out.println("Error serving " + socket.getRemoteSocketAddress() + " " + e.getMessage());
+        }
+        finally {
+            try {
+                socket.close();
+            }
+            catch (IOException e) {
+            }
+        }
+    }
+    
+    /**
+     * Runs a standalone worker.
+     * 
+     * @param args optional address and port, optionally number of threads
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("usage: FittingWorker [address:]port [threads]");
+            return;
+        }
+        InetAddress address = InetAddress.getByName(null);
+        int colon = args[0].lastIndexOf(':');
+        if (colon > 0) {
+            address = InetAddress.getByName(args[0].substring(0, colon));
+        }
+        int port = Integer.parseInt(args[0].substring(colon + 1));
+        int threads = THREADS;
+        if (args.length > 1) {
+            threads = Integer.parseInt(args[1]);
+        }
+        FittingWorker worker = new FittingWorker(address, port, threads);
+        System.out.println("FittingWorker listening on " + address.getHostAddress()
+                + " port " + worker.getPort());
+        worker.run();
+    }
+}
@@ -0,0 +1,413 @@
+//
+// ForkJoinFittingEngine.java
+//
+
+
+/*
+SLIMPlugin for combined spectral-lifetime image analysis.
+
+Copyright (c) 2010, UW-Madison LOCI
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the names of the ImageJDev.org developers nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package loci.slim.fitting.engine;
+
+import loci.slim.fitting.params.ILocalFitParams;
+import loci.slim.fitting.params.IGlobalFitParams;
+import loci.slim.fitting.params.IFitResults;
+import loci.slim.fitting.params.PrimitiveFitBatch;
+import loci.slim.fitting.callable.IFittingEngineBatchCallable;
+import loci.slim.fitting.callable.IFittingEngineCallable;
+import loci.slim.fitting.callable.IPrimitiveFitBatchCallable;
+import loci.slim.fitting.config.Configuration;
+import loci.slim.fitting.metrics.FittingMetrics;
+
+import loci.curvefitter.ICurveFitter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fitting engine that uses a work-stealing fork/join pool.
+ * 
+ * The list of pixels is split recursively into ranges of roughly equal photon
+ * count, rather than equal pixel count, until each range is small enough to
+ * fit directly.  Ranges are also kept to a limited number of pixels, so a long
+ * run of dim background pixels is still split up.  Idle workers steal pending
+ * ranges from busy ones, so a slow pixel only holds up its own range instead
+ * of a whole batch.
+ * 
+ * @author Aivar Grislis
+ */
+public class ForkJoinFittingEngine implements IFittingEngine {
+    private static int THREADS = 4;
+    // ranges are split until they hold about this share of a worker's photons
+    private static int SPLITS_PER_THREAD = 8;
+    // pixels per curve fitter call within a range
+    private static int MAX_CHUNK_SIZE = 32;
+    private int _threads = THREADS;
+    private ForkJoinPool _forkJoinPool;
+    private CurveFitterPool _curveFitterPool;
+    private FittingMetrics _metrics;
+    private final List<Future<?>> _pending = new ArrayList<Future<?>>();
+    
+    public ForkJoinFittingEngine() {
+        _forkJoinPool = null;
+        _metrics = FittingMetrics.getInstance();
+    }
+ 
+    /**
+     * Cancel fit or done fitting.
+     */
+    public synchronized void shutdown() {
+        if (null != _forkJoinPool) {
+            _forkJoinPool.shutdownNow();
+            _forkJoinPool = null;
+        }
+        
+        // tasks that never ran won't report in; release anyone waiting
+        for (Future<?> future : _pending) {
+            future.cancel(false);
+        }
+        _pending.clear();
+    }
+    
+    /**
+     * Sets number of threads to use.
+     * 
+     * @param threads 
+     */
+    public synchronized void setThreads(int threads) {
+        if (threads != _threads) {
+            // fork/join pool parallelism is fixed; let fits in progress finish
+            // in the old pool, new fits get a new pool
+            if (null != _forkJoinPool) {
+                _forkJoinPool.shutdown();
+                _forkJoinPool = null;
+            }
+            _threads = threads;
+        }
+    }
+    
+    /**
+     * Sets curve fitter to use.
+     * 
+     * @param curve fitter 
+     */
+    public synchronized void setCurveFitter(ICurveFitter curveFitter) {
+        // keep the existing per-thread fitters if the fitter type is unchanged
+        if (null == _curveFitterPool
+                || curveFitter.getClass() != _curveFitterPool.getPrototype().getClass()) {
+            _curveFitterPool = new CurveFitterPool(curveFitter);
+            _curveFitterPool.setMetrics(_metrics);
+        }
+    }
+    
+    /**
+     * Sets the metrics fits are recorded into.
+     * 
+     * @param metrics 
+     */
+    public synchronized void setMetrics(FittingMetrics metrics) {
+        _metrics = metrics;
+        if (null != _curveFitterPool) {
+            _curveFitterPool.setMetrics(metrics);
+        }
+    }
+    
+    /**
+     * Gets the metrics fits are recorded into.
+     * 
+     * @return 
+     */
+    public synchronized FittingMetrics getMetrics() {
+        return _metrics;
+    }
+    
+    /**
+     * Fits a single pixel with given parameters.
+     * 
+     * Nothing to parallelize, doesn't use the ForkJoinPool.
+     * 
+     * @param params
+     * @param data
+     * @return results
+     */
+    public synchronized IFitResults fit
+            (final IGlobalFitParams params, final ILocalFitParams data) {
+        IFittingEngineCallable callable
+                = Configuration.getInstance().newFittingEngineCallable();
+        callable.setup(_curveFitterPool, params, data);
+        return callable.call();
+    }
+    
+    /**
+     * Fit one or more pixels with given parameters.
+     * 
+     * @param params given parameters
+     * @param data one or more pixels data
+     * @return results one or more pixels results
+     */
+    public synchronized List<IFitResults> fit
+            (final IGlobalFitParams params, final List<ILocalFitParams> dataList) {
+        int size = dataList.size();
+        IFitResults[] results = new IFitResults[size];
+        
+        if (1 == _threads || 1 >= size) {
+            // if single thread sufficient just use current thread
+            fitRange(params, dataList, results, null, 0, size);
+        }
+        else {
+            getForkJoinPool().invoke(
+                    newFitRangeTask(params, dataList, results, null));
+        }
+        return Arrays.asList(results);
+    }
+    
+    /**
+     * Fit one or more pixels with given parameters, asynchronously.
+     * 
+     * @param params given parameters
+     * @param dataList one or more pixels data
+     * @param listener gets each pixel result as it completes, may be null
+     * @return future for all the results
+     */
+    public synchronized Future<List<IFitResults>> fitAsync
+            (final IGlobalFitParams params, final List<ILocalFitParams> dataList,
+            final IFitResultsListener listener) {
+        FitBatchFuture batchFuture
+                = new FitBatchFuture(dataList.size(), listener);
+        IFitResults[] results = new IFitResults[dataList.size()];
+        batchFuture.addFuture(getForkJoinPool().submit(
+                newFitRangeTask(params, dataList, results, batchFuture)));
+        addPending(batchFuture);
+        return batchFuture;
+    }
+    
+    /**
+     * Fits a batch of pixels in place, asynchronously.  The batch is cut into
+     * small chunks which idle workers steal.
+     * 
+     * @param params given parameters
+     * @param batch pixels to fit, gets results
+     * @return future for the batch
+     */
+    public synchronized Future<PrimitiveFitBatch> fitAsync
+            (final IGlobalFitParams params, final PrimitiveFitBatch batch) {
+        int size = batch.getSize();
+        int chunkSize = Math.max(1, Math.min(MAX_CHUNK_SIZE,
+                size / (_threads * SPLITS_PER_THREAD)));
+        final PrimitiveFitBatchFuture batchFuture = new PrimitiveFitBatchFuture
+                (batch, (size + chunkSize - 1) / chunkSize);
+        
+        for (int start = 0; start < size; start += chunkSize) {
+            final IPrimitiveFitBatchCallable callable
+                    = Configuration.getInstance().newPrimitiveFitBatchCallable();
+            callable.setup(_curveFitterPool, params, batch,
+                    start, Math.min(start + chunkSize, size));
+            batchFuture.addFuture(getForkJoinPool().submit(
+                new Runnable() {
+                    public void run() {
+                        try {
+                            // stop promptly, cancelling a ForkJoinTask doesn't interrupt
+                            if (!batchFuture.isCancelled()) {
+                                // let interactive fits go first
+                                FitScheduler.getInstance().awaitTurn();
+                                callable.call();
+                            }
+                        }
+                        finally {
+                            batchFuture.chunkDone();
+                        }
+                    }
+                }
+            ));
+        }
+        addPending(batchFuture);
+        return batchFuture;
+    }
+    
+    /*
+     * Keeps track of a future until it is done, so that shutdown can release
+     * its waiters.
+     */
+    private void addPending(Future<?> future) {
+        Iterator<Future<?>> iterator = _pending.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isDone()) {
+                iterator.remove();
+            }
+        }
+        _pending.add(future);
+    }
+    
+    /*
+     * Gets the ForkJoinPool, lazily instantiated.
+     */
+    private ForkJoinPool getForkJoinPool() {
+        if (null == _forkJoinPool) {
+            _forkJoinPool = new ForkJoinPool(_threads);
+        }
+        return _forkJoinPool;
+    }
+    
+    /*
+     * Creates the task that fits the whole list.
+     */
+    private FitRangeTask newFitRangeTask(IGlobalFitParams params,
+            List<ILocalFitParams> dataList, IFitResults[] results,
+            FitBatchFuture batchFuture) {
+        int size = dataList.size();
+        
+        // cumulative photon counts, used to balance the split
+        double[] cumulativePhotons = new double[size + 1];
+        for (int i = 0; i < size; ++i) {
+            cumulativePhotons[i + 1] = cumulativePhotons[i]
+                    + getPhotons(params, dataList.get(i));
+        }
+        double leafPhotons = cumulativePhotons[size]
+                / (_threads * SPLITS_PER_THREAD);
+        int leafPixels = Math.max(MAX_CHUNK_SIZE,
+                size / (_threads * SPLITS_PER_THREAD));
+        return new FitRangeTask(params, dataList, results, batchFuture,
+                cumulativePhotons, leafPhotons, leafPixels, 0, size);
+    }
+    
+    /*
+     * Fits a range of pixels on the current thread, in chunks.
+     */
+    private void fitRange(IGlobalFitParams params,
+            List<ILocalFitParams> dataList, IFitResults[] results,
+            FitBatchFuture batchFuture, int start, int stop) {
+        for (int i = start; i < stop; i += MAX_CHUNK_SIZE) {
+            if (null != batchFuture && batchFuture.isCancelled()) {
+                // stop promptly, cancelling a ForkJoinTask doesn't interrupt
+                return;
+            }
+            if (null != batchFuture) {
+                // asynchronous fits give way to interactive fits
+                FitScheduler.getInstance().awaitTurn();
+            }
+            int chunkStop = Math.min(i + MAX_CHUNK_SIZE, stop);
+            IFittingEngineBatchCallable callable
+                    = Configuration.getInstance().newFittingEngineBatchCallable();
+            callable.setup(_curveFitterPool, params, dataList.subList(i, chunkStop));
+            // a failed chunk comes back as nulls
+            List<IFitResults> resultList = callable.call();
+            for (int j = i; j < chunkStop; ++j) {
+                results[j] = resultList.get(j - i);
+                if (null != batchFuture) {
+                    batchFuture.setResults(j, results[j]);
+                }
+            }
+        }
+    }
+    
+    /*
+     * Counts the photons in the fitted portion of a decay.
+     */
+    private static double getPhotons(IGlobalFitParams params, ILocalFitParams data) {
+        double[] y = data.getY();
+        int start = Math.max(0, params.getTransientStart());
+        int stop = Math.min(y.length, params.getTransientStop() + 1);
+        double photons = 0.0;
+        for (int i = start; i < stop; ++i) {
+            photons += y[i];
+        }
+        // every pixel costs something, even an empty one
+        return Math.max(photons, 1.0);
+    }
+
+    /**
+     * Inner class that fits a range of pixels, splitting it in two while it
+     * has too many photons or too many pixels.
+     */
+    private class FitRangeTask extends RecursiveAction {
+        private final IGlobalFitParams _params;
+        private final List<ILocalFitParams> _dataList;
+        private final IFitResults[] _results;
+        private final FitBatchFuture _batchFuture;
+        private final double[] _cumulativePhotons;
+        private final double _leafPhotons;
+        private final int _leafPixels;
+        private final int _start;
+        private final int _stop;
+        
+        FitRangeTask(IGlobalFitParams params, List<ILocalFitParams> dataList,
+                IFitResults[] results, FitBatchFuture batchFuture,
+                double[] cumulativePhotons, double leafPhotons, int leafPixels,
+                int start, int stop) {
+            _params = params;
+            _dataList = dataList;
+            _results = results;
+            _batchFuture = batchFuture;
+            _cumulativePhotons = cumulativePhotons;
+            _leafPhotons = leafPhotons;
+            _leafPixels = leafPixels;
+            _start = start;
+            _stop = stop;
+        }
+        
+        @Override
+        protected void compute() {
+            double photons = _cumulativePhotons[_stop] - _cumulativePhotons[_start];
+            int pixels = _stop - _start;
+            if (pixels <= 1 || (photons <= _leafPhotons && pixels <= _leafPixels)) {
+                fitRange(_params, _dataList, _results, _batchFuture,
+                        _start, _stop);
+            }
+            else {
+                // halve dim ranges by pixel count
+                int middle = photons <= _leafPhotons ? _start + pixels / 2 : split();
+                invokeAll(
+                        new FitRangeTask(_params, _dataList, _results,
+                            _batchFuture, _cumulativePhotons, _leafPhotons,
+                            _leafPixels, _start, middle),
+                        new FitRangeTask(_params, _dataList, _results,
+                            _batchFuture, _cumulativePhotons, _leafPhotons,
+                            _leafPixels, middle, _stop));
+            }
+        }
+        
+        /*
+         * Finds the index that splits the range into halves of about equal
+         * photon count.
+         */
+        private int split() {
+            double half = (_cumulativePhotons[_start] + _cumulativePhotons[_stop]) / 2;
+            int index = Arrays.binarySearch(_cumulativePhotons, _start + 1, _stop, half);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            return Math.max(_start + 1, Math.min(index, _stop - 1));
+        }
+    }
+}
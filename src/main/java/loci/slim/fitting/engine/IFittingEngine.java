@@ -34,11 +34,14 @@ POSSIBILITY OF SUCH DAMAGE.
 
 package loci.slim.fitting.engine;
 
+import loci.slim.fitting.metrics.FittingMetrics;
 import loci.slim.fitting.params.ILocalFitParams;
 import loci.slim.fitting.params.IGlobalFitParams;
 import loci.slim.fitting.params.IFitResults;
+import loci.slim.fitting.params.PrimitiveFitBatch;
 
 import java.util.List;
+import java.util.concurrent.Future;
 
 import loci.curvefitter.ICurveFitter;
 
@@ -68,6 +71,21 @@ public interface IFittingEngine {
      */
     public void setCurveFitter(ICurveFitter curveFitter);
     
+    /**
+     * Sets the metrics fits are recorded into.  Defaults to the shared
+     * FittingMetrics instance.
+     * 
+     * @param metrics 
+     */
+    public void setMetrics(FittingMetrics metrics);
+    
+    /**
+     * Gets the metrics fits are recorded into.
+     * 
+     * @return 
+     */
+    public FittingMetrics getMetrics();
+    
     /**
      * Fit one pixel.
      * 
@@ -85,4 +103,27 @@ public interface IFittingEngine {
      * @return 
      */
     public List<IFitResults> fit(IGlobalFitParams params, List<ILocalFitParams> dataList);
+    
+    /**
+     * Fits a list of pixels asynchronously.  Returns immediately; each pixel
+     * is passed to the listener as soon as it is fitted.
+     * 
+     * @param params
+     * @param dataList
+     * @param listener gets each fitted pixel, may be null
+     * @return future for the whole list, results in list order
+     */
+    public Future<List<IFitResults>> fitAsync(IGlobalFitParams params,
+            List<ILocalFitParams> dataList, IFitResultsListener listener);
+    
+    /**
+     * Fits a batch of pixels asynchronously, writing the results into the
+     * batch.
+     * 
+     * @param params
+     * @param batch
+     * @return future for the batch
+     */
+    public Future<PrimitiveFitBatch> fitAsync(IGlobalFitParams params,
+            PrimitiveFitBatch batch);
 }
@@ -0,0 +1,146 @@
+//
+// PrimitiveFitBatchFuture.java
+//
+
+
+/*
+SLIMPlugin for combined spectral-lifetime image analysis.
+
+Copyright (c) 2010, UW-Madison LOCI
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the names of the ImageJDev.org developers nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package loci.slim.fitting.engine;
+
+import loci.slim.fitting.params.PrimitiveFitBatch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Future for a PrimitiveFitBatch that is fitted in place, in chunks.  The
+ * batch is done once every chunk has been reported.
+ * 
+ * @author Aivar Grislis
+ */
+public class PrimitiveFitBatchFuture implements Future<PrimitiveFitBatch> {
+    private final PrimitiveFitBatch _batch;
+    private final CountDownLatch _latch;
+    private final List<Future<?>> _futures;
+    private volatile boolean _cancelled;
+    
+    /**
+     * Creates a future for a batch.
+     * 
+     * @param batch
+     * @param chunks number of chunks the batch is fitted in
+     */
+    public PrimitiveFitBatchFuture(PrimitiveFitBatch batch, int chunks) {
+        _batch = batch;
+        _latch = new CountDownLatch(chunks);
+        _futures = new ArrayList<Future<?>>();
+        _cancelled = false;
+    }
+    
+    /**
+     * Keeps track of an underlying task, so it can be cancelled.
+     * 
+     * @param future 
+     */
+    public synchronized void addFuture(Future<?> future) {
+        _futures.add(future);
+        if (_cancelled) {
+            future.cancel(true);
+        }
+    }
+    
+    /**
+     * Reports a fitted chunk.
+     */
+    public void chunkDone() {
+        _latch.countDown();
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            _cancelled = true;
+            for (Future<?> future : _futures) {
+                future.cancel(mayInterruptIfRunning);
+            }
+        }
+        // release anyone waiting
+        while (_latch.getCount() > 0) {
+            _latch.countDown();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return _cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return _cancelled || 0 == _latch.getCount();
+    }
+
+    @Override
+    public PrimitiveFitBatch get()
+            throws InterruptedException, ExecutionException {
+        _latch.await();
+        return getBatch();
+    }
+
+    @Override
+    public PrimitiveFitBatch get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!_latch.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return getBatch();
+    }
+    
+    /*
+     * Gets a completed batch.
+     */
+    private PrimitiveFitBatch getBatch() {
+        if (_cancelled) {
+            throw new CancellationException();
+        }
+        return _batch;
+    }
+}
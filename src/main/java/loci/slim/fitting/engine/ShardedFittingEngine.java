@@ -0,0 +1,581 @@
+//
+// ShardedFittingEngine.java
+//
+
+
+/*
+SLIMPlugin for combined spectral-lifetime image analysis.
+
+Copyright (c) 2010, UW-Madison LOCI
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the names of the ImageJDev.org developers nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package loci.slim.fitting.engine;
+
+import loci.slim.AdaptiveBatcher;
+import loci.slim.fitting.metrics.FittingMetrics;
+import loci.slim.fitting.params.IFitResults;
+import loci.slim.fitting.params.IGlobalFitParams;
+import loci.slim.fitting.params.ILocalFitParams;
+import loci.slim.fitting.params.PrimitiveFitBatch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import loci.curvefitter.ICurveFitter;
+
+/**
+ * Fitting engine that spreads pixels over FittingWorker processes.
+ * 
+ * Each list of pixels is cut into shards which are sent to the workers over
+ * sockets; results are gathered back into list order.  Workers pull shards
+ * as they need them, so faster workers fit more of them.  Shards are sized
+ * by an AdaptiveBatcher so each takes long enough to fit that the network
+ * round trip is hidden.  If a worker fails or stops answering its shard is
+ * put back for the remaining workers, and if no workers remain the leftover
+ * shards are fitted locally.  A failed worker is retried after a while.
+ * 
+ * Single pixel fits are always done locally.
+ * 
+ * @author Aivar Grislis
+ */
+public class ShardedFittingEngine implements IFittingEngine {
+    private static final int INITIAL_SHARD_SIZE = 256;
+    private static final int CONNECTIONS_PER_WORKER = 2;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    // a worker that takes longer than this on a shard is considered hung
+    private static final int READ_TIMEOUT_MILLIS = 60000;
+    private static final long RETRY_MILLIS = 30000;
+    private final List<WorkerConnection> _connections;
+    private final ThreadedFittingEngine _localFittingEngine;
+    private final ExecutorService _executorService;
+    private final AdaptiveBatcher _batcher;
+    private ICurveFitter _curveFitter;
+    
+    /**
+     * Creates an engine for a set of workers.
+     * 
+     * @param workerAddresses list of "host:port"
+     */
+    public ShardedFittingEngine(List<String> workerAddresses) {
+        _connections = new ArrayList<WorkerConnection>();
+        for (String workerAddress : workerAddresses) {
+            InetSocketAddress address = parseAddress(workerAddress);
+            if (null != address) {
+                for (int i = 0; i < CONNECTIONS_PER_WORKER; ++i) {
+                    _connections.add(new WorkerConnection(address));
+                }
+            }
+        }
+        _localFittingEngine = new ThreadedFittingEngine();
+        _batcher = new AdaptiveBatcher(_connections.size(), INITIAL_SHARD_SIZE);
+        _executorService = Executors.newCachedThreadPool(
+            new ThreadFactory() {
+                private int _count = 0;
+                public synchronized Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ShardedFittingEngine-" + _count++);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }
+        );
+    }
+    
+    /**
+     * Closes worker connections and stops local fitting.
+     */
+    public void shutdown() {
+        _executorService.shutdownNow();
+        for (WorkerConnection connection : _connections) {
+            connection.quit();
+        }
+        _localFittingEngine.shutdown();
+    }
+    
+    /**
+     * Sets number of threads for local fitting.
+     * 
+     * @param threads 
+     */
+    public synchronized void setThreads(int threads) {
+        _localFittingEngine.setThreads(threads);
+    }
+    
+    /**
+     * Sets curve fitter to use, locally and on the workers.
+     * 
+     * @param curveFitter 
+     */
+    public synchronized void setCurveFitter(ICurveFitter curveFitter) {
+        _curveFitter = curveFitter;
+        _localFittingEngine.setCurveFitter(curveFitter);
+    }
+    
+    /**
+     * Sets the metrics local fits are recorded into.
+     * 
+     * @param metrics 
+     */
+    public void setMetrics(FittingMetrics metrics) {
+        _localFittingEngine.setMetrics(metrics);
+    }
+    
+    /**
+     * Gets the metrics local fits are recorded into.
+     * 
+     * @return 
+     */
+    public FittingMetrics getMetrics() {
+        return _localFittingEngine.getMetrics();
+    }
+    
+    /**
+     * Fits a single pixel locally.
+     * 
+     * @param params
+     * @param data
+     * @return results
+     */
+    public IFitResults fit(IGlobalFitParams params, ILocalFitParams data) {
+        return _localFittingEngine.fit(params, data);
+    }
+    
+    /**
+     * Fits one or more pixels on the workers.
+     * 
+     * @param params
+     * @param dataList
+     * @return results, in list order; null results for pixels not fitted
+     */
+    public List<IFitResults> fit(IGlobalFitParams params, List<ILocalFitParams> dataList) {
+        Future<List<IFitResults>> future = fitAsync(params, dataList, null);
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e) {
+            System.out.println("ShardedFittingEngine interrupted " + e.getMessage());
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e) {
+            System.out.println("ShardedFittingEngine exception " + e.getMessage());
+        }
+        
+        // callers match results to pixels by position
+        List<IFitResults> resultsList = new ArrayList<IFitResults>(dataList.size());
+        for (int i = 0; i < dataList.size(); ++i) {
+            resultsList.add(null);
+        }
+        return resultsList;
+    }
+    
+    /**
+     * Fits one or more pixels on the workers, asynchronously.
+     * 
+     * @param params given parameters
+     * @param dataList one or more pixels data
+     * @param listener gets each pixel result as it completes, may be null
+     * @return future for all the results
+     */
+    public Future<List<IFitResults>> fitAsync
+            (final IGlobalFitParams params, final List<ILocalFitParams> dataList,
+            final IFitResultsListener listener) {
+        final ICurveFitter curveFitter;
+        synchronized (this) {
+            curveFitter = _curveFitter;
+        }
+        final FitBatchFuture batchFuture
+                = new FitBatchFuture(dataList.size(), listener);
+        
+        // one sender per available worker connection
+        List<WorkerConnection> connections = new ArrayList<WorkerConnection>();
+        for (WorkerConnection connection : _connections) {
+            if (connection.isAvailable()) {
+                connections.add(connection);
+            }
+        }
+        
+        // shards are cut as senders ask for them
+        final ShardQueue shards = new ShardQueue(dataList,
+                Math.max(connections.size(), 1));
+        if (connections.isEmpty()) {
+            batchFuture.addFuture(_executorService.submit(
+                new Runnable() {
+                    public void run() {
+                        fitLocally(params, shards, batchFuture);
+                    }
+                }
+            ));
+            return batchFuture;
+        }
+        final AtomicInteger senders = new AtomicInteger(connections.size());
+        for (final WorkerConnection connection : connections) {
+            FutureTask<Void> sender = new FutureTask<Void>(
+                new Runnable() {
+                    public void run() {
+                        try {
+                            send(connection, curveFitter, params, shards, batchFuture);
+                        }
+                        catch (RuntimeException e) {
+                            System.out.println("Exception fitting " + e.getMessage()); //TODO IJ.log it!
+                        }
+                        finally {
+                            // last sender fits any shards left by failed workers
+                            if (0 == senders.decrementAndGet()) {
+                                fitLocally(params, shards, batchFuture);
+                            }
+                        }
+                    }
+                }, null) {
+                @Override
+                protected void done() {
+                    // socket reads can't be interrupted, so close the socket
+                    //   if it carries a shard of this batch
+                    if (isCancelled()) {
+                        connection.abort(batchFuture);
+                    }
+                }
+            };
+            batchFuture.addFuture(sender);
+            _executorService.execute(sender);
+        }
+        return batchFuture;
+    }
+    
+    /**
+     * Fits a batch of pixels on the workers, asynchronously.  The batch is
+     * converted to local fit parameters for sending and the results are
+     * copied back.
+     * 
+     * @param params given parameters
+     * @param batch pixels to fit, gets results
+     * @return future for the batch
+     */
+    public Future<PrimitiveFitBatch> fitAsync
+            (final IGlobalFitParams params, final PrimitiveFitBatch batch) {
+        final Future<List<IFitResults>> future
+                = fitAsync(params, batch.toLocalFitParamsList(), null);
+        final PrimitiveFitBatchFuture batchFuture
+                = new PrimitiveFitBatchFuture(batch, 1);
+        batchFuture.addFuture(future);
+        batchFuture.addFuture(_executorService.submit(
+            new Runnable() {
+                public void run() {
+                    try {
+                        List<IFitResults> resultsList = future.get();
+                        for (int i = 0; i < resultsList.size(); ++i) {
+                            batch.setResults(i, resultsList.get(i));
+                        }
+                    }
+                    catch (Exception e) {
+                        // cancelled or interrupted
+                    }
+                    finally {
+                        batchFuture.chunkDone();
+                    }
+                }
+            }
+        ));
+        return batchFuture;
+    }
+    
+    /*
+     * Sends shards to a worker until there are no more or the worker fails.
+     */
+    private void send(WorkerConnection connection, ICurveFitter curveFitter,
+            IGlobalFitParams params, ShardQueue shards,
+            FitBatchFuture batchFuture) {
+        Shard shard;
+        while (!batchFuture.isCancelled()
+                && null != (shard = shards.next(_batcher.getBatchSize()))) {
+            List<IFitResults> resultsList
+                    = connection.fit(batchFuture, curveFitter, params, shard._dataList);
+            if (null == resultsList) {
+                // resubmit
+                shards.retry(shard);
+                return;
+            }
+            _batcher.dispatched(connection.getWriteNanos());
+            _batcher.fitted(shard._dataList.size());
+            report(shard, resultsList, batchFuture);
+        }
+    }
+    
+    /*
+     * Fits remaining shards with the local fitting engine.
+     */
+    private void fitLocally(IGlobalFitParams params, ShardQueue shards,
+            FitBatchFuture batchFuture) {
+        Shard shard;
+        while (!batchFuture.isCancelled()
+                && null != (shard = shards.next(Integer.MAX_VALUE))) {
+            List<IFitResults> resultsList = null;
+            try {
+                resultsList = _localFittingEngine.fit(params, shard._dataList);
+            }
+            catch (RuntimeException e) {
+                System.out.println("Exception fitting " + e.getMessage()); //TODO IJ.log it!
+            }
+            report(shard, resultsList, batchFuture);
+        }
+    }
+    
+    /*
+     * Reports the results of a shard.  A list that came back short can't be
+     * matched up with the pixels, so that shard is reported as failed.
+     */
+    private void report(Shard shard, List<IFitResults> resultsList,
+            FitBatchFuture batchFuture) {
+        int size = shard._dataList.size();
+        if (null != resultsList && resultsList.size() != size) {
+            System.out.println("Lost fits in shard at " + shard._start); //TODO IJ.log it!
+            resultsList = null;
+        }
+        for (int i = 0; i < size; ++i) {
+            batchFuture.setResults(shard._start + i,
+                    null == resultsList ? null : resultsList.get(i));
+        }
+    }
+    
+    /*
+     * Parses "host:port".
+     */
+    private static InetSocketAddress parseAddress(String workerAddress) {
+        InetSocketAddress address = null;
+        int colon = workerAddress.lastIndexOf(':');
+        try {
+            String host = colon > 0 ? workerAddress.substring(0, colon) : "localhost";
+            int port = Integer.parseInt(workerAddress.substring(colon + 1).trim());
+            address = new InetSocketAddress(host.trim(), port);
+        }
+        catch (NumberFormatException e) {
+            System.out.println("Bad worker address " + workerAddress);
+        }
+        return address;
+    }
+    
+    /**
+     * A contiguous run of pixels from a list.
+     */
+    private static class Shard {
+        final int _start;
+        final List<ILocalFitParams> _dataList;
+        
+        Shard(int start, List<ILocalFitParams> dataList) {
+            _start = start;
+            _dataList = dataList;
+        }
+    }
+    
+    /**
+     * Cuts a list of pixels into shards on demand, so each shard can be sized
+     * as it is sent.  Shards given back by failed workers are handed out
+     * again first.
+     */
+    private static class ShardQueue {
+        private final List<ILocalFitParams> _dataList;
+        private final int _maxShardSize;
+        private final Queue<Shard> _retries;
+        private int _next;
+        
+        /*
+         * Shards are limited so every sender gets a share of a short list.
+         */
+        ShardQueue(List<ILocalFitParams> dataList, int senders) {
+            _dataList = dataList;
+            _maxShardSize = Math.max(1, (dataList.size() + senders - 1) / senders);
+            _retries = new LinkedList<Shard>();
+            _next = 0;
+        }
+        
+        /*
+         * Gets the next shard of at most the given size, null if none left.
+         */
+        synchronized Shard next(int size) {
+            Shard shard = _retries.poll();
+            if (null == shard && _next < _dataList.size()) {
+                int start = _next;
+                int stop = Math.min(start + Math.min(size, _maxShardSize), _dataList.size());
+                shard = new Shard(start, _dataList.subList(start, stop));
+                _next = stop;
+            }
+            return shard;
+        }
+        
+        /*
+         * Gives back a shard that wasn't fitted.
+         */
+        synchronized void retry(Shard shard) {
+            _retries.add(shard);
+        }
+    }
+    
+    /**
+     * A connection to a worker, opened on demand.  Only one shard is in
+     * flight on a connection at a time; concurrent batches take turns.
+     */
+    private static class WorkerConnection {
+        private final InetSocketAddress _address;
+        private volatile Socket _socket;
+        private DataInputStream _in;
+        private DataOutputStream _out;
+        private volatile long _retryTime;
+        private final Object _abortLock = new Object();
+        private Object _owner;
+        private volatile boolean _aborted;
+        private long _writeNanos;
+        
+        WorkerConnection(InetSocketAddress address) {
+            _address = address;
+            _retryTime = 0;
+        }
+        
+        /*
+         * Whether this connection is not waiting to retry a failed worker.
+         */
+        boolean isAvailable() {
+            return System.currentTimeMillis() >= _retryTime;
+        }
+        
+        /*
+         * Fits a shard for a batch; returns null if the worker failed or
+         * the batch was cancelled.
+         */
+        synchronized List<IFitResults> fit(Object owner, ICurveFitter curveFitter,
+                IGlobalFitParams params, List<ILocalFitParams> dataList) {
+            synchronized (_abortLock) {
+                _owner = owner;
+                _aborted = false;
+            }
+            try {
+                if (null == _socket) {
+                    connect();
+                }
+                long writeTime = System.nanoTime();
+                FitProtocol.writeRequest(_out, curveFitter, params, dataList);
+                _writeNanos = System.nanoTime() - writeTime;
+                return FitProtocol.readResults(_in);
+            }
+            catch (IOException e) {
+                close();
+                if (!_aborted) {
+                    System.out.println("Worker " + _address + " failed " + e.getMessage()); //TODO IJ.log it!
+                    _retryTime = System.currentTimeMillis() + RETRY_MILLIS;
+                }
+                
+                // otherwise the batch was cancelled, worker is fine
+                return null;
+            }
+            finally {
+                synchronized (_abortLock) {
+                    _owner = null;
+                }
+            }
+        }
+        
+        /*
+         * Gets the time taken to send the last shard.
+         */
+        synchronized long getWriteNanos() {
+            return _writeNanos;
+        }
+        
+        /*
+         * Breaks off a shard in progress, from another thread, if it belongs
+         * to the given batch.
+         */
+        void abort(Object owner) {
+            synchronized (_abortLock) {
+                Socket socket = _socket;
+                if (owner == _owner && null != socket) {
+                    _aborted = true;
+                    try {
+                        socket.close();
+                    }
+                    catch (IOException e) {
+                    }
+                }
+            }
+        }
+        
+        /*
+         * Tells the worker we are done and closes the connection.
+         */
+        synchronized void quit() {
+            if (null != _socket) {
+                try {
+                    _out.writeInt(FitProtocol.QUIT);
+                    _out.flush();
+                }
+                catch (IOException e) {
+                }
+                close();
+            }
+        }
+        
+        private void connect() throws IOException {
+            _socket = new Socket();
+            _socket.connect(_address, CONNECT_TIMEOUT_MILLIS);
+            _socket.setTcpNoDelay(true);
+            _socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            _in = new DataInputStream(
+                    new BufferedInputStream(_socket.getInputStream()));
+            _out = new DataOutputStream(
+                    new BufferedOutputStream(_socket.getOutputStream()));
+            _out.writeInt(FitProtocol.MAGIC);
+            _out.writeInt(FitProtocol.VERSION);
+        }
+        
+        private void close() {
+            if (null != _socket) {
+                try {
+                    _socket.close();
+                }
+                catch (IOException e) {
+                }
+            }
+            _socket = null;
+            _in = null;
+            _out = null;
+        }
+    }
+}
@@ -37,29 +37,56 @@ package loci.slim.fitting.engine;
 import loci.slim.fitting.params.ILocalFitParams;
 import loci.slim.fitting.params.IGlobalFitParams;
 import loci.slim.fitting.params.IFitResults;
+import loci.slim.fitting.params.PrimitiveFitBatch;
+import loci.slim.fitting.callable.IFittingEngineBatchCallable;
 import loci.slim.fitting.callable.IFittingEngineCallable;
+import loci.slim.fitting.callable.IPrimitiveFitBatchCallable;
 import loci.slim.fitting.config.Configuration;
+import loci.slim.fitting.metrics.FittingMetrics;
 
 import loci.curvefitter.ICurveFitter;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import imagej.thread.ThreadPool;
 
 /**
- * Fitting engine that uses a thread pool.
+ * Fitting engine that uses a thread pool.  Each worker thread fits with its
+ * own curve fitter.  Lists of pixels are fitted in chunks, one curve fitter
+ * call per chunk.
  * 
  * @author Aivar Grislis
  */
 public class ThreadedFittingEngine implements IFittingEngine {
     private static int THREADS = 4;
+    private static int CHUNKS_PER_THREAD = 4;
+    // bounds how long an interactive fit waits on chunks already in progress
+    private static int MAX_CHUNK_SIZE = 64;
     private int _threads = THREADS;
-    private ThreadPool<IFitResults> _threadPool;
-    private ICurveFitter _curveFitter;
+    private ThreadPool<List<IFitResults>> _threadPool;
+    private CurveFitterPool _curveFitterPool;
+    private FittingMetrics _metrics;
     
     public ThreadedFittingEngine() {
-        _threadPool = new ThreadPool<IFitResults>();
+        _threadPool = new ThreadPool<List<IFitResults>>();
+        _metrics = FittingMetrics.getInstance();
+    }
+    
+    /**
+     * Creates an engine that fits on a thread pool shared with other engines.
+     * Each engine still has its own curve fitters.  Shutting down any of these
+     * engines shuts down the shared pool.
+     * 
+     * @param threadPool
+     * @param threads number of threads in the pool
+     */
+    ThreadedFittingEngine(ThreadPool<List<IFitResults>> threadPool, int threads) {
+        _threadPool = threadPool;
+        _threads = threads;
+        _metrics = FittingMetrics.getInstance();
     }
  
     /**
@@ -75,6 +102,7 @@ public class ThreadedFittingEngine implements IFittingEngine {
      * @param threads 
      */
     public synchronized void setThreads(int threads) {
+        _threads = threads;
         _threadPool.setThreads(threads);
     }
     
@@ -84,7 +112,33 @@ public class ThreadedFittingEngine implements IFittingEngine {
      * @param curve fitter 
      */
     public synchronized void setCurveFitter(ICurveFitter curveFitter) {
-        _curveFitter = curveFitter;
+        // keep the existing per-thread fitters if the fitter type is unchanged
+        if (null == _curveFitterPool
+                || curveFitter.getClass() != _curveFitterPool.getPrototype().getClass()) {
+            _curveFitterPool = new CurveFitterPool(curveFitter);
+            _curveFitterPool.setMetrics(_metrics);
+        }
+    }
+    
+    /**
+     * Sets the metrics fits are recorded into.
+     * 
+     * @param metrics 
+     */
+    public synchronized void setMetrics(FittingMetrics metrics) {
+        _metrics = metrics;
+        if (null != _curveFitterPool) {
+            _curveFitterPool.setMetrics(metrics);
+        }
+    }
+    
+    /**
+     * Gets the metrics fits are recorded into.
+     * 
+     * @return 
+     */
+    public synchronized FittingMetrics getMetrics() {
+        return _metrics;
     }
     
     /**
@@ -100,7 +154,7 @@ public class ThreadedFittingEngine implements IFittingEngine {
             (final IGlobalFitParams params, final ILocalFitParams data) {
         IFittingEngineCallable callable
                 = Configuration.getInstance().newFittingEngineCallable();
-        callable.setup(_curveFitter, params, data);
+        callable.setup(_curveFitterPool, params, data);
         return callable.call();
     }
     
@@ -114,17 +168,122 @@ public class ThreadedFittingEngine implements IFittingEngine {
     public synchronized List<IFitResults> fit
             (final IGlobalFitParams params, final List<ILocalFitParams> dataList) {
         
-        List<IFittingEngineCallable> callableList
-                = new ArrayList<IFittingEngineCallable>();
+        List<IFittingEngineBatchCallable> callableList
+                = new ArrayList<IFittingEngineBatchCallable>();
         
-        for (ILocalFitParams data : dataList) {
-            IFittingEngineCallable callable
-                    = Configuration.getInstance().newFittingEngineCallable();
-            callable.setup(_curveFitter, params, data);
+        int chunkSize = getChunkSize(dataList.size());
+        for (int start = 0; start < dataList.size(); start += chunkSize) {
+            int stop = Math.min(start + chunkSize, dataList.size());
+            IFittingEngineBatchCallable callable
+                    = Configuration.getInstance().newFittingEngineBatchCallable();
+            callable.setup(_curveFitterPool, params, dataList.subList(start, stop));
             callableList.add(callable);
         }
         
-        List<IFitResults> resultList = _threadPool.process(callableList);
+        List<IFitResults> resultList = new ArrayList<IFitResults>();
+        for (List<IFitResults> chunkResultList : _threadPool.process(callableList)) {
+            resultList.addAll(chunkResultList);
+        }
         return resultList;
     }
+    
+    /**
+     * Fit one or more pixels with given parameters, asynchronously.
+     * 
+     * @param params given parameters
+     * @param dataList one or more pixels data
+     * @param listener gets each pixel result as it completes, may be null
+     * @return future for all the results
+     */
+    public synchronized Future<List<IFitResults>> fitAsync
+            (final IGlobalFitParams params, final List<ILocalFitParams> dataList,
+            final IFitResultsListener listener) {
+        final FitBatchFuture batchFuture
+                = new FitBatchFuture(dataList.size(), listener);
+        
+        int chunkSize = getChunkSize(dataList.size());
+        for (int i = 0; i < dataList.size(); i += chunkSize) {
+            final int start = i;
+            final int stop = Math.min(start + chunkSize, dataList.size());
+            final IFittingEngineBatchCallable callable
+                    = Configuration.getInstance().newFittingEngineBatchCallable();
+            callable.setup(_curveFitterPool, params, dataList.subList(start, stop));
+            final FittingMetrics metrics = _metrics;
+            final long submitTime = System.nanoTime();
+            batchFuture.addFuture(_threadPool.submit(
+                new Callable<List<IFitResults>>() {
+                    public List<IFitResults> call() {
+                        metrics.recordQueueWait
+                                (System.nanoTime() - submitTime);
+                        List<IFitResults> resultList = null;
+                        try {
+                            // let interactive fits go first
+                            FitScheduler.getInstance().awaitTurn();
+                            resultList = callable.call();
+                        }
+                        finally {
+                            for (int j = start; j < stop; ++j) {
+                                batchFuture.setResults(j,
+                                        null == resultList ? null : resultList.get(j - start));
+                            }
+                        }
+                        return resultList;
+                    }
+                }
+            ));
+        }
+        return batchFuture;
+    }
+    
+    /**
+     * Fits a batch of pixels in place, asynchronously.
+     * 
+     * @param params given parameters
+     * @param batch pixels to fit, gets results
+     * @return future for the batch
+     */
+    public synchronized Future<PrimitiveFitBatch> fitAsync
+            (final IGlobalFitParams params, final PrimitiveFitBatch batch) {
+        int size = batch.getSize();
+        int chunkSize = getChunkSize(size);
+        final PrimitiveFitBatchFuture batchFuture = new PrimitiveFitBatchFuture
+                (batch, (size + chunkSize - 1) / chunkSize);
+        
+        for (int start = 0; start < size; start += chunkSize) {
+            final IPrimitiveFitBatchCallable callable
+                    = Configuration.getInstance().newPrimitiveFitBatchCallable();
+            callable.setup(_curveFitterPool, params, batch,
+                    start, Math.min(start + chunkSize, size));
+            final FittingMetrics metrics = _metrics;
+            final long submitTime = System.nanoTime();
+            batchFuture.addFuture(_threadPool.submit(
+                new Callable<List<IFitResults>>() {
+                    public List<IFitResults> call() {
+                        metrics.recordQueueWait
+                                (System.nanoTime() - submitTime);
+                        try {
+                            // let interactive fits go first
+                            FitScheduler.getInstance().awaitTurn();
+                            callable.call();
+                        }
+                        finally {
+                            batchFuture.chunkDone();
+                        }
+                        // results are in the batch
+                        return null;
+                    }
+                }
+            ));
+        }
+        return batchFuture;
+    }
+    
+    /*
+     * Gets the number of pixels to fit in a single call, so that each thread
+     * still gets several chunks to balance the load.
+     */
+    private int getChunkSize(int size) {
+        int chunkSize = size / (_threads * CHUNKS_PER_THREAD);
+        return Math.max(1, Math.min(chunkSize, MAX_CHUNK_SIZE));
+    }
 }
@@ -0,0 +1,327 @@
+//
+// FittingMetrics.java
+//
+
+
+/*
+SLIMPlugin for combined spectral-lifetime image analysis.
+
+Copyright (c) 2010, UW-Madison LOCI
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the names of the ImageJDev.org developers nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package loci.slim.fitting.metrics;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects timings for image fits: per-pixel fit latency, how long fits wait
+ * for a worker thread, how long batches wait to be extracted and fitted, and
+ * time spent colorizing and updating the histogram.
+ * 
+ * Pixels fitted in chunks share a single curve fitter call, so only the
+ * chunk's average time per pixel is known.  These averages are kept apart
+ * from individually timed fits; their percentiles describe chunks, not
+ * single fits.
+ * 
+ * Metrics are reset at the start of each image fit and may be queried at any
+ * time, or dumped periodically to the console.  The shared instance serves
+ * the interactive plugin; fits that run side by side, such as batch files,
+ * should each collect into their own instance.
+ * 
+ * @author Aivar Grislis
+ */
+public class FittingMetrics {
+    private static final double NANOS_PER_SECOND = 1.0e9;
+    private static final double NANOS_PER_MILLI = 1.0e6;
+    private static FittingMetrics _instance;
+    private final LatencyHistogram _fitLatency;
+    private final LatencyHistogram _chunkFitLatency;
+    private final LatencyHistogram _queueWait;
+    private final LatencyHistogram _dispatch;
+    private final LatencyHistogram _batchWait;
+    private final LatencyHistogram _resultWait;
+    private final LatencyHistogram _colorize;
+    private final LatencyHistogram _histogram;
+    private final AtomicLong _pixelsFitted;
+    private final AtomicLong _fitNanos;
+    private final AtomicLong _startTime;
+    private volatile int _threads;
+    private Timer _dumpTimer;
+
+    public FittingMetrics() {
+        _fitLatency = new LatencyHistogram();
+        _chunkFitLatency = new LatencyHistogram();
+        _queueWait = new LatencyHistogram();
+        _dispatch = new LatencyHistogram();
+        _batchWait = new LatencyHistogram();
+        _resultWait = new LatencyHistogram();
+        _colorize = new LatencyHistogram();
+        _histogram = new LatencyHistogram();
+        _pixelsFitted = new AtomicLong();
+        _fitNanos = new AtomicLong();
+        _startTime = new AtomicLong(System.nanoTime());
+        _threads = 1;
+    }
+
+    /**
+     * Gets the shared instance.
+     * 
+     * @return 
+     */
+    public static synchronized FittingMetrics getInstance() {
+        if (null == _instance) {
+            _instance = new FittingMetrics();
+        }
+        return _instance;
+    }
+
+    /**
+     * Starts collecting metrics for a new fit.
+     * 
+     * @param threads number of fitting threads, for utilization
+     */
+    public void reset(int threads) {
+        _threads = Math.max(threads, 1);
+        _fitLatency.reset();
+        _chunkFitLatency.reset();
+        _queueWait.reset();
+        _dispatch.reset();
+        _batchWait.reset();
+        _resultWait.reset();
+        _colorize.reset();
+        _histogram.reset();
+        _pixelsFitted.set(0);
+        _fitNanos.set(0);
+        _startTime.set(System.nanoTime());
+    }
+
+    /**
+     * Records time spent fitting a single pixel, on a worker thread.
+     * 
+     * @param nanos 
+     */
+    public void recordFit(long nanos) {
+        _fitLatency.record(nanos);
+        _pixelsFitted.incrementAndGet();
+        _fitNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Records time spent fitting a chunk of pixels with one curve fitter
+     * call, on a worker thread.  The average time per pixel is recorded once
+     * per chunk.
+     * 
+     * @param nanos for the whole chunk
+     * @param pixels in the chunk
+     */
+    public void recordFits(long nanos, int pixels) {
+        if (pixels > 0) {
+            _chunkFitLatency.record(nanos / pixels);
+            _pixelsFitted.addAndGet(pixels);
+            _fitNanos.addAndGet(nanos);
+        }
+    }
+
+    /**
+     * Records time a pixel fit waited for a worker thread.
+     * 
+     * @param nanos 
+     */
+    public void recordQueueWait(long nanos) {
+        _queueWait.record(nanos);
+    }
+
+    /**
+     * Records time spent handing a batch to the fitting engine.
+     * 
+     * @param nanos 
+     */
+    public void recordDispatch(long nanos) {
+        _dispatch.record(nanos);
+    }
+
+    /**
+     * Records time pixel extraction waited to queue a batch.
+     * 
+     * @param nanos 
+     */
+    public void recordBatchWait(long nanos) {
+        _batchWait.record(nanos);
+    }
+
+    /**
+     * Records time drawing waited for a batch to be fitted.
+     * 
+     * @param nanos 
+     */
+    public void recordResultWait(long nanos) {
+        _resultWait.record(nanos);
+    }
+
+    /**
+     * Records time spent storing and colorizing a batch.
+     * 
+     * @param nanos 
+     */
+    public void recordColorize(long nanos) {
+        _colorize.record(nanos);
+    }
+
+    /**
+     * Records time spent recalculating the histogram.
+     * 
+     * @param nanos 
+     */
+    public void recordHistogram(long nanos) {
+        _histogram.record(nanos);
+    }
+
+    public LatencyHistogram getFitLatency() {
+        return _fitLatency;
+    }
+
+    public LatencyHistogram getChunkFitLatency() {
+        return _chunkFitLatency;
+    }
+
+    public LatencyHistogram getQueueWait() {
+        return _queueWait;
+    }
+
+    public LatencyHistogram getDispatch() {
+        return _dispatch;
+    }
+
+    public LatencyHistogram getBatchWait() {
+        return _batchWait;
+    }
+
+    public LatencyHistogram getResultWait() {
+        return _resultWait;
+    }
+
+    public LatencyHistogram getColorize() {
+        return _colorize;
+    }
+
+    public LatencyHistogram getHistogram() {
+        return _histogram;
+    }
+
+    public long getPixelsFitted() {
+        return _pixelsFitted.get();
+    }
+
+    /**
+     * Gets seconds since the fit started.
+     * 
+     * @return 
+     */
+    public double getElapsedSeconds() {
+        return (System.nanoTime() - _startTime.get()) / NANOS_PER_SECOND;
+    }
+
+    /**
+     * Gets fit throughput since the fit started.
+     * 
+     * @return pixels per second
+     */
+    public double getPixelsPerSecond() {
+        double elapsed = getElapsedSeconds();
+        return elapsed > 0.0 ? getPixelsFitted() / elapsed : 0.0;
+    }
+
+    /**
+     * Gets the fraction of available worker time spent fitting.
+     * 
+     * @return 0.0 to 1.0
+     */
+    public double getWorkerUtilization() {
+        double elapsed = getElapsedSeconds() * NANOS_PER_SECOND * _threads;
+        return elapsed > 0.0 ? Math.min(_fitNanos.get() / elapsed, 1.0) : 0.0;
+    }
+
+    /**
+     * Starts printing the metrics to the console periodically.
+     * 
+     * @param periodMillis 
+     */
+    public synchronized void startDump(long periodMillis) {
+        stopDump();
+        _dumpTimer = new Timer("FittingMetrics", true);
+        _dumpTimer.schedule(
+            new TimerTask() {
+                public void run() {
+                    System.out.println(FittingMetrics.this.toString()); //TODO IJ.log it!
+                }
+            },
+            periodMillis, periodMillis);
+    }
+
+    /**
+     * Stops printing the metrics.
+     */
+    public synchronized void stopDump() {
+        if (null != _dumpTimer) {
+            _dumpTimer.cancel();
+            _dumpTimer = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("fitted %d pixels in %.1fs, %.0f pixels/s, %.0f%% worker utilization",
+                getPixelsFitted(), getElapsedSeconds(), getPixelsPerSecond(),
+                100.0 * getWorkerUtilization()));
+        append(builder, "fit", _fitLatency);
+        append(builder, "fit, chunk average per pixel", _chunkFitLatency);
+        append(builder, "queue wait", _queueWait);
+        append(builder, "dispatch", _dispatch);
+        append(builder, "batch wait", _batchWait);
+        append(builder, "result wait", _resultWait);
+        append(builder, "colorize", _colorize);
+        append(builder, "histogram", _histogram);
+        return builder.toString();
+    }
+
+    /*
+     * Appends a line summarizing a histogram, in milliseconds.
+     */
+    private void append(StringBuilder builder, String name, LatencyHistogram histogram) {
+        builder.append(String.format("%n  %s: n=%d mean=%.3f p50=%.3f p90=%.3f p99=%.3f max=%.3f ms",
+                name,
+                histogram.getCount(),
+                histogram.getMeanNanos() / NANOS_PER_MILLI,
+                histogram.getPercentileNanos(50.0) / NANOS_PER_MILLI,
+                histogram.getPercentileNanos(90.0) / NANOS_PER_MILLI,
+                histogram.getPercentileNanos(99.0) / NANOS_PER_MILLI,
+                histogram.getMaxNanos() / NANOS_PER_MILLI));
+    }
+}
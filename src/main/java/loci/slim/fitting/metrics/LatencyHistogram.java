@@ -0,0 +1,144 @@
+//
+// LatencyHistogram.java
+//
+
+
+/*
+SLIMPlugin for combined spectral-lifetime image analysis.
+
+Copyright (c) 2010, UW-Madison LOCI
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the names of the ImageJDev.org developers nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package loci.slim.fitting.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations in nanoseconds.  Durations are counted in
+ * power of two buckets, so percentiles are approximate.
+ * 
+ * @author Aivar Grislis
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 64;
+    private final AtomicLongArray _buckets;
+    private final AtomicLong _count;
+    private final AtomicLong _total;
+    private final AtomicLong _max;
+
+    public LatencyHistogram() {
+        _buckets = new AtomicLongArray(BUCKETS);
+        _count = new AtomicLong();
+        _total = new AtomicLong();
+        _max = new AtomicLong();
+    }
+
+    /**
+     * Counts a duration.
+     * 
+     * @param nanos 
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        _buckets.incrementAndGet(bucket(nanos));
+        _count.incrementAndGet();
+        _total.addAndGet(nanos);
+        long max = _max.get();
+        while (nanos > max && !_max.compareAndSet(max, nanos)) {
+            max = _max.get();
+        }
+    }
+
+    /**
+     * Clears all counts.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; ++i) {
+            _buckets.set(i, 0);
+        }
+        _count.set(0);
+        _total.set(0);
+        _max.set(0);
+    }
+
+    public long getCount() {
+        return _count.get();
+    }
+
+    public long getTotalNanos() {
+        return _total.get();
+    }
+
+    public long getMaxNanos() {
+        return _max.get();
+    }
+
+    public double getMeanNanos() {
+        long count = _count.get();
+        return 0 == count ? 0.0 : (double) _total.get() / count;
+    }
+
+    /**
+     * Gets an approximate percentile, interpolating within the bucket.
+     * 
+     * @param percentile 0.0 to 100.0
+     * @return duration in nanoseconds
+     */
+    public double getPercentileNanos(double percentile) {
+        long count = 0;
+        long[] buckets = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; ++i) {
+            buckets[i] = _buckets.get(i);
+            count += buckets[i];
+        }
+        if (0 == count) {
+            return 0.0;
+        }
+        double rank = percentile / 100.0 * count;
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            if (buckets[i] > 0 && cumulative + buckets[i] >= rank) {
+                double low = 0 == i ? 0.0 : (double) (1L << (i - 1));
+                double high = 0 == i ? 1.0 : 2.0 * low;
+                double fraction = (rank - cumulative) / buckets[i];
+                return Math.min(low + fraction * (high - low), _max.get());
+            }
+            cumulative += buckets[i];
+        }
+        return _max.get();
+    }
+
+    /*
+     * Bucket 0 holds zero, bucket i holds [2^(i-1), 2^i).
+     */
+    private static int bucket(long nanos) {
+        return Math.min(64 - Long.numberOfLeadingZeros(nanos), BUCKETS - 1);
+    }
+}
@@ -43,6 +43,7 @@ public class FitResults implements IFitResults {
     double _chiSquare;
     double[] _params;
     double[] _yFitted;
+    int[] _location;
     
     public void setChiSquare(double chiSquare) {
         _chiSquare = chiSquare;
@@ -67,4 +68,12 @@ public class FitResults implements IFitResults {
     public double[] getYFitted() {
         return _yFitted;
     }
+    
+    public void setLocation(int[] location) {
+        _location = location;
+    }
+    
+    public int[] getLocation() {
+        return _location;
+    }
 }
@@ -82,4 +82,18 @@ public interface IFitResults {
      * @return 
      */
     public double[] getYFitted();
+
+    /**
+     * Sets location of fitted pixel.
+     * 
+     * @param location 
+     */
+    public void setLocation(int[] location);
+
+    /**
+     * Gets location of fitted pixel.
+     * 
+     * @return 
+     */
+    public int[] getLocation();
 }
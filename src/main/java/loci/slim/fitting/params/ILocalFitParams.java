@@ -57,4 +57,8 @@ public interface ILocalFitParams {
     public void setYFitted(double[] yFitted); //TODO ARG not really a fit param
     
     public double[] getYFitted(); //TODO ARG not really a fit param
+    
+    public void setLocation(int[] location); //TODO ARG not really a fit param
+    
+    public int[] getLocation(); //TODO ARG not really a fit param
 }
@@ -47,6 +47,7 @@ public class LocalFitParams implements ILocalFitParams {
     private int _fitStop;
     private double[] _params;
     private double[] _yFitted;
+    private int[] _location;
     
     @Override
     public void setY(double[] y) {
@@ -87,4 +88,14 @@ public class LocalFitParams implements ILocalFitParams {
     public double[] getYFitted() {
         return _yFitted;
     }
+    
+    @Override
+    public void setLocation(int[] location) {
+        _location = location;
+    }
+    
+    @Override
+    public int[] getLocation() {
+        return _location;
+    }
 }
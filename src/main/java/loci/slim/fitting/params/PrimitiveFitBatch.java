@@ -0,0 +1,295 @@
+//
+// PrimitiveFitBatch.java
+//
+
+
+/*
+SLIMPlugin for combined spectral-lifetime image analysis.
+
+Copyright (c) 2010, UW-Madison LOCI
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the names of the ImageJDev.org developers nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package loci.slim.fitting.params;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import loci.curvefitter.CurveFitData;
+import loci.curvefitter.ICurveFitData;
+
+/**
+ * A batch of pixels to fit, kept in preallocated primitive arrays that are
+ * reused from batch to batch, so that fitting an image doesn't allocate
+ * objects per pixel.
+ * 
+ * Per-pixel values are stored as parallel arrays indexed by pixel.  The
+ * decay, parameters and fitted curve are rows of bins or parameters, since
+ * ICurveFitData takes one array per pixel; the curve fitter works directly in
+ * these rows and the ICurveFitData objects are reused as well.
+ * 
+ * @author Aivar Grislis
+ */
+public class PrimitiveFitBatch {
+    private final int _capacity;
+    private final int _bins;
+    private final int _parameters;
+    private final double[][] _decay;
+    private final double[][] _params;
+    private final double[][] _yFitted;
+    private final double[] _chiSquare;
+    private final boolean[] _fitted;
+    private final int[] _x;
+    private final int[] _y;
+    private final int[] _channel;
+    private final ICurveFitData[] _curveFitData;
+    private int _size;
+
+    /**
+     * Creates a batch.
+     * 
+     * @param capacity maximum number of pixels
+     * @param bins number of bins in a decay
+     * @param parameters number of fitted parameters
+     */
+    public PrimitiveFitBatch(int capacity, int bins, int parameters) {
+        _capacity = capacity;
+        _bins = bins;
+        _parameters = parameters;
+        _decay = new double[capacity][bins];
+        _params = new double[capacity][parameters];
+        _yFitted = new double[capacity][bins];
+        _chiSquare = new double[capacity];
+        _fitted = new boolean[capacity];
+        _x = new int[capacity];
+        _y = new int[capacity];
+        _channel = new int[capacity];
+        _curveFitData = new ICurveFitData[capacity];
+        for (int i = 0; i < capacity; ++i) {
+            _curveFitData[i] = new CurveFitData();
+        }
+        _size = 0;
+    }
+
+    public int getCapacity() {
+        return _capacity;
+    }
+
+    public int getBins() {
+        return _bins;
+    }
+
+    public int getParameterCount() {
+        return _parameters;
+    }
+
+    public int getSize() {
+        return _size;
+    }
+
+    public boolean isFull() {
+        return _size >= _capacity;
+    }
+
+    /**
+     * Empties the batch for reuse.
+     */
+    public void clear() {
+        _size = 0;
+    }
+
+    /**
+     * Adds a pixel, copying its decay and initial parameters.
+     * 
+     * @param decay
+     * @param params initial parameters
+     * @param x output location
+     * @param y output location
+     * @param channel output location
+     * @return index of pixel in batch
+     */
+    public int add(double[] decay, double[] params, int x, int y, int channel) {
+        return add(decay, 0, params, x, y, channel);
+    }
+
+    /**
+     * Adds a pixel, copying its decay from within a larger array, such as the
+     * decays of a block of pixels.
+     * 
+     * @param decays
+     * @param offset start of decay in decays
+     * @param params initial parameters
+     * @param x output location
+     * @param y output location
+     * @param channel output location
+     * @return index of pixel in batch
+     */
+    public int add(double[] decays, int offset, double[] params, int x, int y, int channel) {
+        int index = _size++;
+        System.arraycopy(decays, offset, _decay[index], 0, _bins);
+        System.arraycopy(params, 0, _params[index], 0, _parameters);
+        _chiSquare[index] = 0.0;
+        _fitted[index] = false;
+        _x[index] = x;
+        _y[index] = y;
+        _channel[index] = channel;
+        return index;
+    }
+
+    public double[] getDecay(int index) {
+        return _decay[index];
+    }
+
+    /**
+     * Gets the parameters row; initial parameters before the fit, fitted
+     * parameters afterwards.
+     * 
+     * @param index
+     * @return 
+     */
+    public double[] getParams(int index) {
+        return _params[index];
+    }
+
+    public double[] getYFitted(int index) {
+        return _yFitted[index];
+    }
+
+    public double getChiSquare(int index) {
+        return _chiSquare[index];
+    }
+
+    public void setChiSquare(int index, double chiSquare) {
+        _chiSquare[index] = chiSquare;
+    }
+
+    /**
+     * Gets whether the pixel was fitted successfully.
+     * 
+     * @param index
+     * @return 
+     */
+    public boolean isFitted(int index) {
+        return _fitted[index];
+    }
+
+    public void setFitted(int index, boolean fitted) {
+        _fitted[index] = fitted;
+    }
+
+    public int getX(int index) {
+        return _x[index];
+    }
+
+    public int getY(int index) {
+        return _y[index];
+    }
+
+    public int getChannel(int index) {
+        return _channel[index];
+    }
+
+    /**
+     * Gets the reusable curve fit data for a pixel, pointed at the pixel's
+     * rows.
+     * 
+     * @param index
+     * @param globalParams
+     * @return 
+     */
+    public ICurveFitData getCurveFitData(int index, IGlobalFitParams globalParams) {
+        ICurveFitData curveFitData = _curveFitData[index];
+        curveFitData.setChiSquareTarget(globalParams.getChiSquareTarget());
+        curveFitData.setYCount(_decay[index]);
+        curveFitData.setTransStartIndex(globalParams.getTransientStart());
+        curveFitData.setDataStartIndex(globalParams.getDataStart());
+        curveFitData.setTransEndIndex(globalParams.getTransientStop());        
+        curveFitData.setSig(null);
+        curveFitData.setParams(_params[index]); // fitted in place
+        curveFitData.setYFitted(_yFitted[index]);
+        return curveFitData;
+    }
+
+    /**
+     * Gets the results from the curve fit data, after a fit.
+     * 
+     * @param index 
+     */
+    public void setResults(int index) {
+        ICurveFitData curveFitData = _curveFitData[index];
+        _chiSquare[index] = curveFitData.getChiSquare();
+        copy(curveFitData.getParams(), _params[index]);
+        copy(curveFitData.getYFitted(), _yFitted[index]);
+        _fitted[index] = true;
+    }
+
+    /**
+     * Converts to local fit parameters, for fitting engines that can't fit
+     * in place.
+     * 
+     * @return 
+     */
+    public List<ILocalFitParams> toLocalFitParamsList() {
+        List<ILocalFitParams> dataList = new ArrayList<ILocalFitParams>(_size);
+        for (int i = 0; i < _size; ++i) {
+            ILocalFitParams data = new LocalFitParams();
+            data.setY(_decay[i]);
+            data.setSig(null);
+            data.setParams(_params[i]);
+            data.setYFitted(_yFitted[i]);
+            data.setLocation(new int[] { _x[i], _y[i], _channel[i] });
+            dataList.add(data);
+        }
+        return dataList;
+    }
+
+    /**
+     * Copies back results from a fitting engine that can't fit in place.
+     * 
+     * @param index
+     * @param results null if fit failed
+     */
+    public void setResults(int index, IFitResults results) {
+        if (null == results) {
+            _fitted[index] = false;
+        }
+        else {
+            _chiSquare[index] = results.getChiSquare();
+            copy(results.getParams(), _params[index]);
+            copy(results.getYFitted(), _yFitted[index]);
+            _fitted[index] = true;
+        }
+    }
+
+    /*
+     * Copies fitter output into a row, unless the fitter worked in place.
+     */
+    private static void copy(double[] source, double[] row) {
+        if (null != source && source != row) {
+            System.arraycopy(source, 0, row, 0, Math.min(source.length, row.length));
+        }
+    }
+}
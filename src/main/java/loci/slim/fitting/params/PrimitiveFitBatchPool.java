@@ -0,0 +1,103 @@
+//
+// PrimitiveFitBatchPool.java
+//
+
+
+/*
+SLIMPlugin for combined spectral-lifetime image analysis.
+
+Copyright (c) 2010, UW-Madison LOCI
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the names of the ImageJDev.org developers nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package loci.slim.fitting.params;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Recycles PrimitiveFitBatches of a given decay and parameter size.  Batches
+ * are acquired by the thread extracting pixels and released by the thread
+ * drawing the results.
+ * 
+ * @author Aivar Grislis
+ */
+public class PrimitiveFitBatchPool {
+    private final int _bins;
+    private final int _parameters;
+    private final int _maxPooled;
+    private final Queue<PrimitiveFitBatch> _pool;
+    private final AtomicInteger _pooled;
+
+    /**
+     * Creates a pool.
+     * 
+     * @param bins number of bins in a decay
+     * @param parameters number of fitted parameters
+     * @param maxPooled maximum number of idle batches kept
+     */
+    public PrimitiveFitBatchPool(int bins, int parameters, int maxPooled) {
+        _bins = bins;
+        _parameters = parameters;
+        _maxPooled = maxPooled;
+        _pool = new ConcurrentLinkedQueue<PrimitiveFitBatch>();
+        _pooled = new AtomicInteger();
+    }
+
+    /**
+     * Gets an empty batch that holds at least the given number of pixels.
+     * 
+     * @param capacity
+     * @return 
+     */
+    public PrimitiveFitBatch acquire(int capacity) {
+        PrimitiveFitBatch batch = _pool.poll();
+        if (null != batch) {
+            _pooled.decrementAndGet();
+            if (batch.getCapacity() >= capacity) {
+                return batch;
+            }
+            // too small, let it go
+        }
+        return new PrimitiveFitBatch(capacity, _bins, _parameters);
+    }
+
+    /**
+     * Returns a batch to the pool once its results are used.
+     * 
+     * @param batch 
+     */
+    public void release(PrimitiveFitBatch batch) {
+        batch.clear();
+        if (_pooled.incrementAndGet() <= _maxPooled) {
+            _pool.offer(batch);
+        }
+        else {
+            _pooled.decrementAndGet();
+        }
+    }
+}
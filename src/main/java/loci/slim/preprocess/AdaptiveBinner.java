@@ -0,0 +1,81 @@
+//
+// AdaptiveBinner.java
+//
+
+
+/*
+SLIMPlugin for combined spectral-lifetime image analysis.
+
+Copyright (c) 2010, UW-Madison LOCI
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the names of the ImageJDev.org developers nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package loci.slim.preprocess;
+
+/**
+ * A plugin within a plugin, this is used to bin the fit input.
+ * <p>
+ * Each pixel is binned by the smallest square, up to 11 x 11, that holds the
+ * target number of photons over the transient.  Bright pixels are left alone
+ * and dim ones are binned more.  The photon counts of the squares are looked
+ * up in a summed-area table of intensities, so choosing the square is cheap.
+ *
+ * @author Aivar Grislis grislis at wisc dot edu
+ */
+@SLIMBinner("Adaptive")
+public class AdaptiveBinner extends SummedAreaBinner implements ISLIMAdaptiveBinner {
+    private static final int MAX_SIZE = 5;
+    private static final int DEFAULT_PHOTONS = 1000;
+    private int _start;
+    private int _stop = Integer.MAX_VALUE;
+    private int _photons = DEFAULT_PHOTONS;
+
+    public void init(int width, int height) {
+        super.init(MAX_SIZE, width, height);
+    }
+
+    public void setTarget(int start, int stop, int photons) {
+        _start   = start;
+        _stop    = stop;
+        _photons = photons > 0 ? photons : DEFAULT_PHOTONS;
+    }
+
+    /**
+     * Grows the square until it holds enough photons.
+     * 
+     * @param location
+     * @return pixels to either side, zero for none
+     */
+    @Override
+    protected int getSize(int[] location) {
+        int size = 0;
+        while (size < MAX_SIZE
+                && getIntensity(location, size, _start, _stop) < _photons) {
+            ++size;
+        }
+        return size;
+    }
+}
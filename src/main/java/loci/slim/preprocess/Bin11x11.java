@@ -44,7 +44,7 @@ package loci.slim.preprocess;
  * @author Aivar Grislis
  */
 @SLIMBinner("11 x 11")
-public class Bin11x11 extends SquareBinner implements ISLIMBinner {
+public class Bin11x11 extends SummedAreaBinner implements ISLIMBinner {
     public void init(int width, int height) {
         super.init(5, width, height);
     }
@@ -44,7 +44,7 @@ package loci.slim.preprocess;
  * @author Aivar Grislis
  */
 @SLIMBinner("3 x 3")
-public class Bin3x3 extends SquareBinner implements ISLIMBinner {
+public class Bin3x3 extends SummedAreaBinner implements ISLIMBinner {
     public void init(int width, int height) {
         super.init(1, width, height);
     }
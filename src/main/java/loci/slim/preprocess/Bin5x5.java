@@ -44,7 +44,7 @@ package loci.slim.preprocess;
  * @author Aivar Grislis
  */
 @SLIMBinner("5 x 5")
-public class Bin5x5 extends SquareBinner implements ISLIMBinner {
+public class Bin5x5 extends SummedAreaBinner implements ISLIMBinner {
     public void init(int width, int height) {
         super.init(2, width, height);
     }
@@ -44,7 +44,7 @@ package loci.slim.preprocess;
  * @author Aivar Grislis grislis at wisc dot edu
  */
 @SLIMBinner("7 x 7")
-public class Bin7x7 extends SquareBinner implements ISLIMBinner {
+public class Bin7x7 extends SummedAreaBinner implements ISLIMBinner {
     public void init(int width, int height) {
         super.init(3, width, height);
     }
@@ -44,7 +44,7 @@ package loci.slim.preprocess;
  * @author Aivar Grislis
  */
 @SLIMBinner("9 x 9")
-public class Bin9x9 extends SquareBinner implements ISLIMBinner {
+public class Bin9x9 extends SummedAreaBinner implements ISLIMBinner {
     public void init(int width, int height) {
         super.init(4, width, height);
     }
@@ -0,0 +1,212 @@
+//
+// DecayBlock.java
+//
+
+
+/*
+SLIMPlugin for combined spectral-lifetime image analysis.
+
+Copyright (c) 2010, UW-Madison LOCI
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the names of the ImageJDev.org developers nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package loci.slim.preprocess;
+
+import java.util.Arrays;
+
+/**
+ * A rectangular block of decay curves, filled in by an IBlockProcessor.
+ * <p>
+ * The decays are kept in a single array, a row of pixels at a time with the
+ * bins of each pixel contiguous.  Blocks are meant to be allocated once and
+ * reused for every block of an image.
+ * <p>
+ * Pixels may be marked as not wanted before the block is filled, for example
+ * pixels that are below a threshold.  Processors needn't build the decays of
+ * those pixels and mark them invalid.
+ * 
+ * @author Aivar Grislis grislis at wisc dot edu
+ */
+public class DecayBlock {
+    private final int _capacity;
+    private final int _bins;
+    private final double[] _decays;
+    private final boolean[] _valid;
+    private final boolean[] _wanted;
+    private int _x;
+    private int _y;
+    private int _channel;
+    private int _width;
+    private int _height;
+
+    /**
+     * Creates a block.
+     * 
+     * @param capacity maximum number of pixels
+     * @param bins number of bins in a decay
+     */
+    public DecayBlock(int capacity, int bins) {
+        _capacity = capacity;
+        _bins     = bins;
+        _decays   = new double[capacity * bins];
+        _valid    = new boolean[capacity];
+        _wanted   = new boolean[capacity];
+    }
+
+    /**
+     * Sets the pixels the block holds.  All pixels are wanted.
+     * 
+     * @param x left
+     * @param y top
+     * @param channel
+     * @param width
+     * @param height 
+     */
+    public void setRegion(int x, int y, int channel, int width, int height) {
+        if (width * height > _capacity) {
+            throw new IllegalArgumentException("Block of " + width + " x "
+                    + height + " exceeds capacity " + _capacity);
+        }
+        _x       = x;
+        _y       = y;
+        _channel = channel;
+        _width   = width;
+        _height  = height;
+        Arrays.fill(_wanted, 0, width * height, true);
+    }
+
+    public int getCapacity() {
+        return _capacity;
+    }
+
+    public int getBins() {
+        return _bins;
+    }
+
+    public int getX() {
+        return _x;
+    }
+
+    public int getY() {
+        return _y;
+    }
+
+    public int getChannel() {
+        return _channel;
+    }
+
+    public int getWidth() {
+        return _width;
+    }
+
+    public int getHeight() {
+        return _height;
+    }
+
+    /**
+     * Gets the decays of all pixels.
+     * 
+     * @return 
+     */
+    public double[] getDecays() {
+        return _decays;
+    }
+
+    /**
+     * Gets where a pixel's decay starts in the decays array.
+     * 
+     * @param i column within block
+     * @param j row within block
+     * @return 
+     */
+    public int getOffset(int i, int j) {
+        return (j * _width + i) * _bins;
+    }
+
+    /**
+     * Gets whether a pixel has a decay; false where getPixel would have
+     * returned null.
+     * 
+     * @param i column within block
+     * @param j row within block
+     * @return 
+     */
+    public boolean isValid(int i, int j) {
+        return _valid[j * _width + i];
+    }
+
+    public void setValid(int i, int j, boolean valid) {
+        _valid[j * _width + i] = valid;
+    }
+
+    /**
+     * Gets whether a pixel's decay should be built; processors may skip
+     * pixels that are not wanted and mark them invalid.
+     * 
+     * @param i column within block
+     * @param j row within block
+     * @return 
+     */
+    public boolean isWanted(int i, int j) {
+        return _wanted[j * _width + i];
+    }
+
+    public void setWanted(int i, int j, boolean wanted) {
+        _wanted[j * _width + i] = wanted;
+    }
+
+    /**
+     * Fills the block from a processor, a block at a time if the processor
+     * supports it, otherwise a pixel at a time.
+     * 
+     * @param processor 
+     */
+    public void fill(IProcessor processor) {
+        if (processor instanceof IBlockProcessor) {
+            ((IBlockProcessor) processor).getBlock(this);
+            return;
+        }
+        int[] location = new int[] { 0, 0, _channel };
+        for (int j = 0; j < _height; ++j) {
+            for (int i = 0; i < _width; ++i) {
+                if (!isWanted(i, j)) {
+                    setValid(i, j, false);
+                    continue;
+                }
+                
+                // binners may move the location about
+                location[0] = _x + i;
+                location[1] = _y + j;
+                location[2] = _channel;
+                double[] decay = processor.getPixel(location);
+                if (null != decay) {
+                    System.arraycopy(decay, 0, _decays, getOffset(i, j), _bins);
+                }
+                setValid(i, j, null != decay);
+            }
+        }
+    }
+}
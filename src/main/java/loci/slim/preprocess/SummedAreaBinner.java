@@ -0,0 +1,455 @@
+//
+// SummedAreaBinner.java
+//
+
+
+/*
+SLIMPlugin for combined spectral-lifetime image analysis.
+
+Copyright (c) 2010, UW-Madison LOCI
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the names of the ImageJDev.org developers nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package loci.slim.preprocess;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class bins the image using summed-area tables.
+ * <p>
+ * Squares are summed pixel by pixel at first, so binning a few pixels stays
+ * cheap.  Once about as many pixels have been read as the channel holds,
+ * every pixel of the channel is read once to build a table, for each bin, of
+ * the sums of all pixels above and to the left.  Any square is then summed
+ * from four table entries per bin, however large the square.  Only the
+ * tables of the latest channel are kept, and channels whose tables would not
+ * fit in the free heap are binned pixel by pixel, as in SquareBinner.
+ * <p>
+ * Photon counts are summed the same way, from a table of the counts over a
+ * range of bins, so pixels may be thresholded without being binned.
+ * 
+ * @author Aivar Grislis grislis at wisc dot edu
+ */
+public class SummedAreaBinner implements IBlockProcessor, IIntensityProcessor {
+    // tables may take up to half of the free heap, the rest is left for fitting
+    private static final long MEMORY_DIVISOR = 2;
+    private int _size;
+    private int _width;
+    private int _height;
+    private IProcessor _processor;
+    private final Map<Integer, double[]> _tables = new ConcurrentHashMap<Integer, double[]>();
+    private final Map<List<Integer>, double[]> _intensities = new ConcurrentHashMap<List<Integer>, double[]>();
+    private final AtomicLong _pixelsSummed = new AtomicLong();
+    private final AtomicLong _intensitiesSummed = new AtomicLong();
+    private int _bins;
+
+    /**
+     * Initializes the binner.  Must be called once after instantiation and
+     * before use.
+     * 
+     * @param size
+     * @param width
+     * @param height 
+     */
+    public void init(int size, int width, int height) {
+        _size   = size;
+        _width  = width;
+        _height = height;
+    }
+    
+    /**
+     * Specifies a source IProcessor to be chained to this one.
+     * 
+     * @param processor 
+     */
+    public void chain(IProcessor processor) {
+        _processor = processor;
+        _tables.clear();
+        _intensities.clear();
+        _pixelsSummed.set(0);
+        _intensitiesSummed.set(0);
+    }
+    
+    /**
+     * Gets input pixel value.
+     * 
+     * @param location
+     * @return pixel value
+     */
+    public double[] getPixel(int[] location) {
+        return getPixel(location, getSize(location));
+    }
+
+    /**
+     * Gets input pixel value, binned by a square of a given size.
+     * 
+     * @param location
+     * @param size pixels to either side, zero for none
+     * @return pixel value
+     */
+    protected double[] getPixel(int[] location, int size) {
+        int x = location[0];
+        int y = location[1];
+        int startX = Math.max(x - size, 0);
+        int stopX  = Math.min(x + size, _width - 1) + 1;
+        int startY = Math.max(y - size, 0);
+        int stopY  = Math.min(y + size, _height - 1) + 1;
+        
+        double[] table = getTable(location[2], (stopX - startX) * (stopY - startY));
+        if (null == table) {
+            // bin pixel by pixel
+            return sumPixels(location[2], startX, stopX, startY, stopY);
+        }
+        
+        double[] sum = new double[_bins];
+        if (0 == sumSquare(table, startX, stopX, startY, stopY, sum, 0)) {
+            // no valid pixels in square
+            return null;
+        }
+        return sum;
+    }
+
+    /**
+     * Gets a block of binned input pixels.
+     * 
+     * @param block 
+     */
+    public void getBlock(DecayBlock block) {
+        int[] location = new int[] { 0, 0, block.getChannel() };
+        double[] decays = block.getDecays();
+        for (int j = 0; j < block.getHeight(); ++j) {
+            for (int i = 0; i < block.getWidth(); ++i) {
+                if (!block.isWanted(i, j)) {
+                    block.setValid(i, j, false);
+                    continue;
+                }
+                location[0] = block.getX() + i;
+                location[1] = block.getY() + j;
+                int offset = block.getOffset(i, j);
+                int size = getSize(location);
+                int startX = Math.max(location[0] - size, 0);
+                int stopX  = Math.min(location[0] + size, _width - 1) + 1;
+                int startY = Math.max(location[1] - size, 0);
+                int stopY  = Math.min(location[1] + size, _height - 1) + 1;
+                
+                double[] table = getTable(location[2], (stopX - startX) * (stopY - startY));
+                if (null == table) {
+                    // bin pixel by pixel
+                    double[] decay = sumPixels(location[2], startX, stopX, startY, stopY);
+                    if (null != decay) {
+                        System.arraycopy(decay, 0, decays, offset, decay.length);
+                    }
+                    block.setValid(i, j, null != decay);
+                }
+                else {
+                    block.setValid(i, j,
+                            0 != sumSquare(table, startX, stopX, startY, stopY, decays, offset));
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the size of the square to bin a pixel by.
+     * 
+     * @param location
+     * @return pixels to either side, zero for none
+     */
+    protected int getSize(int[] location) {
+        return _size;
+    }
+
+    /**
+     * Gets input pixel photon count, binned by the square.
+     * 
+     * @param location
+     * @param start first bin to count
+     * @param stop last bin to count
+     * @return photon count
+     */
+    public double getIntensity(int[] location, int start, int stop) {
+        return getIntensity(location, getSize(location), start, stop);
+    }
+
+    /**
+     * Gets input pixel photon count, binned by a square of a given size.
+     * 
+     * @param location
+     * @param size pixels to either side, zero for none
+     * @param start first bin to count
+     * @param stop last bin to count
+     * @return photon count
+     */
+    protected double getIntensity(int[] location, int size, int start, int stop) {
+        int x = location[0];
+        int y = location[1];
+        int startX = Math.max(x - size, 0);
+        int stopX  = Math.min(x + size, _width - 1) + 1;
+        int startY = Math.max(y - size, 0);
+        int stopY  = Math.min(y + size, _height - 1) + 1;
+        
+        double[] table = getIntensities(location[2], start, stop, (stopX - startX) * (stopY - startY));
+        if (null == table) {
+            // count pixel by pixel
+            return sumIntensities(location[2], startX, stopX, startY, stopY, start, stop);
+        }
+        int stride = _width + 1;
+        return table[stopY * stride + stopX] - table[stopY * stride + startX]
+                - table[startY * stride + stopX] + table[startY * stride + startX];
+    }
+
+    /*
+     * Sums a rectangle of each bin from its corners in the summed-area table.
+     * Returns the number of valid pixels in the rectangle.
+     */
+    private double sumSquare(double[] table, int startX, int stopX, int startY, int stopY,
+            double[] sum, int offset) {
+        int stride = _width + 1;
+        int entry = _bins + 1;
+        int bottomRight = (stopY  * stride + stopX)  * entry;
+        int bottomLeft  = (stopY  * stride + startX) * entry;
+        int topRight    = (startY * stride + stopX)  * entry;
+        int topLeft     = (startY * stride + startX) * entry;
+        for (int b = 0; b < _bins; ++b) {
+            sum[offset + b] = table[bottomRight + b] - table[bottomLeft + b]
+                    - table[topRight + b] + table[topLeft + b];
+        }
+        return table[bottomRight + _bins] - table[bottomLeft + _bins]
+                - table[topRight + _bins] + table[topLeft + _bins];
+    }
+
+    /*
+     * Sums the pixels of a rectangle one by one.
+     */
+    private double[] sumPixels(int channel, int startX, int stopX, int startY, int stopY) {
+        double[] sum = null;
+        int[] location = new int[] { 0, 0, channel };
+        for (int j = startY; j < stopY; ++j) {
+            location[1] = j;
+            for (int i = startX; i < stopX; ++i) {
+                location[0] = i;
+                double[] pixel = _processor.getPixel(location);
+                if (null != pixel) {
+                    if (null == sum) {
+                        sum = pixel.clone();
+                    }
+                    else {
+                        for (int b = 0; b < sum.length; ++b) {
+                            sum[b] += pixel[b];
+                        }
+                    }
+                }
+            }
+        }
+        return sum;
+    }
+
+    /*
+     * Counts the photons of a rectangle one pixel at a time.
+     */
+    private double sumIntensities(int channel, int startX, int stopX, int startY, int stopY,
+            int start, int stop) {
+        double sum = 0.0;
+        int[] location = new int[] { 0, 0, channel };
+        for (int j = startY; j < stopY; ++j) {
+            location[1] = j;
+            for (int i = startX; i < stopX; ++i) {
+                location[0] = i;
+                sum += getSourceIntensity(location, start, stop);
+            }
+        }
+        return sum;
+    }
+
+    /*
+     * Gets the summed-area table for the channel, building it once enough
+     * pixels have been summed one by one.  Returns null if the pixels should
+     * be summed one by one.
+     * 
+     * @param pixels number of pixels about to be summed
+     */
+    private double[] getTable(int channel, int pixels) {
+        double[] table = _tables.get(channel);
+        if (null == table) {
+            if (_pixelsSummed.addAndGet(pixels) <= (long) _width * _height) {
+                // building a table would read more
+                return null;
+            }
+            synchronized (this) {
+                table = _tables.get(channel);
+                if (null == table) {
+                    // free the tables of earlier channels first
+                    _tables.clear();
+                    table = buildTable(channel);
+                    if (null != table) {
+                        _tables.put(channel, table);
+                    }
+                    _pixelsSummed.set(0);
+                }
+            }
+        }
+        return table;
+    }
+
+    /*
+     * Gets the summed-area table of photon counts for the channel and range
+     * of bins, building it once enough pixels have been counted one by one.
+     * Returns null if the pixels should be counted one by one.
+     * 
+     * @param pixels number of pixels about to be counted
+     */
+    private double[] getIntensities(int channel, int start, int stop, int pixels) {
+        List<Integer> key = Arrays.asList(channel, start, stop);
+        double[] table = _intensities.get(key);
+        if (null == table) {
+            if (_intensitiesSummed.addAndGet(pixels) <= (long) _width * _height) {
+                // building a table would read more
+                return null;
+            }
+            synchronized (_intensities) {
+                table = _intensities.get(key);
+                if (null == table) {
+                    // free the tables of earlier channels first
+                    for (List<Integer> otherKey : _intensities.keySet()) {
+                        if (channel != otherKey.get(0)) {
+                            _intensities.remove(otherKey);
+                        }
+                    }
+                    table = buildIntensities(channel, start, stop);
+                    _intensities.put(key, table);
+                    _intensitiesSummed.set(0);
+                }
+            }
+        }
+        return table;
+    }
+
+    /*
+     * Builds a summed-area table of photon counts.  Entry x, y holds the sum
+     * of all pixels left of x and above y.
+     */
+    private double[] buildIntensities(int channel, int start, int stop) {
+        double[] table = new double[(_width + 1) * (_height + 1)];
+        int[] location = new int[] { 0, 0, channel };
+        int stride = _width + 1;
+        for (int y = 0; y < _height; ++y) {
+            location[1] = y;
+            double rowSum = 0.0;
+            int above = y * stride + 1;
+            int here = (y + 1) * stride + 1;
+            for (int x = 0; x < _width; ++x) {
+                location[0] = x;
+                rowSum += getSourceIntensity(location, start, stop);
+                table[here++] = table[above++] + rowSum;
+            }
+        }
+        return table;
+    }
+
+    /*
+     * Gets the photon count of a single source pixel.
+     */
+    private double getSourceIntensity(int[] location, int start, int stop) {
+        if (_processor instanceof IIntensityProcessor) {
+            return ((IIntensityProcessor) _processor).getIntensity(location, start, stop);
+        }
+        double sum = 0.0;
+        double[] decay = _processor.getPixel(location);
+        if (null != decay) {
+            for (int bin = Math.max(start, 0); bin <= Math.min(stop, decay.length - 1); ++bin) {
+                sum += decay[bin];
+            }
+        }
+        return sum;
+    }
+
+    /*
+     * Builds a summed-area table for each bin of a channel.  Entry x, y holds
+     * the sums of all pixels left of x and above y, followed by the number
+     * of those pixels that are valid.  Returns null if it won't fit in memory
+     * or the channel has no valid pixels.
+     */
+    private double[] buildTable(int channel) {
+        int[] location = new int[] { 0, 0, channel };
+        double[] table = null;
+        double[] rowSum = null;
+        int bins = 0;
+        int entry = 0;
+        int stride = _width + 1;
+        for (int y = 0; y < _height; ++y) {
+            location[1] = y;
+            if (null != rowSum) {
+                Arrays.fill(rowSum, 0.0);
+            }
+            for (int x = 0; x < _width; ++x) {
+                location[0] = x;
+                double[] decay = _processor.getPixel(location);
+                if (null == table) {
+                    if (null == decay) {
+                        // leading invalid pixels add nothing
+                        continue;
+                    }
+                    
+                    // size the table from the first valid pixel
+                    bins = decay.length;
+                    entry = bins + 1;
+                    long entries = (long) (_width + 1) * (_height + 1) * entry;
+                    if (8 * entries > getFreeMemory() / MEMORY_DIVISOR
+                            || entries > Integer.MAX_VALUE) {
+                        return null;
+                    }
+                    table = new double[(int) entries];
+                    rowSum = new double[entry];
+                }
+                if (null != decay) {
+                    for (int b = 0; b < bins; ++b) {
+                        rowSum[b] += decay[b];
+                    }
+                    ++rowSum[bins];
+                }
+                int above = (y * stride + x + 1) * entry;
+                int here = ((y + 1) * stride + x + 1) * entry;
+                for (int b = 0; b < entry; ++b) {
+                    table[here + b] = table[above + b] + rowSum[b];
+                }
+            }
+        }
+        _bins = bins;
+        return table;
+    }
+
+    /*
+     * Gets how much more the heap can hold, including what it may still grow.
+     */
+    private static long getFreeMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.maxMemory() - runtime.totalMemory() + runtime.freeMemory();
+    }
+}
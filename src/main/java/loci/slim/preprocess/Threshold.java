@@ -36,10 +36,14 @@ package loci.slim.preprocess;
 
 /**
  * This class thresholds the image to a given photon count.
+ * <p>
+ * If the source can count photons without building the decay curve, dim
+ * pixels are rejected before their decays are built, and only the decays of
+ * bright pixels in a block are built.
  * 
  * @author Aivar Grislis grislis at wisc dot edu
  */
-public class Threshold implements IProcessor {
+public class Threshold implements IBlockProcessor {
     private final int _start;
     private final int _stop;
     private final int _photons;
@@ -69,6 +73,15 @@ public class Threshold implements IProcessor {
      * @return null or pixel value
      */
     public double[] getPixel(int[] location) {
+        // reject dim pixels before building their decays, if possible
+        if (_processor instanceof IIntensityProcessor) {
+            double photons = ((IIntensityProcessor) _processor).getIntensity(location, _start, _stop);
+            if (photons < _photons) {
+                return null;
+            }
+            return _processor.getPixel(location);
+        }
+        
         double[] decay = _processor.getPixel(location);
         
         // reject any pixels that have less than the threshold number of photons
@@ -82,5 +95,69 @@ public class Threshold implements IProcessor {
             }
         }
         return decay;
-    }  
+    }
+
+    /**
+     * Gets a block of input pixels, with pixels under the threshold marked
+     * invalid.
+     * 
+     * @param block 
+     */
+    public void getBlock(DecayBlock block) {
+        int[] location = new int[] { 0, 0, block.getChannel() };
+        if (_processor instanceof IIntensityProcessor) {
+            IIntensityProcessor intensityProcessor = (IIntensityProcessor) _processor;
+            
+            // only build the decays of bright pixels
+            boolean bright = false;
+            for (int j = 0; j < block.getHeight(); ++j) {
+                for (int i = 0; i < block.getWidth(); ++i) {
+                    location[0] = block.getX() + i;
+                    location[1] = block.getY() + j;
+                    boolean wanted = block.isWanted(i, j)
+                            && intensityProcessor.getIntensity(location, _start, _stop) >= _photons;
+                    block.setWanted(i, j, wanted);
+                    bright |= wanted;
+                }
+            }
+            if (!bright) {
+                for (int j = 0; j < block.getHeight(); ++j) {
+                    for (int i = 0; i < block.getWidth(); ++i) {
+                        block.setValid(i, j, false);
+                    }
+                }
+                return;
+            }
+            block.fill(_processor);
+            
+            // sources may build unwanted pixels anyway
+            for (int j = 0; j < block.getHeight(); ++j) {
+                for (int i = 0; i < block.getWidth(); ++i) {
+                    if (!block.isWanted(i, j)) {
+                        block.setValid(i, j, false);
+                    }
+                }
+            }
+            return;
+        }
+        
+        block.fill(_processor);
+        
+        // reject any pixels that have less than the threshold number of photons
+        double[] decays = block.getDecays();
+        for (int j = 0; j < block.getHeight(); ++j) {
+            for (int i = 0; i < block.getWidth(); ++i) {
+                if (block.isValid(i, j)) {
+                    double sum = 0.0;
+                    int offset = block.getOffset(i, j);
+                    for (int bin = _start; bin <= _stop; ++bin) {
+                        sum += decays[offset + bin];
+                    }
+                    if (sum < _photons) {
+                        block.setValid(i, j, false);
+                    }
+                }
+            }
+        }
+    }
 }
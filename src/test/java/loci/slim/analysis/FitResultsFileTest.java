@@ -0,0 +1,194 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package loci.slim.analysis;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
+import loci.curvefitter.ICurveFitter.FitAlgorithm;
+import loci.curvefitter.ICurveFitter.FitFunction;
+import loci.curvefitter.ICurveFitter.FitRegion;
+import loci.curvefitter.ICurveFitter.NoiseModel;
+import loci.slim.OutputImageWrapper;
+import loci.slim.fitting.FitInfo;
+
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.type.numeric.real.DoubleType;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit test of writing and reading back binary fitted results.
+ * 
+ * @author Aivar Grislis
+ */
+public class FitResultsFileTest {
+    private static final int WIDTH = 7;
+    private static final int HEIGHT = 5;
+    private static final int CHANNELS = 2;
+    private static final int PARAMETERS = 4;
+
+    /**
+     * Parameters stored as is read back exactly.
+     */
+    @Test
+    public void testUncompressed() throws IOException {
+        roundTrip(false);
+    }
+
+    /**
+     * Deflated parameters read back exactly.
+     */
+    @Test
+    public void testCompressed() throws IOException {
+        roundTrip(true);
+    }
+
+    /**
+     * Fit settings read back.
+     */
+    @Test
+    public void testFitInfo() throws IOException {
+        FitInfo fitInfo = new FitInfo();
+        fitInfo.setAlgorithm(FitAlgorithm.SLIMCURVE_RLD_LMA);
+        fitInfo.setNoiseModel(NoiseModel.MAXIMUM_LIKELIHOOD);
+        fitInfo.setBinning("3 x 3");
+        fitInfo.setFitAllChannels(true);
+        fitInfo.setChannel(1);
+        fitInfo.setTransientStart(10);
+        fitInfo.setDataStart(12);
+        fitInfo.setTransientStop(200);
+        fitInfo.setXInc(0.048828125);
+        fitInfo.setThreshold(100);
+        fitInfo.setChiSquareTarget(1.5);
+        fitInfo.setX(3);
+        fitInfo.setY(4);
+        fitInfo.setParameters(new double[] { 1.0, 0.5, 1000.0, 2.25 });
+        fitInfo.setFree(new boolean[] { true, false, true });
+        fitInfo.setPrompt(new double[] { 0.1, 0.7, 0.2 });
+        fitInfo.setStartPrompt(3);
+        fitInfo.setStopPrompt(6);
+        
+        File file = File.createTempFile("FitResultsFileTest", FitResultsFile.EXTENSION);
+        try {
+            FitResultsFile.write(file.getPath(), createImage(), FitRegion.EACH,
+                    FitFunction.SINGLE_EXPONENTIAL, fitInfo, true);
+            FitResultsFile resultsFile = FitResultsFile.open(file.getPath());
+            try {
+                assertEquals(FitRegion.EACH, resultsFile.getRegion());
+                assertEquals(FitFunction.SINGLE_EXPONENTIAL, resultsFile.getFunction());
+                FitInfo result = resultsFile.getFitInfo();
+                assertEquals(FitRegion.EACH, result.getRegion());
+                assertEquals(FitFunction.SINGLE_EXPONENTIAL, result.getFunction());
+                assertEquals(fitInfo.getAlgorithm(), result.getAlgorithm());
+                assertEquals(fitInfo.getNoiseModel(), result.getNoiseModel());
+                assertEquals(fitInfo.getBinning(), result.getBinning());
+                assertEquals(fitInfo.getFitAllChannels(), result.getFitAllChannels());
+                assertEquals(fitInfo.getChannel(), result.getChannel());
+                assertEquals(fitInfo.getTransientStart(), result.getTransientStart());
+                assertEquals(fitInfo.getDataStart(), result.getDataStart());
+                assertEquals(fitInfo.getTransientStop(), result.getTransientStop());
+                assertEquals(fitInfo.getXInc(), result.getXInc(), 0.0);
+                assertEquals(fitInfo.getThreshold(), result.getThreshold());
+                assertEquals(fitInfo.getChiSquareTarget(), result.getChiSquareTarget(), 0.0);
+                assertEquals(fitInfo.getX(), result.getX());
+                assertEquals(fitInfo.getY(), result.getY());
+                assertArrayEquals(fitInfo.getParameters(), result.getParameters(), 0.0);
+                assertEquals(fitInfo.getParameters().length, result.getParameterCount());
+                assertTrue(Arrays.equals(fitInfo.getFree(), result.getFree()));
+                assertArrayEquals(fitInfo.getPrompt(), result.getPrompt(), 0.0);
+                assertEquals(fitInfo.getStartPrompt(), result.getStartPrompt());
+                assertEquals(fitInfo.getStopPrompt(), result.getStopPrompt());
+            }
+            finally {
+                resultsFile.close();
+            }
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    /*
+     * Writes an image, reads it back and compares.
+     */
+    private void roundTrip(boolean compress) throws IOException {
+        File file = File.createTempFile("FitResultsFileTest", FitResultsFile.EXTENSION);
+        try {
+            Image<DoubleType> image = createImage();
+            FitResultsFile.write(file.getPath(), image, FitRegion.EACH,
+                    FitFunction.DOUBLE_EXPONENTIAL, null, compress);
+            FitResultsFile resultsFile = FitResultsFile.open(file.getPath());
+            try {
+                assertEquals(WIDTH, resultsFile.getWidth());
+                assertEquals(HEIGHT, resultsFile.getHeight());
+                assertEquals(CHANNELS, resultsFile.getChannels());
+                assertEquals(PARAMETERS, resultsFile.getParameters());
+                assertEquals(FitRegion.EACH, resultsFile.getRegion());
+                assertEquals(FitFunction.DOUBLE_EXPONENTIAL, resultsFile.getFunction());
+                
+                // chunks a row at a time
+                for (int c = 0; c < CHANNELS; ++c) {
+                    for (int p = 0; p < PARAMETERS; ++p) {
+                        DoubleBuffer chunk = resultsFile.getChunk(c, p);
+                        assertEquals(WIDTH * HEIGHT, chunk.remaining());
+                        for (int y = 0; y < HEIGHT; ++y) {
+                            for (int x = 0; x < WIDTH; ++x) {
+                                assertEquals(value(x, y, c, p), chunk.get(), 0.0);
+                            }
+                        }
+                    }
+                }
+                
+                // recreated image
+                FittedParameters expResult = new FittedParameters(image);
+                FittedParameters result = new FittedParameters(resultsFile.getImage());
+                for (int c = 0; c < CHANNELS; ++c) {
+                    for (int p = 0; p < PARAMETERS; ++p) {
+                        assertArrayEquals(expResult.getValues(c, p), result.getValues(c, p), 0.0);
+                    }
+                }
+            }
+            finally {
+                resultsFile.close();
+            }
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    /*
+     * Creates an image of fitted parameters, with some pixels not fitted.
+     */
+    private Image<DoubleType> createImage() {
+        OutputImageWrapper image = new OutputImageWrapper(WIDTH, HEIGHT, CHANNELS, PARAMETERS);
+        double[] pixel = new double[PARAMETERS];
+        for (int c = 0; c < CHANNELS; ++c) {
+            for (int y = 0; y < HEIGHT; ++y) {
+                for (int x = 0; x < WIDTH; ++x) {
+                    for (int p = 0; p < PARAMETERS; ++p) {
+                        pixel[p] = value(x, y, c, p);
+                    }
+                    image.setPixel(new int[] { x, y, c }, pixel);
+                }
+            }
+        }
+        return image.getImage();
+    }
+
+    /*
+     * Gets a distinct value for each parameter, NaN where not fitted.
+     */
+    private double value(int x, int y, int c, int p) {
+        if (0 == (x + y) % 5) {
+            return Double.NaN;
+        }
+        return c * 1000.0 + p * 100.0 + y * 10.0 + x + 0.125;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package loci.slim.analysis.plugins;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit test of the number formatting of ExportToText, against the
+ * BigDecimal formatting of Double.toString it replaced.
+ * 
+ * @author Aivar Grislis
+ */
+public class NumberFormatterTest {
+    private static final MathContext CONTEXT = new MathContext(4, RoundingMode.FLOOR);
+    private final ExportToText.NumberFormatter _formatter = new ExportToText.NumberFormatter();
+    private final ByteBuffer _buffer = ByteBuffer.allocate(ExportToText.NumberFormatter.MAX_BYTES);
+
+    /**
+     * Integers are written as is.
+     */
+    @Test
+    public void testIntegers() {
+        assertEquals("0", format(0L));
+        assertEquals("7", format(7L));
+        assertEquals("-42", format(-42L));
+        assertEquals("1234567890", format(1234567890L));
+    }
+
+    /**
+     * Values that are not numbers.
+     */
+    @Test
+    public void testSpecialValues() {
+        assertEquals("NaN", format(Double.NaN));
+        assertEquals("Infinity", format(Double.POSITIVE_INFINITY));
+        assertEquals("-Infinity", format(Double.NEGATIVE_INFINITY));
+        assertEquals("0", format(0.0));
+    }
+
+    /**
+     * Values near the edges of the notations and of rounding.
+     */
+    @Test
+    public void testEdges() {
+        double[] values = {
+            1.0, 2.0, 0.1, 0.3, 0.1 + 0.2, 9.9999, 999.95, 1000.0, 9999.0,
+            9999.9, 10000.0, 12345.0, 150000.0, 0.000001, 0.0000012345,
+            0.00000012345, 1.0e-300, 1.0e300, 123.456, -123.456, -0.001,
+            -9999.9, Float.MAX_VALUE, Float.MIN_NORMAL
+        };
+        for (double value : values) {
+            assertEquals(Double.toString(value), expected(value), format(value));
+        }
+    }
+
+    /**
+     * Fitted parameters are floats, spanning many magnitudes.
+     */
+    @Test
+    public void testRandomFloats() {
+        Random random = new Random(21);
+        for (int i = 0; i < 100000; ++i) {
+            float value = (float) ((random.nextDouble() - 0.5) * Math.pow(10.0, random.nextInt(30) - 15));
+            assertEquals(Float.toString(value), expected(value), format(value));
+        }
+    }
+
+    /**
+     * Doubles spanning the normal range.
+     */
+    @Test
+    public void testRandomDoubles() {
+        Random random = new Random(7);
+        for (int i = 0; i < 100000; ++i) {
+            double value = (random.nextDouble() - 0.5) * Math.pow(10.0, random.nextInt(600) - 300);
+            assertEquals(Double.toString(value), expected(value), format(value));
+        }
+    }
+
+    /*
+     * Formats a value with NumberFormatter.
+     */
+    private String format(double value) {
+        _buffer.clear();
+        _formatter.append(_buffer, value);
+        return new String(_buffer.array(), 0, _buffer.position());
+    }
+
+    private String format(long value) {
+        _buffer.clear();
+        _formatter.append(_buffer, value);
+        return new String(_buffer.array(), 0, _buffer.position());
+    }
+
+    /*
+     * Formats a value as ExportToText used to, without trailing zeros.
+     */
+    private String expected(double value) {
+        String string = BigDecimal.valueOf(value).round(CONTEXT).toEngineeringString();
+        int exponent = string.indexOf('E');
+        String mantissa = exponent < 0 ? string : string.substring(0, exponent);
+        String suffix = exponent < 0 ? "" : string.substring(exponent);
+        if (mantissa.indexOf('.') >= 0) {
+            mantissa = mantissa.replaceAll("0+$", "").replaceAll("\\.$", "");
+        }
+        return mantissa + suffix;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package loci.slim.fitting.engine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import loci.curvefitter.ICurveFitter;
+import loci.curvefitter.ICurveFitter.FitAlgorithm;
+import loci.curvefitter.ICurveFitter.FitFunction;
+import loci.curvefitter.ICurveFitter.NoiseModel;
+import loci.curvefitter.JaolhoCurveFitter;
+import loci.slim.fitting.params.FitResults;
+import loci.slim.fitting.params.GlobalFitParams;
+import loci.slim.fitting.params.IFitResults;
+import loci.slim.fitting.params.IGlobalFitParams;
+import loci.slim.fitting.params.ILocalFitParams;
+import loci.slim.fitting.params.LocalFitParams;
+import loci.slim.heuristics.FitterEstimator;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit test of the wire format between ShardedFittingEngine and FittingWorker.
+ * 
+ * @author Aivar Grislis
+ */
+public class FitProtocolTest {
+
+    /**
+     * A fit request reads back as written.
+     */
+    @Test
+    public void testRequestRoundTrip() throws IOException {
+        IGlobalFitParams params = new GlobalFitParams();
+        params.setEstimator(new FitterEstimator());
+        params.setFitAlgorithm(FitAlgorithm.JAOLHO);
+        params.setFitFunction(FitFunction.DOUBLE_EXPONENTIAL);
+        params.setNoiseModel(NoiseModel.MAXIMUM_LIKELIHOOD);
+        params.setXInc(0.048828125);
+        params.setPrompt(new double[] { 1.0, 5.0, 2.0 });
+        params.setChiSquareTarget(1.5);
+        params.setFree(new boolean[] { true, false, true, true, true });
+        params.setStartPrompt(3);
+        params.setStopPrompt(6);
+        params.setTransientStart(10);
+        params.setDataStart(12);
+        params.setTransientStop(200);
+        
+        List<ILocalFitParams> dataList = new ArrayList<ILocalFitParams>();
+        for (int i = 0; i < 3; ++i) {
+            ILocalFitParams data = new LocalFitParams();
+            data.setY(new double[] { i, i + 1.0, i + 2.0, i + 3.0 });
+            data.setSig(0 == i ? null : new double[] { 1.0, 1.0, 1.0, 1.0 });
+            data.setParams(new double[] { 0.0, 1.0, 2.0, 3.0, 4.0 });
+            data.setYFitted(new double[4]);
+            data.setLocation(new int[] { i, 2 * i });
+            dataList.add(data);
+        }
+        
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        FitProtocol.writeRequest(new DataOutputStream(bytes), new JaolhoCurveFitter(), params, dataList);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        
+        assertEquals(FitProtocol.FIT, in.readInt());
+        assertEquals(JaolhoCurveFitter.class.getName(), in.readUTF());
+        IGlobalFitParams readParams = FitProtocol.readGlobalFitParams(in);
+        assertTrue(readParams.getEstimator() instanceof FitterEstimator);
+        assertEquals(params.getFitAlgorithm(), readParams.getFitAlgorithm());
+        assertEquals(params.getFitFunction(), readParams.getFitFunction());
+        assertEquals(params.getNoiseModel(), readParams.getNoiseModel());
+        assertEquals(params.getXInc(), readParams.getXInc(), 0.0);
+        assertArrayEquals(params.getPrompt(), readParams.getPrompt(), 0.0);
+        assertEquals(params.getChiSquareTarget(), readParams.getChiSquareTarget(), 0.0);
+        assertTrue(Arrays.equals(params.getFree(), readParams.getFree()));
+        assertEquals(params.getStartPrompt(), readParams.getStartPrompt());
+        assertEquals(params.getStopPrompt(), readParams.getStopPrompt());
+        assertEquals(params.getTransientStart(), readParams.getTransientStart());
+        assertEquals(params.getDataStart(), readParams.getDataStart());
+        assertEquals(params.getTransientStop(), readParams.getTransientStop());
+        
+        List<ILocalFitParams> readDataList = FitProtocol.readLocalFitParams(in);
+        assertEquals(dataList.size(), readDataList.size());
+        for (int i = 0; i < dataList.size(); ++i) {
+            ILocalFitParams data = dataList.get(i);
+            ILocalFitParams readData = readDataList.get(i);
+            assertArrayEquals(data.getY(), readData.getY(), 0.0);
+            assertArrayEquals(data.getSig(), readData.getSig(), 0.0);
+            assertArrayEquals(data.getParams(), readData.getParams(), 0.0);
+            assertEquals(data.getYFitted().length, readData.getYFitted().length);
+            assertArrayEquals(data.getLocation(), readData.getLocation());
+        }
+        assertEquals(-1, in.read());
+    }
+
+    /**
+     * Results read back as written, including failed fits.
+     */
+    @Test
+    public void testResultsRoundTrip() throws IOException {
+        List<IFitResults> resultsList = new ArrayList<IFitResults>();
+        IFitResults results = new FitResults();
+        results.setChiSquare(1.25);
+        results.setParams(new double[] { 0.5, 100.0, 2.5 });
+        results.setYFitted(new double[] { 3.0, 2.0, 1.0 });
+        results.setLocation(new int[] { 7, 8 });
+        resultsList.add(results);
+        resultsList.add(null);
+        
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        FitProtocol.writeResults(new DataOutputStream(bytes), resultsList);
+        List<IFitResults> readResultsList = FitProtocol.readResults
+                (new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        
+        assertEquals(2, readResultsList.size());
+        IFitResults readResults = readResultsList.get(0);
+        assertEquals(results.getChiSquare(), readResults.getChiSquare(), 0.0);
+        assertArrayEquals(results.getParams(), readResults.getParams(), 0.0);
+        assertArrayEquals(results.getYFitted(), readResults.getYFitted(), 0.0);
+        assertArrayEquals(results.getLocation(), readResults.getLocation());
+        assertNull(readResultsList.get(1));
+    }
+
+    /**
+     * An error response is reported as an exception.
+     */
+    @Test
+    public void testError() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        FitProtocol.writeError(new DataOutputStream(bytes), "fit failed");
+        try {
+            FitProtocol.readResults(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+            fail("error not reported");
+        }
+        catch (IOException e) {
+            assertTrue(e.getMessage().contains("fit failed"));
+        }
+    }
+
+    /**
+     * Only curve fitters are instantiated as curve fitters.
+     */
+    @Test
+    public void testGetInstance() throws IOException {
+        ICurveFitter curveFitter = FitProtocol.getInstance
+                (JaolhoCurveFitter.class.getName(), ICurveFitter.class);
+        assertTrue(curveFitter instanceof JaolhoCurveFitter);
+        try {
+            FitProtocol.getInstance("java.lang.Object", ICurveFitter.class);
+            fail("instantiated a class of the wrong type");
+        }
+        catch (IOException e) {
+        }
+        try {
+            FitProtocol.getInstance("no.such.Class", ICurveFitter.class);
+            fail("instantiated a missing class");
+        }
+        catch (IOException e) {
+        }
+    }
+
+    /**
+     * Oversized arrays are rejected before they are allocated.
+     */
+    @Test
+    public void testArrayLength() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(FitProtocol.OK);
+        out.writeInt(1);
+        out.writeBoolean(true);
+        out.writeDouble(1.0);
+        out.writeInt(Integer.MAX_VALUE);
+        out.flush();
+        try {
+            FitProtocol.readResults(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+            fail("oversized array accepted");
+        }
+        catch (IOException e) {
+        }
+        
+        bytes = new ByteArrayOutputStream();
+        out = new DataOutputStream(bytes);
+        out.writeInt(FitProtocol.MAX_SHARD_PIXELS + 1);
+        out.flush();
+        try {
+            FitProtocol.readLocalFitParams(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+            fail("oversized shard accepted");
+        }
+        catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package loci.slim.fitting.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import loci.curvefitter.ICurveFitter.FitAlgorithm;
+import loci.curvefitter.ICurveFitter.FitFunction;
+import loci.curvefitter.ICurveFitter.NoiseModel;
+import loci.curvefitter.JaolhoCurveFitter;
+import loci.slim.fitting.params.GlobalFitParams;
+import loci.slim.fitting.params.IFitResults;
+import loci.slim.fitting.params.IGlobalFitParams;
+import loci.slim.fitting.params.ILocalFitParams;
+import loci.slim.fitting.params.LocalFitParams;
+import loci.slim.heuristics.FitterEstimator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit test of fitting with a FittingWorker over the loopback interface.
+ * 
+ * @author Aivar Grislis
+ */
+public class ShardedFittingEngineTest {
+    private static final int BINS = 64;
+    private static final int PIXELS = 1000;
+    private FittingWorker _worker;
+    private ShardedFittingEngine _shardedFittingEngine;
+    private ThreadedFittingEngine _localFittingEngine;
+
+    @Before
+    public void setUp() throws Exception {
+        _worker = new FittingWorker(0, 2);
+        _worker.start();
+        _shardedFittingEngine = new ShardedFittingEngine
+                (Arrays.asList("localhost:" + _worker.getPort()));
+        _shardedFittingEngine.setCurveFitter(new JaolhoCurveFitter());
+        _localFittingEngine = new ThreadedFittingEngine();
+        _localFittingEngine.setCurveFitter(new JaolhoCurveFitter());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _shardedFittingEngine.shutdown();
+        _localFittingEngine.shutdown();
+        _worker.stop();
+    }
+
+    /**
+     * Pixels fitted by the worker match pixels fitted locally, in order.
+     */
+    @Test
+    public void testFit() {
+        IGlobalFitParams params = new GlobalFitParams();
+        params.setEstimator(new FitterEstimator());
+        params.setFitAlgorithm(FitAlgorithm.JAOLHO);
+        params.setFitFunction(FitFunction.SINGLE_EXPONENTIAL);
+        params.setNoiseModel(NoiseModel.MAXIMUM_LIKELIHOOD);
+        params.setXInc(0.1);
+        params.setChiSquareTarget(1.5);
+        params.setFree(new boolean[] { true, true, true });
+        params.setTransientStart(0);
+        params.setDataStart(2);
+        params.setTransientStop(BINS);
+        
+        List<IFitResults> shardedResultsList
+                = _shardedFittingEngine.fit(params, getDataList());
+        List<IFitResults> localResultsList
+                = _localFittingEngine.fit(params, getDataList());
+        
+        assertEquals(PIXELS, shardedResultsList.size());
+        assertEquals(PIXELS, localResultsList.size());
+        for (int i = 0; i < PIXELS; ++i) {
+            IFitResults shardedResults = shardedResultsList.get(i);
+            IFitResults localResults = localResultsList.get(i);
+            assertNotNull(shardedResults);
+            assertNotNull(localResults);
+            assertArrayEquals(localResults.getLocation(), shardedResults.getLocation());
+            assertEquals(localResults.getChiSquare(), shardedResults.getChiSquare(), 0.0);
+            assertArrayEquals(localResults.getParams(), shardedResults.getParams(), 0.0);
+            assertArrayEquals(localResults.getYFitted(), shardedResults.getYFitted(), 0.0);
+        }
+    }
+
+    /*
+     * Builds single exponential decays of varying lifetime and intensity.
+     */
+    private List<ILocalFitParams> getDataList() {
+        List<ILocalFitParams> dataList = new ArrayList<ILocalFitParams>();
+        for (int i = 0; i < PIXELS; ++i) {
+            double a = 100.0 + i % 50;
+            double t = 1.0 + (i % 7) * 0.25;
+            double[] y = new double[BINS];
+            for (int b = 0; b < BINS; ++b) {
+                y[b] = Math.round(a * Math.exp(-b * 0.1 / t));
+            }
+            ILocalFitParams data = new LocalFitParams();
+            data.setY(y);
+            data.setSig(null);
+            data.setParams(new double[] { 0.0, 0.0, a, t });
+            data.setYFitted(new double[BINS]);
+            data.setLocation(new int[] { i % 40, i / 40 });
+            dataList.add(data);
+        }
+        return dataList;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package loci.slim.fitting.metrics;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit test of the approximate percentiles of LatencyHistogram.
+ * 
+ * @author Aivar Grislis
+ */
+public class LatencyHistogramTest {
+
+    /**
+     * An empty histogram has no latencies.
+     */
+    @Test
+    public void testEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0.0, histogram.getMeanNanos(), 0.0);
+        assertEquals(0.0, histogram.getPercentileNanos(50.0), 0.0);
+    }
+
+    /**
+     * Counts, totals and extremes are exact.
+     */
+    @Test
+    public void testTotals() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(100);
+        histogram.record(300);
+        histogram.record(-5);
+        assertEquals(3, histogram.getCount());
+        assertEquals(400, histogram.getTotalNanos());
+        assertEquals(300, histogram.getMaxNanos());
+        assertEquals(400.0 / 3, histogram.getMeanNanos(), 1.0e-9);
+        
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getTotalNanos());
+        assertEquals(0, histogram.getMaxNanos());
+    }
+
+    /**
+     * Percentiles fall within the power of two bucket of the true value and
+     * never exceed the maximum.
+     */
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 900; ++i) {
+            histogram.record(100);
+        }
+        for (int i = 0; i < 100; ++i) {
+            histogram.record(100000);
+        }
+        double median = histogram.getPercentileNanos(50.0);
+        assertTrue(median >= 64 && median < 128);
+        double p99 = histogram.getPercentileNanos(99.0);
+        assertTrue(p99 >= 65536 && p99 <= 100000);
+        assertEquals(100000.0, histogram.getPercentileNanos(100.0), 0.0);
+    }
+
+    /**
+     * Percentiles interpolate within a bucket and increase with rank.
+     */
+    @Test
+    public void testInterpolation() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 1024; ++i) {
+            histogram.record(1024 + i);
+        }
+        assertEquals(1536.0, histogram.getPercentileNanos(50.0), 1.0);
+        double previous = 0.0;
+        for (int percentile = 0; percentile <= 100; percentile += 10) {
+            double value = histogram.getPercentileNanos(percentile);
+            assertTrue(value >= previous);
+            assertTrue(value >= 1024 && value <= 2047);
+            previous = value;
+        }
+    }
+}
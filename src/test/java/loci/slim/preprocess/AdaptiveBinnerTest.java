@@ -0,0 +1,124 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package loci.slim.preprocess;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit test of choosing the square size in AdaptiveBinner.
+ * 
+ * @author Aivar Grislis
+ */
+public class AdaptiveBinnerTest {
+    private static final int WIDTH = 23;
+    private static final int HEIGHT = 19;
+    private static final int CHANNELS = 2;
+    private static final int BINS = 12;
+    private static final int START = 2;
+    private static final int STOP = 9;
+    private static final int MAX_SIZE = 5;
+
+    /**
+     * Each pixel is binned by the smallest square that holds the target
+     * number of photons, up to 11 x 11.
+     */
+    @Test
+    public void testSizeSelection() {
+        double[][][][] decays = ArrayProcessor.randomDecays(WIDTH, HEIGHT, CHANNELS, BINS, 40, 5);
+        
+        // the left side is dim, with no photons at the far left
+        for (int c = 0; c < CHANNELS; ++c) {
+            for (int y = 0; y < HEIGHT; ++y) {
+                for (int x = 0; x < 10; ++x) {
+                    for (int b = 0; b < BINS; ++b) {
+                        decays[c][y][x][b] = x < 4 ? 0.0 : Math.floor(decays[c][y][x][b] / 10.0);
+                    }
+                }
+            }
+        }
+        AdaptiveBinner binner = new AdaptiveBinner();
+        binner.init(WIDTH, HEIGHT);
+        binner.chain(new ArrayProcessor(decays));
+        int target = 150;
+        binner.setTarget(START, STOP, target);
+        
+        int[] sizes = new int[MAX_SIZE + 1];
+        for (int c = 0; c < CHANNELS; ++c) {
+            for (int y = 0; y < HEIGHT; ++y) {
+                for (int x = 0; x < WIDTH; ++x) {
+                    int size = 0;
+                    while (size < MAX_SIZE && photons(decays, x, y, c, size) < target) {
+                        ++size;
+                    }
+                    ++sizes[size];
+                    double[] result = binner.getPixel(new int[] { x, y, c });
+                    assertArrayEquals(ArrayProcessor.sumSquare(decays, x, y, c, size), result, 1.0e-9);
+                }
+            }
+        }
+        
+        // bright pixels are left alone, dim ones binned more, up to the limit
+        for (int size = 0; size <= MAX_SIZE; ++size) {
+            assertTrue(0 < sizes[size]);
+        }
+    }
+
+    /**
+     * Without a target, the default of 1000 photons applies.
+     */
+    @Test
+    public void testDefaultTarget() {
+        double[][][][] decays = ArrayProcessor.randomDecays(WIDTH, HEIGHT, CHANNELS, BINS, 40, 6);
+        AdaptiveBinner binner = new AdaptiveBinner();
+        binner.init(WIDTH, HEIGHT);
+        binner.chain(new ArrayProcessor(decays));
+        binner.setTarget(START, STOP, 0);
+        for (int y = 0; y < HEIGHT; ++y) {
+            for (int x = 0; x < WIDTH; ++x) {
+                int size = 0;
+                while (size < MAX_SIZE && photons(decays, x, y, 0, size) < 1000) {
+                    ++size;
+                }
+                double[] result = binner.getPixel(new int[] { x, y, 0 });
+                assertArrayEquals(ArrayProcessor.sumSquare(decays, x, y, 0, size), result, 1.0e-9);
+            }
+        }
+    }
+
+    /**
+     * Photon counts are over the binned square.
+     */
+    @Test
+    public void testGetIntensity() {
+        double[][][][] decays = ArrayProcessor.randomDecays(WIDTH, HEIGHT, CHANNELS, BINS, 40, 7);
+        AdaptiveBinner binner = new AdaptiveBinner();
+        binner.init(WIDTH, HEIGHT);
+        binner.chain(new ArrayProcessor(decays));
+        binner.setTarget(START, STOP, 500);
+        for (int y = 0; y < HEIGHT; ++y) {
+            for (int x = 0; x < WIDTH; ++x) {
+                double[] decay = binner.getPixel(new int[] { x, y, 1 });
+                double expResult = 0.0;
+                for (int b = 3; b <= 8; ++b) {
+                    expResult += decay[b];
+                }
+                assertEquals(expResult, binner.getIntensity(new int[] { x, y, 1 }, 3, 8), 1.0e-9);
+            }
+        }
+    }
+
+    /*
+     * Counts the photons of a square directly.
+     */
+    private double photons(double[][][][] decays, int x, int y, int channel, int size) {
+        double[] sum = ArrayProcessor.sumSquare(decays, x, y, channel, size);
+        double photons = 0.0;
+        for (int b = START; b <= STOP; ++b) {
+            photons += sum[b];
+        }
+        return photons;
+    }
+}
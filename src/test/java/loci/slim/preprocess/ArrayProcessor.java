@@ -0,0 +1,101 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package loci.slim.preprocess;
+
+import java.util.Random;
+
+/**
+ * Source of random decays for the preprocessor tests.
+ * 
+ * @author Aivar Grislis
+ */
+public class ArrayProcessor implements IProcessor {
+    private final double[][][][] _decays;
+    private int _reads;
+
+    /**
+     * Constructor.
+     * 
+     * @param decays indexed by channel, y, x then bin; null pixels are invalid
+     */
+    public ArrayProcessor(double[][][][] decays) {
+        _decays = decays;
+    }
+
+    /**
+     * Creates random decays.
+     * 
+     * @param width
+     * @param height
+     * @param channels
+     * @param bins
+     * @param maxCount photon counts per bin are below this
+     * @param seed
+     * @return decays indexed by channel, y, x then bin
+     */
+    public static double[][][][] randomDecays(int width, int height, int channels,
+            int bins, int maxCount, long seed) {
+        Random random = new Random(seed);
+        double[][][][] decays = new double[channels][height][width][bins];
+        for (int c = 0; c < channels; ++c) {
+            for (int y = 0; y < height; ++y) {
+                for (int x = 0; x < width; ++x) {
+                    for (int b = 0; b < bins; ++b) {
+                        decays[c][y][x][b] = random.nextInt(maxCount);
+                    }
+                }
+            }
+        }
+        return decays;
+    }
+
+    /**
+     * Sums the valid pixels of a square directly.
+     * 
+     * @param decays
+     * @param x
+     * @param y
+     * @param channel
+     * @param size pixels to either side
+     * @return sum or null if no pixels are valid
+     */
+    public static double[] sumSquare(double[][][][] decays, int x, int y, int channel, int size) {
+        int height = decays[channel].length;
+        int width = decays[channel][0].length;
+        double[] sum = null;
+        for (int j = Math.max(y - size, 0); j <= Math.min(y + size, height - 1); ++j) {
+            for (int i = Math.max(x - size, 0); i <= Math.min(x + size, width - 1); ++i) {
+                double[] decay = decays[channel][j][i];
+                if (null != decay) {
+                    if (null == sum) {
+                        sum = new double[decay.length];
+                    }
+                    for (int b = 0; b < decay.length; ++b) {
+                        sum[b] += decay[b];
+                    }
+                }
+            }
+        }
+        return sum;
+    }
+
+    public void chain(IProcessor processor) {
+    }
+
+    public double[] getPixel(int[] location) {
+        ++_reads;
+        double[] decay = _decays[location[2]][location[1]][location[0]];
+        return null == decay ? null : decay.clone();
+    }
+
+    /**
+     * Gets the number of pixels read so far.
+     * 
+     * @return count
+     */
+    public int getReads() {
+        return _reads;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package loci.slim.preprocess;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit test of binning with summed-area tables, against SquareBinner.
+ * 
+ * @author Aivar Grislis
+ */
+public class SummedAreaBinnerTest {
+    private static final int WIDTH = 31;
+    private static final int HEIGHT = 17;
+    private static final int CHANNELS = 2;
+    private static final int BINS = 9;
+
+    /**
+     * Each binner plugin sums the same squares as SquareBinner, whether it
+     * sums pixel by pixel or from its tables.
+     */
+    @Test
+    public void testGetPixel() {
+        double[][][][] decays = ArrayProcessor.randomDecays(WIDTH, HEIGHT, CHANNELS, BINS, 50, 3);
+        IProcessor source = new ArrayProcessor(decays);
+        ISLIMBinner[] binners = { new Bin3x3(), new Bin5x5(), new Bin7x7(), new Bin9x9(), new Bin11x11() };
+        for (int n = 0; n < binners.length; ++n) {
+            int size = n + 1;
+            binners[n].init(WIDTH, HEIGHT);
+            binners[n].chain(source);
+            SquareBinner squareBinner = new SquareBinner();
+            squareBinner.init(size, WIDTH, HEIGHT);
+            squareBinner.chain(source);
+            for (int c = 0; c < CHANNELS; ++c) {
+                for (int y = 0; y < HEIGHT; ++y) {
+                    for (int x = 0; x < WIDTH; ++x) {
+                        int[] location = new int[] { x, y, c };
+                        double[] result = binners[n].getPixel(location);
+                        assertEquals(x, location[0]);
+                        assertEquals(y, location[1]);
+                        double[] expResult = squareBinner.getPixel(new int[] { x, y, c });
+                        assertArrayEquals(expResult, result, 1.0e-9);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Blocks hold the same sums as single pixels.
+     */
+    @Test
+    public void testGetBlock() {
+        double[][][][] decays = ArrayProcessor.randomDecays(WIDTH, HEIGHT, CHANNELS, BINS, 50, 4);
+        IProcessor source = new ArrayProcessor(decays);
+        Bin5x5 binner = new Bin5x5();
+        binner.init(WIDTH, HEIGHT);
+        binner.chain(source);
+        SquareBinner squareBinner = new SquareBinner();
+        squareBinner.init(2, WIDTH, HEIGHT);
+        squareBinner.chain(source);
+        
+        DecayBlock block = new DecayBlock(WIDTH * 4, BINS);
+        for (int c = 0; c < CHANNELS; ++c) {
+            for (int y0 = 0; y0 < HEIGHT; y0 += 4) {
+                block.setRegion(0, y0, c, WIDTH, Math.min(4, HEIGHT - y0));
+                binner.getBlock(block);
+                for (int j = 0; j < block.getHeight(); ++j) {
+                    for (int i = 0; i < WIDTH; ++i) {
+                        assertTrue(block.isValid(i, j));
+                        double[] expResult = squareBinner.getPixel(new int[] { i, y0 + j, c });
+                        double[] result = new double[BINS];
+                        System.arraycopy(block.getDecays(), block.getOffset(i, j), result, 0, BINS);
+                        assertArrayEquals(expResult, result, 1.0e-9);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Squares without any valid pixels are null from getPixel and invalid
+     * in blocks, whether summed pixel by pixel or from the tables.
+     */
+    @Test
+    public void testInvalidPixels() {
+        double[][][][] decays = ArrayProcessor.randomDecays(WIDTH, HEIGHT, CHANNELS, BINS, 50, 5);
+        for (int c = 0; c < CHANNELS; ++c) {
+            for (int y = 0; y < 8; ++y) {
+                for (int x = 0; x < 8; ++x) {
+                    decays[c][y][x] = null;
+                }
+            }
+        }
+        IProcessor source = new ArrayProcessor(decays);
+        for (int pass = 0; pass < 2; ++pass) {
+            Bin3x3 binner = new Bin3x3();
+            binner.init(WIDTH, HEIGHT);
+            binner.chain(source);
+            for (int c = 0; c < CHANNELS; ++c) {
+                DecayBlock block = new DecayBlock(WIDTH * HEIGHT, BINS);
+                block.setRegion(0, 0, c, WIDTH, HEIGHT);
+                if (1 == pass) {
+                    // build the tables first
+                    binner.getBlock(block);
+                }
+                for (int y = 0; y < HEIGHT; ++y) {
+                    for (int x = 0; x < WIDTH; ++x) {
+                        double[] expResult = ArrayProcessor.sumSquare(decays, x, y, c, 1);
+                        double[] result = binner.getPixel(new int[] { x, y, c });
+                        if (null == expResult) {
+                            assertNull(result);
+                        }
+                        else {
+                            assertArrayEquals(expResult, result, 1.0e-9);
+                        }
+                    }
+                }
+                binner.getBlock(block);
+                for (int y = 0; y < HEIGHT; ++y) {
+                    for (int x = 0; x < WIDTH; ++x) {
+                        assertEquals(x >= 7 || y >= 7, block.isValid(x, y));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Photon counts are the sums of the binned decays over the range of bins.
+     */
+    @Test
+    public void testGetIntensity() {
+        double[][][][] decays = ArrayProcessor.randomDecays(WIDTH, HEIGHT, CHANNELS, BINS, 50, 6);
+        IProcessor source = new ArrayProcessor(decays);
+        Bin7x7 binner = new Bin7x7();
+        binner.init(WIDTH, HEIGHT);
+        binner.chain(source);
+        for (int c = 0; c < CHANNELS; ++c) {
+            for (int y = 0; y < HEIGHT; ++y) {
+                for (int x = 0; x < WIDTH; ++x) {
+                    double[] decay = ArrayProcessor.sumSquare(decays, x, y, c, 3);
+                    double expResult = 0.0;
+                    for (int b = 2; b <= 6; ++b) {
+                        expResult += decay[b];
+                    }
+                    assertEquals(expResult, binner.getIntensity(new int[] { x, y, c }, 2, 6), 1.0e-9);
+                }
+            }
+        }
+    }
+
+    /**
+     * A single pixel is binned without reading the whole channel.
+     */
+    @Test
+    public void testSparseRequests() {
+        double[][][][] decays = ArrayProcessor.randomDecays(WIDTH, HEIGHT, CHANNELS, BINS, 50, 7);
+        ArrayProcessor source = new ArrayProcessor(decays);
+        Bin3x3 binner = new Bin3x3();
+        binner.init(WIDTH, HEIGHT);
+        binner.chain(source);
+        binner.getPixel(new int[] { 10, 10, 0 });
+        binner.getIntensity(new int[] { 10, 10, 0 }, 0, BINS - 1);
+        assertTrue(source.getReads() < WIDTH * HEIGHT);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package loci.slim.preprocess;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit test of thresholding a block at a time, against a pixel at a time.
+ * 
+ * @author Aivar Grislis
+ */
+public class ThresholdTest {
+    private static final int WIDTH = 23;
+    private static final int HEIGHT = 19;
+    private static final int CHANNELS = 2;
+    private static final int BINS = 12;
+    private static final int START = 3;
+    private static final int STOP = 8;
+
+    /**
+     * Thresholds decays read straight from the source.
+     */
+    @Test
+    public void testDecays() {
+        double[][][][] decays = ArrayProcessor.randomDecays(WIDTH, HEIGHT, CHANNELS, BINS, 40, 8);
+        
+        // some invalid pixels
+        for (int c = 0; c < CHANNELS; ++c) {
+            decays[c][2][3] = null;
+            decays[c][HEIGHT - 1][WIDTH - 1] = null;
+        }
+        compare(new ArrayProcessor(decays), 120);
+    }
+
+    /**
+     * Thresholds binned decays, using the photon counts of the binner.
+     */
+    @Test
+    public void testIntensities() {
+        double[][][][] decays = ArrayProcessor.randomDecays(WIDTH, HEIGHT, CHANNELS, BINS, 40, 9);
+        Bin3x3 binner = new Bin3x3();
+        binner.init(WIDTH, HEIGHT);
+        binner.chain(new ArrayProcessor(decays));
+        compare(binner, 1050);
+    }
+
+    /**
+     * Blocks that are all dim are rejected.
+     */
+    @Test
+    public void testDimBlocks() {
+        double[][][][] decays = ArrayProcessor.randomDecays(WIDTH, HEIGHT, CHANNELS, BINS, 40, 10);
+        Bin3x3 binner = new Bin3x3();
+        binner.init(WIDTH, HEIGHT);
+        binner.chain(new ArrayProcessor(decays));
+        compare(binner, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Only the decays of bright pixels are built, and photons are counted
+     * once per pixel.
+     */
+    @Test
+    public void testOnlyBrightDecaysBuilt() {
+        double[][][][] decays = ArrayProcessor.randomDecays(WIDTH, HEIGHT, CHANNELS, BINS, 40, 11);
+        final ArrayProcessor arrayProcessor = new ArrayProcessor(decays);
+        final int[] counts = new int[1];
+        IIntensityProcessor source = new IIntensityProcessor() {
+            public void chain(IProcessor processor) {
+            }
+
+            public double[] getPixel(int[] location) {
+                return arrayProcessor.getPixel(location);
+            }
+
+            public double getIntensity(int[] location, int start, int stop) {
+                ++counts[0];
+                double[] decay = arrayProcessor.getPixel(location);
+                double sum = 0.0;
+                for (int bin = start; bin <= stop; ++bin) {
+                    sum += decay[bin];
+                }
+                return sum;
+            }
+        };
+        int photons = 120;
+        Threshold threshold = new Threshold(START, STOP, photons);
+        threshold.chain(source);
+        DecayBlock block = new DecayBlock(WIDTH * HEIGHT, BINS);
+        block.setRegion(0, 0, 0, WIDTH, HEIGHT);
+        int before = arrayProcessor.getReads();
+        threshold.getBlock(block);
+        
+        int bright = 0;
+        for (int y = 0; y < HEIGHT; ++y) {
+            for (int x = 0; x < WIDTH; ++x) {
+                if (block.isValid(x, y)) {
+                    ++bright;
+                }
+            }
+        }
+        assertEquals(WIDTH * HEIGHT, counts[0]);
+        
+        // each intensity reads a pixel, then each bright pixel is built
+        assertEquals(WIDTH * HEIGHT + bright, arrayProcessor.getReads() - before);
+    }
+
+    /*
+     * Checks every block of rows against getPixel.
+     */
+    private void compare(IProcessor source, int photons) {
+        Threshold threshold = new Threshold(START, STOP, photons);
+        threshold.chain(source);
+        DecayBlock block = new DecayBlock(WIDTH * 4, BINS);
+        double[] decays = block.getDecays();
+        int valid = 0;
+        for (int c = 0; c < CHANNELS; ++c) {
+            for (int y0 = 0; y0 < HEIGHT; y0 += 4) {
+                block.setRegion(0, y0, c, WIDTH, Math.min(4, HEIGHT - y0));
+                threshold.getBlock(block);
+                for (int j = 0; j < block.getHeight(); ++j) {
+                    for (int i = 0; i < WIDTH; ++i) {
+                        double[] expResult = threshold.getPixel(new int[] { i, y0 + j, c });
+                        assertEquals(null != expResult, block.isValid(i, j));
+                        if (null != expResult) {
+                            ++valid;
+                            int offset = block.getOffset(i, j);
+                            for (int b = 0; b < BINS; ++b) {
+                                assertEquals(expResult[b], decays[offset + b], 1.0e-9);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        
+        // the threshold should reject some but not all pixels
+        if (Integer.MAX_VALUE == photons) {
+            assertEquals(0, valid);
+        }
+        else {
+            assertTrue(0 < valid && valid < CHANNELS * WIDTH * HEIGHT);
+        }
+    }
+}